@@ -0,0 +1,248 @@
+package com.databasesandlife.util;
+
+import java.nio.CharBuffer;
+import java.time.LocalDate;
+import java.time.Year;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.CsvParser.ColumnRef;
+import com.databasesandlife.util.CsvParser.CsvRow;
+import com.databasesandlife.util.CsvParser.CsvRowHandler;
+import com.databasesandlife.util.CsvParser.MalformedCsvException;
+
+/**
+ * Loads typed columns of a CSV file into memory, stored in arrays of primitives rather than as maps of strings.
+ *    <p>
+ * Declare the columns which are needed, and their types, then pass the table to one of the
+ * "parseAndCallRowHandler" methods of {@link CsvParser}, which determines the separator, charset, and checks performed.
+ * Columns of the file which are not declared are ignored.
+ * <pre>
+ *    CsvColumnarTable table = new CsvColumnarTable();
+ *    CsvColumnarTable.IntColumn quantity = table.addIntColumn("quantity");
+ *    CsvColumnarTable.DoubleColumn price = table.addDoubleColumn("price");
+ *    CsvColumnarTable.DictionaryStringColumn country = table.addDictionaryStringColumn("country");
+ *    new CsvParser().parseAndCallRowHandler(table, file);
+ *    for (int r = 0; r &lt; table.getRowCount(); r++)
+ *        if ( ! price.isNull(r)) total += quantity.getInt(r) * price.getDouble(r);
+ * </pre>
+ * Numbers and dates are parsed directly from the parser's buffer, without creating strings.
+ * Empty values are stored as null; each column has a bitmap of which rows are null.
+ * A dictionary-encoded string column stores each distinct value once, and an int code per row.
+ *    <p>
+ * The table is not thread-safe. It may be used with {@link CsvParser#parseAndCallRowHandlerInParallel} in ordered mode,
+ * which calls the handler for one row at a time.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class CsvColumnarTable implements CsvRowHandler {
+
+    public abstract static class Column {
+        public final @Nonnull ColumnRef ref;
+        protected long[] nullBits = new long[16];
+
+        protected Column(@Nonnull String field) { this.ref = new ColumnRef(field); }
+
+        public boolean isNull(int rowIdx) { return (nullBits[rowIdx >>> 6] & (1L << rowIdx)) != 0; }
+
+        protected void ensureCapacity(int rowCount) {
+            if (rowCount > nullBits.length * 64) nullBits = Arrays.copyOf(nullBits, Math.max(nullBits.length * 2, (rowCount + 63) / 64));
+        }
+
+        protected void trimToSize(int rowCount) {
+            nullBits = Arrays.copyOf(nullBits, (rowCount + 63) / 64);
+        }
+
+        /** Append the value from the row; empty values have already been handled */
+        protected abstract void append(@Nonnull CsvRow row, int colIdx, int rowIdx) throws MalformedCsvException;
+
+        protected void appendNull(int rowIdx) { nullBits[rowIdx >>> 6] |= 1L << rowIdx; }
+
+        /** The bit may have been set for a row which was not completed, as a later column's value was invalid */
+        protected void clearNull(int rowIdx) { nullBits[rowIdx >>> 6] &= ~(1L << rowIdx); }
+    }
+
+    public static class IntColumn extends Column {
+        protected int[] values = new int[1024];
+        protected IntColumn(@Nonnull String field) { super(field); }
+        @Override protected void ensureCapacity(int rowCount) {
+            super.ensureCapacity(rowCount);
+            if (rowCount > values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, rowCount));
+        }
+        @Override protected void trimToSize(int rowCount) { super.trimToSize(rowCount); values = Arrays.copyOf(values, rowCount); }
+        @Override protected void append(@Nonnull CsvRow row, int colIdx, int rowIdx) throws MalformedCsvException {
+            values[rowIdx] = row.getInt(colIdx);
+        }
+        /** @return 0 if the value is null */
+        public int getInt(int rowIdx) { return values[rowIdx]; }
+    }
+
+    public static class LongColumn extends Column {
+        protected long[] values = new long[1024];
+        protected LongColumn(@Nonnull String field) { super(field); }
+        @Override protected void ensureCapacity(int rowCount) {
+            super.ensureCapacity(rowCount);
+            if (rowCount > values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, rowCount));
+        }
+        @Override protected void trimToSize(int rowCount) { super.trimToSize(rowCount); values = Arrays.copyOf(values, rowCount); }
+        @Override protected void append(@Nonnull CsvRow row, int colIdx, int rowIdx) throws MalformedCsvException {
+            values[rowIdx] = row.getLong(colIdx);
+        }
+        /** @return 0 if the value is null */
+        public long getLong(int rowIdx) { return values[rowIdx]; }
+    }
+
+    public static class DoubleColumn extends Column {
+        protected double[] values = new double[1024];
+        protected DoubleColumn(@Nonnull String field) { super(field); }
+        @Override protected void ensureCapacity(int rowCount) {
+            super.ensureCapacity(rowCount);
+            if (rowCount > values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, rowCount));
+        }
+        @Override protected void trimToSize(int rowCount) { super.trimToSize(rowCount); values = Arrays.copyOf(values, rowCount); }
+        @Override protected void append(@Nonnull CsvRow row, int colIdx, int rowIdx) throws MalformedCsvException {
+            values[rowIdx] = row.getDouble(colIdx);
+        }
+        /** @return 0 if the value is null */
+        public double getDouble(int rowIdx) { return values[rowIdx]; }
+    }
+
+    /** Dates in "YYYY-MM-DD" format, stored as the int YYYYMMDD */
+    public static class DateColumn extends IntColumn {
+        protected DateColumn(@Nonnull String field) { super(field); }
+
+        @Override protected void append(@Nonnull CsvRow row, int colIdx, int rowIdx) throws MalformedCsvException {
+            int start = row.start(colIdx);
+            char[] chars = row.chars;
+            if (row.end(colIdx) - start != 10 || chars[start + 4] != '-' || chars[start + 7] != '-')
+                throw row.newInvalidValueException(colIdx, "a date in YYYY-MM-DD format");
+            int yyyymmdd = 0;
+            for (int i = 0; i < 10; i++) {
+                if (i == 4 || i == 7) continue;
+                int digit = chars[start + i] - '0';
+                if (digit < 0 || digit > 9) throw row.newInvalidValueException(colIdx, "a date in YYYY-MM-DD format");
+                yyyymmdd = yyyymmdd * 10 + digit;
+            }
+            int year = yyyymmdd / 10000, month = yyyymmdd / 100 % 100, day = yyyymmdd % 100;
+            if (month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month)) throw row.newInvalidValueException(colIdx, "a valid date");
+            values[rowIdx] = yyyymmdd;
+        }
+
+        protected static int getDaysInMonth(int year, int month) {
+            switch (month) {
+                case 2: return Year.isLeap(year) ? 29 : 28;
+                case 4: case 6: case 9: case 11: return 30;
+                default: return 31;
+            }
+        }
+
+        public @CheckForNull LocalDate getLocalDateOrNull(int rowIdx) {
+            if (isNull(rowIdx)) return null;
+            return LocalDate.of(values[rowIdx] / 10000, values[rowIdx] / 100 % 100, values[rowIdx] % 100);
+        }
+
+        @SuppressWarnings("deprecation")
+        public @CheckForNull YearMonthDay getYearMonthDayOrNull(int rowIdx) {
+            if (isNull(rowIdx)) return null;
+            return new YearMonthDay(values[rowIdx] / 10000, values[rowIdx] / 100 % 100, values[rowIdx] % 100);
+        }
+    }
+
+    /** Values must be the names of the enum's constants */
+    public static class EnumColumn<E extends Enum<E>> extends Column {
+        protected final @Nonnull E[] constants;
+        protected short[] ordinals = new short[1024];
+
+        protected EnumColumn(@Nonnull String field, @Nonnull Class<E> enumClass) {
+            super(field);
+            constants = enumClass.getEnumConstants();
+            if (constants.length > Short.MAX_VALUE) throw new IllegalArgumentException("Enum " + enumClass + " has too many constants");
+        }
+        @Override protected void ensureCapacity(int rowCount) {
+            super.ensureCapacity(rowCount);
+            if (rowCount > ordinals.length) ordinals = Arrays.copyOf(ordinals, Math.max(ordinals.length * 2, rowCount));
+        }
+        @Override protected void trimToSize(int rowCount) { super.trimToSize(rowCount); ordinals = Arrays.copyOf(ordinals, rowCount); }
+        @Override protected void append(@Nonnull CsvRow row, int colIdx, int rowIdx) throws MalformedCsvException {
+            CharSequence value = row.get(colIdx);
+            for (E e : constants) {
+                if (e.name().contentEquals(value)) { ordinals[rowIdx] = (short) e.ordinal(); return; }
+            }
+            throw row.newInvalidValueException(colIdx, "one of " + Arrays.toString(constants));
+        }
+        public @CheckForNull E getOrNull(int rowIdx) { return isNull(rowIdx) ? null : constants[ordinals[rowIdx]]; }
+    }
+
+    /** Stores each distinct value once, suitable for columns with few distinct values such as country codes */
+    public static class DictionaryStringColumn extends Column {
+        protected int[] codes = new int[1024];
+        protected final @Nonnull List<String> valueForCode = new ArrayList<>();
+        /** Keys are CharBuffers, as {@link CharBuffer#equals} and {@link CharBuffer#hashCode} use their content, so the
+         * {@link CharSequence} from the row can be looked up without creating a string */
+        protected final @Nonnull Map<CharBuffer, Integer> codeForValue = new HashMap<>();
+
+        protected DictionaryStringColumn(@Nonnull String field) { super(field); }
+        @Override protected void ensureCapacity(int rowCount) {
+            super.ensureCapacity(rowCount);
+            if (rowCount > codes.length) codes = Arrays.copyOf(codes, Math.max(codes.length * 2, rowCount));
+        }
+        @Override protected void trimToSize(int rowCount) { super.trimToSize(rowCount); codes = Arrays.copyOf(codes, rowCount); }
+        @Override protected void append(@Nonnull CsvRow row, int colIdx, int rowIdx) {
+            Integer code = codeForValue.get(CharBuffer.wrap(row.chars, row.start(colIdx), row.end(colIdx) - row.start(colIdx)));
+            if (code == null) {
+                String value = row.getString(colIdx);
+                code = valueForCode.size();
+                valueForCode.add(value);
+                codeForValue.put(CharBuffer.wrap(value), code);
+            }
+            codes[rowIdx] = code;
+        }
+        /** @return -1 if the value is null */
+        public int getCode(int rowIdx) { return isNull(rowIdx) ? -1 : codes[rowIdx]; }
+        public @Nonnull List<String> getValueForCode() { return valueForCode; }
+        public @CheckForNull String getOrNull(int rowIdx) { return isNull(rowIdx) ? null : valueForCode.get(codes[rowIdx]); }
+    }
+
+    protected final @Nonnull List<Column> columns = new ArrayList<>();
+    protected int rowCount = 0;
+
+    protected @Nonnull <C extends Column> C addColumn(@Nonnull C column) {
+        for (Column c : columns)
+            if (c.ref.field.equals(column.ref.field)) throw new IllegalArgumentException("Column '" + c.ref.field + "' added twice");
+        columns.add(column);
+        return column;
+    }
+
+    public @Nonnull IntColumn addIntColumn(@Nonnull String field) { return addColumn(new IntColumn(field)); }
+    public @Nonnull LongColumn addLongColumn(@Nonnull String field) { return addColumn(new LongColumn(field)); }
+    public @Nonnull DoubleColumn addDoubleColumn(@Nonnull String field) { return addColumn(new DoubleColumn(field)); }
+    public @Nonnull DateColumn addDateColumn(@Nonnull String field) { return addColumn(new DateColumn(field)); }
+    public @Nonnull DictionaryStringColumn addDictionaryStringColumn(@Nonnull String field) { return addColumn(new DictionaryStringColumn(field)); }
+    public @Nonnull <E extends Enum<E>> EnumColumn<E> addEnumColumn(@Nonnull String field, @Nonnull Class<E> enumClass) {
+        return addColumn(new EnumColumn<>(field, enumClass));
+    }
+
+    public int getRowCount() { return rowCount; }
+
+    @Override public void processCsvRow(@Nonnull CsvRow row) throws MalformedCsvException {
+        for (Column column : columns) {
+            int colIdx = row.getColIdx(column.ref);
+            column.ensureCapacity(rowCount + 1);
+            if (row.isEmpty(colIdx)) column.appendNull(rowCount);
+            else { column.clearNull(rowCount); column.append(row, colIdx, rowCount); }
+        }
+        rowCount++;
+    }
+
+    /** Call after loading, to free the unused capacity of the arrays */
+    public void trimToSize() {
+        for (Column column : columns) column.trimToSize(rowCount);
+    }
+}
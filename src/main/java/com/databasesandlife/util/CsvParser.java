@@ -2,43 +2,66 @@ package com.databasesandlife.util;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import com.databasesandlife.util.DecompressingInputStream.CompressionFormat;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import com.google.gdata.util.io.base.UnicodeReader;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExceptionMessage;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 
 /**
  * Parses CSV files.
  *
  * <p>The CSV file is assumed to have a first line containing the column headings.
- * Does not handle quotes in fields (e.g. as generated by Excel).
+ * Fields may be quoted as described in RFC 4180 (e.g. as generated by Excel): a quoted field may contain
+ * the field separator, line breaks, and quotes written as two quotes.
  * Field names are case-sensitive.
+ * Files compressed with gzip or zip are decompressed automatically, see {@link DecompressingInputStream}.
  * Files have a default character set (by default UTF-8) which can be changed by calling {@link #setDefaultCharset},
  * however if the file has a Unicode BOM then this is accepted in preference to the default charset.
  *
  * <h3>Usage</h3>
  * <p>Create an object and set attributes such as the field-separator, list of acceptable columns, etc.
- * Then either call parseAndCallHandler or parseToListOfMaps.</p>
+ * Then either call parseAndCallHandler or parseToListOfMaps.
+ * For large files, parseAndCallRowHandler avoids creating a map and strings for every line,
+ * and parseAndCallRowHandlerInParallel parses a file using multiple threads.
+ * parseToIterator and parseToStream read rows only as they are requested.</p>
  * 
  * <pre>
  *    CsvLineHandler myHandler = new CsvLineHandler() {
@@ -50,7 +73,10 @@ import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExc
  *    csvParser.parseAndCallHandler(myHandler, aFile);
  *    csvParser.parseAndCallHandler(myHandler, aReader);
  *    csvParser.parseAndCallHandler(myHandler, aClass);  // reads "aClass.csv" from classloader
- *    List&lt;Map&lt;String,String&gt;&gt; contents = csvParser.parseToListOfMaps(aFile);</pre>
+ *    List&lt;Map&lt;String,String&gt;&gt; contents = csvParser.parseToListOfMaps(aFile);
+ *
+ *    ColumnRef price = new ColumnRef("price");  // e.g. a static variable
+ *    csvParser.parseAndCallRowHandler(row -&gt; total += row.getDouble(price), aFile);</pre>
  * <h3>Glossary</h3>
  * <ul>
  * <li><b>Field</b> - name of column
@@ -69,24 +95,530 @@ public class CsvParser {
         void processCsvLine(Map<String, String> line) throws MalformedCsvException;
     }
 
+    /**
+     * Alternative to {@link CsvLineHandler} which avoids creating a map, and strings for every value, for every line.
+     * Use {@link ColumnRef} objects, created once, to access values by field name.
+     */
+    public interface CsvRowHandler {
+        /** @param row is re-used between calls; extract values from it but do not store the object, or any CharSequence from it, anywhere */
+        void processCsvRow(@Nonnull CsvRow row) throws MalformedCsvException;
+    }
+
+    /**
+     * A field name, whose column index is looked up once per CSV file rather than once per row.
+     * Objects are thread-safe and may be stored in static variables.
+     */
+    public static class ColumnRef {
+        protected static class Resolution {
+            final @Nonnull String[] fieldForColIdx;
+            final int colIdx;
+            Resolution(@Nonnull String[] fieldForColIdx, int colIdx) { this.fieldForColIdx = fieldForColIdx; this.colIdx = colIdx; }
+        }
+
+        public final @Nonnull String field;
+        protected volatile Resolution resolutionOrNull = null;
+
+        public ColumnRef(@Nonnull String field) { this.field = field; }
+
+        protected int getColIdx(@Nonnull String[] fieldForColIdx) throws MalformedCsvException {
+            Resolution r = resolutionOrNull;
+            if (r == null || r.fieldForColIdx != fieldForColIdx) {
+                r = new Resolution(fieldForColIdx, Arrays.asList(fieldForColIdx).indexOf(field));
+                resolutionOrNull = r;
+            }
+            if (r.colIdx < 0) throw new MalformedCsvException("Column '" + field + "' is missing");
+            return r.colIdx;
+        }
+
+        @Override public String toString() { return field; }
+    }
+
+    /**
+     * A row of data from the CSV file, offering access to values without creating strings.
+     * The object, and the {@link CharSequence} objects returned from it, are only valid until the next row is read.
+     */
+    public static class CsvRow {
+        protected final @Nonnull String[] fieldForColIdx;
+        protected char[] chars;
+        protected int[] fieldStarts, fieldEnds;
+        protected int fieldOffset, lineNumber;
+
+        protected static final double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+        protected CsvRow(@Nonnull String[] fieldForColIdx) {
+            this.fieldForColIdx = fieldForColIdx;
+        }
+
+        /** Field c is from chars[fieldStarts[fieldOffset+c]] to chars[fieldEnds[fieldOffset+c]] */
+        protected void set(@Nonnull char[] chars, @Nonnull int[] fieldStarts, @Nonnull int[] fieldEnds, int fieldOffset, int lineNumber) {
+            this.chars = chars;
+            this.fieldStarts = fieldStarts;
+            this.fieldEnds = fieldEnds;
+            this.fieldOffset = fieldOffset;
+            this.lineNumber = lineNumber;
+        }
+
+        public int getLineNumber() { return lineNumber; }
+        public int getColumnCount() { return fieldForColIdx.length; }
+        public @Nonnull String getColumnName(int colIdx) { return fieldForColIdx[colIdx]; }
+        public int getColIdx(@Nonnull ColumnRef col) throws MalformedCsvException { return col.getColIdx(fieldForColIdx); }
+
+        protected int start(int colIdx) { return fieldStarts[fieldOffset + colIdx]; }
+        protected int end(int colIdx) { return fieldEnds[fieldOffset + colIdx]; }
+
+        public boolean isEmpty(int colIdx) { return start(colIdx) == end(colIdx); }
+        public boolean isEmpty(@Nonnull ColumnRef col) throws MalformedCsvException { return isEmpty(getColIdx(col)); }
+
+        /** @return a view onto the value, which is only valid until the next row is read */
+        public @Nonnull CharSequence get(int colIdx) {
+            return CharBuffer.wrap(chars, start(colIdx), end(colIdx) - start(colIdx));
+        }
+        public @Nonnull CharSequence get(@Nonnull ColumnRef col) throws MalformedCsvException { return get(getColIdx(col)); }
+
+        public @Nonnull String getString(int colIdx) { return new String(chars, start(colIdx), end(colIdx) - start(colIdx)); }
+        public @Nonnull String getString(@Nonnull ColumnRef col) throws MalformedCsvException { return getString(getColIdx(col)); }
+
+        public @Nonnull MalformedCsvException newInvalidValueException(int colIdx, @Nonnull String expected) {
+            return new MalformedCsvException("Column " + colIdx + ", field '" + fieldForColIdx[colIdx] + "': " +
+                "value '" + getString(colIdx) + "' is not " + expected);
+        }
+
+        public long getLong(int colIdx) throws MalformedCsvException {
+            int i = start(colIdx), end = end(colIdx);
+            boolean negative = i < end && chars[i] == '-';
+            if (i < end && (chars[i] == '-' || chars[i] == '+')) i++;
+            if (i == end) throw newInvalidValueException(colIdx, "an integer");
+            long result = 0; // accumulated negatively, as Long.MIN_VALUE has no positive equivalent
+            for (; i < end; i++) {
+                int digit = chars[i] - '0';
+                if (digit < 0 || digit > 9) throw newInvalidValueException(colIdx, "an integer");
+                if (result < (Long.MIN_VALUE + digit) / 10) throw newInvalidValueException(colIdx, "an integer in range");
+                result = result * 10 - digit;
+            }
+            if ( ! negative) {
+                if (result == Long.MIN_VALUE) throw newInvalidValueException(colIdx, "an integer in range");
+                result = -result;
+            }
+            return result;
+        }
+        public long getLong(@Nonnull ColumnRef col) throws MalformedCsvException { return getLong(getColIdx(col)); }
+
+        public int getInt(int colIdx) throws MalformedCsvException {
+            long result = getLong(colIdx);
+            if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) throw newInvalidValueException(colIdx, "an integer in range");
+            return (int) result;
+        }
+        public int getInt(@Nonnull ColumnRef col) throws MalformedCsvException { return getInt(getColIdx(col)); }
+
+        /**
+         * Values such as "-12.345" are parsed directly from the characters.
+         * Values with more than 15 significant digits, or exponents etc., are passed to {@link Double#parseDouble(String)}.
+         */
+        public double getDouble(int colIdx) throws MalformedCsvException {
+            int i = start(colIdx), end = end(colIdx);
+            boolean negative = i < end && chars[i] == '-';
+            if (i < end && (chars[i] == '-' || chars[i] == '+')) i++;
+            long mantissa = 0;
+            int digitCount = 0, significantDigitCount = 0, fractionDigitCount = 0;
+            boolean seenPoint = false, fastPath = true;
+            for (; i < end && fastPath; i++) {
+                char c = chars[i];
+                if (c == '.' && ! seenPoint) { seenPoint = true; continue; }
+                if (c < '0' || c > '9') { fastPath = false; continue; }
+                mantissa = mantissa * 10 + (c - '0');
+                digitCount++;
+                if (mantissa != 0) significantDigitCount++;
+                if (seenPoint) fractionDigitCount++;
+            }
+            if (fastPath && digitCount > 0 && significantDigitCount <= 15 && fractionDigitCount < powersOfTen.length) {
+                double result = mantissa / powersOfTen[fractionDigitCount]; // exact operands, so correctly rounded
+                return negative ? -result : result;
+            }
+
+            try { return Double.parseDouble(getString(colIdx)); }
+            catch (NumberFormatException e) { throw newInvalidValueException(colIdx, "a number"); }
+        }
+        public double getDouble(@Nonnull ColumnRef col) throws MalformedCsvException { return getDouble(getColIdx(col)); }
+
+        /** @return a row with its own copy of the values, which remains valid after the next row is read */
+        public @Nonnull CsvRow copy() {
+            int columnCount = fieldForColIdx.length, charCount = 0;
+            for (int c = 0; c < columnCount; c++) charCount += end(c) - start(c);
+            char[] newChars = new char[charCount];
+            int[] newStarts = new int[columnCount], newEnds = new int[columnCount];
+            charCount = 0;
+            for (int c = 0; c < columnCount; c++) {
+                System.arraycopy(chars, start(c), newChars, charCount, end(c) - start(c));
+                newStarts[c] = charCount;
+                charCount += end(c) - start(c);
+                newEnds[c] = charCount;
+            }
+            CsvRow result = new CsvRow(fieldForColIdx);
+            result.set(newChars, newStarts, newEnds, 0, lineNumber);
+            return result;
+        }
+    }
+
     public static class MalformedCsvException extends Exception {  // checked ex. because it's always possible CSV invalid, must handle it
         public MalformedCsvException(String msg) { super(msg); }
         public MalformedCsvException(String prefix, Throwable e) { super(prefixExceptionMessage(prefix, e), e); }
         public MalformedCsvException(Throwable e) { super(e); }
     }
 
-    protected class ArrayOfMapsLineHandler implements CsvLineHandler {
+    protected class ArrayOfMapsRowHandler implements CsvRowHandler {
         List<Map<String,String>> result = new ArrayList<>();
-        public void processCsvLine(Map<String, String> line) {
-            Map<String, String> mapCopy = mapProducer.get();
-            mapCopy.putAll(line);
-            result.add(mapCopy);
+        public void processCsvRow(@Nonnull CsvRow row) {
+            Map<String, String> map = mapProducer.get();
+            for (int c = 0; c < row.getColumnCount(); c++) map.put(row.getColumnName(c), row.getString(c));
+            result.add(map);
+        }
+    }
+
+    /**
+     * Splits the characters from a reader into records and fields, in a single pass, reusing its buffers for each record.
+     * After {@link #readRecord()}, the unquoted value of field i is in {@link #fieldChars}
+     * from {@link #fieldStarts}[i] to {@link #fieldEnds}[i].
+     *    <p>
+     * If the separator is a regular expression, which cannot be matched character by character, each record is
+     * instead found by the state machine and then split with the regular expression, which is much slower.
+     */
+    protected static class CsvTokenizer {
+        protected enum State { fieldStart, unquoted, quoted, quoteInQuoted }
+
+        protected final @Nonnull Reader reader;
+        /** Null if splitting with {@link #separatorRegexpOrNull} */
+        protected final @CheckForNull char[] separator;
+        /** Matches separators outside quotes */
+        protected final @CheckForNull Pattern separatorRegexpOrNull;
+        /** The current record is kept in this buffer from {@link #recordStartPos}, so that it need not be copied */
+        protected char[] in = new char[64 * 1024];
+        protected int inPos = 0, inLen = 0, recordStartPos = 0, recordEndPos = 0;
+        protected char[] fieldChars = new char[1024];
+        protected int fieldCharsLen = 0;
+        protected int[] fieldStarts = new int[16], fieldEnds = new int[16];
+        protected int fieldCount = 0;
+        protected int lineNumber = 0, recordStartLineNumber = 0;
+
+        public CsvTokenizer(@Nonnull Reader reader, @Nonnull String separator) {
+            if (separator.isEmpty()) throw new IllegalArgumentException("Field separator may not be empty");
+            this.reader = reader;
+            this.separator = separator.toCharArray();
+            this.separatorRegexpOrNull = null;
+        }
+
+        public CsvTokenizer(@Nonnull Reader reader, @Nonnull Pattern separator) {
+            this.reader = reader;
+            this.separator = null;
+            this.separatorRegexpOrNull = Pattern.compile("(?:" + separator.pattern() + ")(?=([^\"]*\"[^\"]*\")*[^\"]*$)", separator.flags());
+        }
+
+        /** @return true if at least n characters are available from inPos */
+        protected boolean ensureAvailable(int n) throws IOException {
+            while (inLen - inPos < n) {
+                if (recordStartPos > 0) {
+                    System.arraycopy(in, recordStartPos, in, 0, inLen - recordStartPos);
+                    inLen -= recordStartPos;
+                    inPos -= recordStartPos;
+                    recordStartPos = 0;
+                }
+                if (inLen == in.length) in = Arrays.copyOf(in, in.length * 2); // record longer than the buffer
+                int read = reader.read(in, inLen, in.length - inLen);
+                if (read < 0) return false;
+                inLen += read;
+            }
+            return true;
+        }
+
+        /** @return the next character or -1 at end of input */
+        protected int next() throws IOException {
+            if (inPos == inLen && ! ensureAvailable(1)) return -1;
+            return in[inPos++];
+        }
+
+        /** @return the record as it appeared in the file, without the line break at the end; only valid until the next record is read */
+        public @Nonnull CharSequence getRawRecord() {
+            return CharBuffer.wrap(in, recordStartPos, recordEndPos - recordStartPos);
+        }
+
+        /** Called after character c has been read */
+        protected boolean isSeparator(int c) throws IOException {
+            if (separator == null || c != separator[0]) return false;
+            if (separator.length == 1) return true;
+            if ( ! ensureAvailable(separator.length - 1)) return false;
+            for (int i = 1; i < separator.length; i++) if (in[inPos + i - 1] != separator[i]) return false;
+            for (int i = 1; i < separator.length; i++) next();
+            return true;
+        }
+
+        protected void appendToField(char c) {
+            if (fieldCharsLen == fieldChars.length) fieldChars = Arrays.copyOf(fieldChars, fieldChars.length * 2);
+            fieldChars[fieldCharsLen++] = c;
+        }
+
+        protected void startField() {
+            if (fieldCount == fieldStarts.length) {
+                fieldStarts = Arrays.copyOf(fieldStarts, fieldStarts.length * 2);
+                fieldEnds = Arrays.copyOf(fieldEnds, fieldEnds.length * 2);
+            }
+            fieldStarts[fieldCount] = fieldCharsLen;
+        }
+
+        protected void endField() {
+            fieldEnds[fieldCount++] = fieldCharsLen;
+        }
+
+        protected void endRecord() {
+            endField();
+            recordEndPos = inPos;
+            if (recordEndPos > recordStartPos && in[recordEndPos - 1] == '\n') recordEndPos--;
+            if (recordEndPos > recordStartPos && in[recordEndPos - 1] == '\r') recordEndPos--;
+            if (separatorRegexpOrNull != null) splitRawRecord();
+        }
+
+        /** Replaces the single field found by the state machine with the fields separated by the regular expression */
+        protected void splitRawRecord() {
+            fieldCount = 0;
+            fieldCharsLen = 0;
+            for (String field : separatorRegexpOrNull.split(getRawRecord(), -1)) {
+                startField();
+                boolean quoted = field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"';
+                String value = quoted ? field.substring(1, field.length() - 1).replace("\"\"", "\"") : field;
+                for (int i = 0; i < value.length(); i++) appendToField(value.charAt(i));
+                endField();
+            }
+        }
+
+        /** @return false if there are no more records */
+        public boolean readRecord() throws IOException, MalformedCsvException {
+            fieldCount = 0;
+            fieldCharsLen = 0;
+            recordStartPos = inPos;
+            if ( ! ensureAvailable(1)) return false;
+            recordStartLineNumber = ++lineNumber;
+
+            State state = State.fieldStart;
+            startField();
+            while (true) {
+                int c = next();
+                if (state == State.quoted) {
+                    if (c == -1) throw new MalformedCsvException("Quoted field, starting on line " + recordStartLineNumber + ", is not terminated");
+                    if (c == '"') state = State.quoteInQuoted;
+                    else {
+                        if (c == '\n') lineNumber++;
+                        appendToField((char) c);
+                    }
+                    continue;
+                }
+                if (state == State.quoteInQuoted) {
+                    if (c == '"') { appendToField('"'); state = State.quoted; continue; }
+                    state = State.unquoted; // and process the character after the closing quote as normal
+                }
+
+                if (c == -1 || c == '\n') { endRecord(); return true; }
+                if (c == '\r') {
+                    if (ensureAvailable(1) && in[inPos] == '\n') next();
+                    endRecord();
+                    return true;
+                }
+                if (isSeparator(c)) { endField(); startField(); state = State.fieldStart; continue; }
+                if (state == State.fieldStart && c == '"') { state = State.quoted; continue; }
+                appendToField((char) c);
+                state = State.unquoted;
+            }
+        }
+
+        public int getFieldCount() { return fieldCount; }
+
+        public @Nonnull String getField(int idx) {
+            return new String(fieldChars, fieldStarts[idx], fieldEnds[idx] - fieldStarts[idx]);
+        }
+
+        public int getFieldLength(int idx) { return fieldEnds[idx] - fieldStarts[idx]; }
+    }
+
+    /** A range of bytes in a file, containing complete lines */
+    protected static class CsvChunk {
+        final long start, end;
+        final int firstLineNumber;
+        CsvChunk(long start, long end, int firstLineNumber) { this.start = start; this.end = end; this.firstLineNumber = firstLineNumber; }
+    }
+
+    protected static class ByteBufferInputStream extends InputStream {
+        protected final @Nonnull ByteBuffer buffer;
+        public ByteBufferInputStream(@Nonnull ByteBuffer buffer) { this.buffer = buffer; }
+        @Override public int read() { return buffer.hasRemaining() ? buffer.get() & 0xFF : -1; }
+        @Override public int read(@Nonnull byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if ( ! buffer.hasRemaining()) return -1;
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+        @Override public int available() { return buffer.remaining(); }
+    }
+
+    /** Keeps copies of the rows of one chunk, parsed on one thread, so they can be passed to a handler later on another thread */
+    protected class BufferedRows implements CsvRowHandler {
+        protected final @Nonnull String[] fieldForColIdx;
+        protected char[] chars = null;
+        protected int[] fieldStarts = null, fieldEnds = null, lineNumbers = null;
+        protected int charCount = 0, rowCount = 0;
+        protected @CheckForNull MalformedCsvException exceptionOrNull = null;
+
+        protected BufferedRows(@Nonnull String[] fieldForColIdx) { this.fieldForColIdx = fieldForColIdx; }
+
+        @Override public void processCsvRow(@Nonnull CsvRow row) {
+            int columnCount = fieldForColIdx.length;
+            if (lineNumbers == null) {
+                chars = new char[16 * 1024];
+                lineNumbers = new int[256];
+                fieldStarts = new int[lineNumbers.length * columnCount];
+                fieldEnds = new int[lineNumbers.length * columnCount];
+            }
+            if (rowCount == lineNumbers.length) {
+                lineNumbers = Arrays.copyOf(lineNumbers, lineNumbers.length * 2);
+                fieldStarts = Arrays.copyOf(fieldStarts, lineNumbers.length * columnCount);
+                fieldEnds = Arrays.copyOf(fieldEnds, lineNumbers.length * columnCount);
+            }
+            for (int c = 0; c < columnCount; c++) {
+                int length = row.end(c) - row.start(c);
+                if (charCount + length > chars.length) chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + length));
+                System.arraycopy(row.chars, row.start(c), chars, charCount, length);
+                fieldStarts[rowCount * columnCount + c] = charCount;
+                charCount += length;
+                fieldEnds[rowCount * columnCount + c] = charCount;
+            }
+            lineNumbers[rowCount++] = row.lineNumber;
+        }
+
+        /** Calls the handler for each row, then throws the exception which stopped the parsing of the chunk, if any */
+        public void callRowHandler(@Nonnull CsvRowHandler rowHandler) throws MalformedCsvException {
+            CsvRow row = new CsvRow(fieldForColIdx);
+            for (int r = 0; r < rowCount; r++) {
+                row.set(chars, fieldStarts, fieldEnds, r * fieldForColIdx.length, lineNumbers[r]);
+                try { rowHandler.processCsvRow(row); }
+                catch (MalformedCsvException e) { throw new MalformedCsvException(getLineNumberText(row.lineNumber), e); }
+            }
+            if (exceptionOrNull != null) throw exceptionOrNull;
+        }
+
+        public void release() {
+            chars = null;
+            fieldStarts = fieldEnds = lineNumbers = null;
+            rowCount = 0;
         }
     }
 
+    /**
+     * Reads rows from the CSV file as they are requested, see {@link #parseToIterator(BufferedReader)}.
+     * If a row is malformed, {@link #hasNext()} throws a RuntimeException whose cause is the {@link MalformedCsvException}.
+     * The reader is closed when the last row has been read, or when {@link #close()} is called.
+     */
+    public class CsvRowIterator implements Iterator<CsvRow>, AutoCloseable {
+        protected final @Nonnull Reader reader;
+        protected final @Nonnull CsvTokenizer tokenizer;
+        protected final @Nonnull String[] fieldForColIdx;
+        protected final @Nonnull boolean[] nonEmptyForColIdx;
+        protected final @Nonnull CsvRow row;
+        protected boolean peeked = false, finished = false;
+
+        protected CsvRowIterator(@Nonnull Reader reader) throws IOException, MalformedCsvException {
+            this.reader = reader;
+            tokenizer = newTokenizer(reader);
+            fieldForColIdx = readHeader(tokenizer);
+            nonEmptyForColIdx = getNonEmptyForColIdx(fieldForColIdx);
+            row = new CsvRow(fieldForColIdx);
+        }
+
+        public @Nonnull String[] getFieldForColIdx() { return fieldForColIdx.clone(); }
+
+        @Override public boolean hasNext() {
+            if (peeked) return true;
+            if (finished) return false;
+            try {
+                if (readDataRow(tokenizer, nonEmptyForColIdx, row)) peeked = true;
+                else close();
+                return peeked;
+            }
+            catch (IOException | MalformedCsvException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** @return a row which is only valid until the next call to {@link #hasNext()}; use {@link CsvRow#copy()} to keep it */
+        @Override public @Nonnull CsvRow next() {
+            if ( ! hasNext()) throw new NoSuchElementException();
+            peeked = false;
+            return row;
+        }
+
+        @Override public void close() {
+            if (finished) return;
+            finished = true;
+            peeked = false;
+            try { reader.close(); }
+            catch (IOException e) { throw new RuntimeException(e); }
+        }
+    }
+
+    /**
+     * Splits the rows for a parallel stream, by copying batches of rows into memory, which are then processed on other threads.
+     * Each batch has its own {@link CsvRow} object, which is re-used for the rows of that batch.
+     */
+    protected class CsvRowSpliterator implements Spliterator<CsvRow> {
+        protected final @Nonnull CsvRowIterator iterator;
+        protected int batchSize = 0;
+
+        protected CsvRowSpliterator(@Nonnull CsvRowIterator iterator) { this.iterator = iterator; }
+
+        @Override public boolean tryAdvance(@Nonnull Consumer<? super CsvRow> action) {
+            if ( ! iterator.hasNext()) return false;
+            action.accept(iterator.next());
+            return true;
+        }
+
+        @Override public @CheckForNull Spliterator<CsvRow> trySplit() {
+            if ( ! iterator.hasNext()) return null;
+            batchSize = Math.min(batchSize + 1024, 64 * 1024);
+            BufferedRows batch = new BufferedRows(iterator.fieldForColIdx);
+            for (int r = 0; r < batchSize && iterator.hasNext(); r++) batch.processCsvRow(iterator.next());
+            return new BufferedRowsSpliterator(batch);
+        }
+
+        @Override public long estimateSize() { return Long.MAX_VALUE; }
+        @Override public int characteristics() { return ORDERED | NONNULL; }
+    }
+
+    protected static class BufferedRowsSpliterator implements Spliterator<CsvRow> {
+        protected final @Nonnull BufferedRows rows;
+        protected final @Nonnull CsvRow row;
+        protected int nextIdx = 0;
+
+        protected BufferedRowsSpliterator(@Nonnull BufferedRows rows) {
+            this.rows = rows;
+            this.row = new CsvRow(rows.fieldForColIdx);
+        }
+
+        @Override public boolean tryAdvance(@Nonnull Consumer<? super CsvRow> action) {
+            if (nextIdx >= rows.rowCount) return false;
+            row.set(rows.chars, rows.fieldStarts, rows.fieldEnds, nextIdx * rows.fieldForColIdx.length, rows.lineNumbers[nextIdx]);
+            nextIdx++;
+            action.accept(row);
+            return true;
+        }
+
+        @Override public @CheckForNull Spliterator<CsvRow> trySplit() { return null; }
+        @Override public long estimateSize() { return rows.rowCount - nextIdx; }
+        @Override public int characteristics() { return ORDERED | NONNULL | SIZED | SUBSIZED; }
+    }
+
     protected Charset defaultCharset = StandardCharsets.UTF_8;
-    protected Pattern fieldSeparatorRegexp = Pattern.compile(Pattern.quote(","));
-    protected String fieldSeparator = ",(?=([^\"]*\"[^\"]*\")*[^\"]*$)";
+    protected String fieldSeparator = ",";
+    /** Set if the separator was set as a regular expression which is not a fixed string */
+    protected Pattern fieldSeparatorRegexpOrNull = null;
     protected Set<String> mandatoryFields = null;
     protected Set<String> allowedFields = null;
     protected Set<String> nonEmptyFields = null;
@@ -94,12 +626,53 @@ public class CsvParser {
     protected Pattern skipLinePattern = null;
     
     protected Supplier<Map<String, String>> mapProducer = HashMap::new;
+    protected long parallelChunkBytes = 16 * 1024 * 1024;
+
+    protected static final Pattern quotedRegexpPattern = Pattern.compile("\\\\Q(.*)\\\\E", Pattern.DOTALL);
 
     public void setEndOfDataRegex(Pattern p){ this.endOfDataRegex = p;}
     public void setSkipLinePattern(Pattern p){ this.skipLinePattern = p;}
     public void setDefaultCharset(Charset c) { defaultCharset = c; }
-    public void setFieldSeparatorRegexp(Pattern p) { fieldSeparatorRegexp = Pattern.compile(fieldSeparator.replace(",", p.toString()));}
-    public void setFieldSeparator(String x) { setFieldSeparatorRegexp(Pattern.compile(Pattern.quote(x))); }
+    public void setFieldSeparator(String x) { fieldSeparator = x; fieldSeparatorRegexpOrNull = null; }
+
+    /**
+     * If the pattern matches a fixed string, for example <code>Pattern.compile("\\t")</code>, 
+     * <code>Pattern.compile(";")</code> or <code>Pattern.compile(Pattern.quote("|"))</code>,
+     * this is the same as {@link #setFieldSeparator(String)}. Otherwise each record is split with the pattern,
+     * which is much slower.
+     * @deprecated use {@link #setFieldSeparator(String)}
+     */
+    @Deprecated
+    public void setFieldSeparatorRegexp(Pattern p) {
+        String literal = getFixedStringOrNull(p);
+        if (literal == null) fieldSeparatorRegexpOrNull = p;
+        else setFieldSeparator(literal);
+    }
+
+    /** @return the string the pattern matches, or null if it matches more than one string */
+    protected static @CheckForNull String getFixedStringOrNull(@Nonnull Pattern p) {
+        Matcher quoted = quotedRegexpPattern.matcher(p.pattern());
+        if (quoted.matches()) return quoted.group(1);
+        
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < p.pattern().length(); i++) {
+            char c = p.pattern().charAt(i);
+            if (c == '\\' && i + 1 < p.pattern().length()) {
+                char escaped = p.pattern().charAt(++i);
+                if (escaped == 't') literal.append('\t');
+                else if (Character.isLetterOrDigit(escaped)) return null;
+                else literal.append(escaped);
+            }
+            else if ("[](){}.*+?^$|".indexOf(c) >= 0) return null;
+            else literal.append(c);
+        }
+        return literal.toString();
+    }
+
+    protected @Nonnull CsvTokenizer newTokenizer(@Nonnull Reader reader) {
+        if (fieldSeparatorRegexpOrNull != null) return new CsvTokenizer(reader, fieldSeparatorRegexpOrNull);
+        return new CsvTokenizer(reader, fieldSeparator);
+    }
 
     /** If the CSV file is missing any columns from this list, that's an error */
     public void setMandatoryFields(@Nonnull String... f) { mandatoryFields = new HashSet<>(Arrays.asList(f)); }
@@ -116,56 +689,102 @@ public class CsvParser {
     /** Any fields here must be present and have non-empty values */ 
     public void setNonEmptyFields(@Nonnull String... f) { nonEmptyFields = new HashSet<>(Arrays.asList(f)); }
 
+    /** When parsing in parallel, the file is split into chunks of approximately this size */
+    public void setParallelChunkBytes(long bytes) { parallelChunkBytes = bytes; }
+
     /** By default use a fast map, but the client may require other maps for example one that preserves the field order */
     public void setMapProducer(@Nonnull Supplier<Map<String, String>> mapProducer) { this.mapProducer = mapProducer; }
 
+    protected @Nonnull CsvRowHandler newMapFillingRowHandler(@Nonnull CsvLineHandler lineHandler) {
+        Map<String, String> valueForField = mapProducer.get();
+        return row -> {
+            valueForField.clear();
+            for (int c = 0; c < row.getColumnCount(); c++) valueForField.put(row.getColumnName(c), row.getString(c));
+            lineHandler.processCsvLine(valueForField);
+        };
+    }
+
     public void parseAndCallHandler(CsvLineHandler lineHandler, BufferedReader r) throws MalformedCsvException {
-        try {
-            String headerLine = r.readLine();
-            if (headerLine == null) throw new MalformedCsvException("File was empty (header line is mandatory)");
-            String[] fieldForColIdx = fieldSeparatorRegexp.split(headerLine);
-            if (mandatoryFields != null)
-                for (String f : mandatoryFields)
-                    if ( ! containsField(Arrays.asList(fieldForColIdx),f))
-                        throw new MalformedCsvException("Column '" + f + "' is missing");
-            if (allowedFields != null)
-                for (String csvField : fieldForColIdx)
-                    if ( ! allowedFields.contains(csvField))
-                        throw new MalformedCsvException("Column '" + csvField + "' unexpected");
-
-            int lineNumber = 1;
-            Map<String, String> valueForField = mapProducer.get();
-            while (true) {
-                try {
-                    lineNumber++;
-                    String line = r.readLine();
-                    if (line == null || (endOfDataRegex != null && endOfDataRegex.matcher(line).matches())) break; // end of data
-                    if(skipLinePattern != null && skipLinePattern.matcher(line).matches()) continue;
-                    String[] valueForColIdx = fieldSeparatorRegexp.split(line,-1);
-                    if (valueForColIdx.length != fieldForColIdx.length) throw new MalformedCsvException("Expected " +
-                        fieldForColIdx.length + " fields but found " + valueForColIdx.length + " fields; line was '"+line+"'");
-                    valueForField.clear();
-                    for (int c = 0; c < valueForColIdx.length; c++) {
-                        String field = fieldForColIdx[c].replaceAll("\"", "");
-                        String val = valueForColIdx[c].replaceAll("\"", "");
-                        if (nonEmptyFields != null && nonEmptyFields.contains(field))
-                            if (val.length() == 0) throw new MalformedCsvException("Column " + c + ", field '" + field + "': value may not be empty");
-                        valueForField.put(field, val);
-                    }
-                    lineHandler.processCsvLine(valueForField);
-                }
-                catch (MalformedCsvException e) { throw new MalformedCsvException(getLineNumberText(lineNumber), e); }
+        parseAndCallRowHandler(newMapFillingRowHandler(lineHandler), r);
+    }
+
+    /** Reads the header line and checks the fields against the mandatory and allowed fields */
+    protected @Nonnull String[] readHeader(@Nonnull CsvTokenizer tokenizer) throws IOException, MalformedCsvException {
+        if ( ! tokenizer.readRecord()) throw new MalformedCsvException("File was empty (header line is mandatory)");
+        String[] fieldForColIdx = new String[tokenizer.getFieldCount()];
+        for (int c = 0; c < fieldForColIdx.length; c++) fieldForColIdx[c] = tokenizer.getField(c);
+        if (mandatoryFields != null)
+            for (String f : mandatoryFields)
+                if ( ! Arrays.asList(fieldForColIdx).contains(f))
+                    throw new MalformedCsvException("Column '" + f + "' is missing");
+        if (allowedFields != null)
+            for (String csvField : fieldForColIdx)
+                if ( ! allowedFields.contains(csvField))
+                    throw new MalformedCsvException("Column '" + csvField + "' unexpected");
+        return fieldForColIdx;
+    }
+
+    protected @Nonnull boolean[] getNonEmptyForColIdx(@Nonnull String[] fieldForColIdx) {
+        boolean[] result = new boolean[fieldForColIdx.length];
+        for (int c = 0; c < fieldForColIdx.length; c++)
+            result[c] = nonEmptyFields != null && nonEmptyFields.contains(fieldForColIdx[c]);
+        return result;
+    }
+
+    /**
+     * Reads lines until a line of data is found, checks it, and points the row at it.
+     * @return false if the end of the data has been reached
+     */
+    protected boolean readDataRow(@Nonnull CsvTokenizer tokenizer, @Nonnull boolean[] nonEmptyForColIdx, @Nonnull CsvRow row)
+    throws IOException, MalformedCsvException {
+        String[] fieldForColIdx = row.fieldForColIdx;
+        while (true) {
+            int lineNumber = tokenizer.lineNumber + 1;
+            try {
+                if ( ! tokenizer.readRecord()) return false;
+                if (endOfDataRegex != null && endOfDataRegex.matcher(tokenizer.getRawRecord()).matches()) return false;
+                if (skipLinePattern != null && skipLinePattern.matcher(tokenizer.getRawRecord()).matches()) continue;
+                if (tokenizer.getFieldCount() != fieldForColIdx.length) throw new MalformedCsvException("Expected " + fieldForColIdx.length
+                    + " fields but found " + tokenizer.getFieldCount() + " fields; line was '" + tokenizer.getRawRecord() + "'");
+                for (int c = 0; c < fieldForColIdx.length; c++)
+                    if (nonEmptyForColIdx[c] && tokenizer.getFieldLength(c) == 0)
+                        throw new MalformedCsvException("Column " + c + ", field '" + fieldForColIdx[c] + "': value may not be empty");
+                row.set(tokenizer.fieldChars, tokenizer.fieldStarts, tokenizer.fieldEnds, 0, lineNumber);
+                return true;
             }
+            catch (MalformedCsvException e) { throw new MalformedCsvException(getLineNumberText(lineNumber), e); }
+        }
+    }
+
+    protected void parseDataAndCallRowHandler(
+        @Nonnull CsvTokenizer tokenizer, @Nonnull String[] fieldForColIdx, @Nonnull CsvRowHandler rowHandler
+    ) throws IOException, MalformedCsvException {
+        boolean[] nonEmptyForColIdx = getNonEmptyForColIdx(fieldForColIdx);
+        CsvRow row = new CsvRow(fieldForColIdx);
+        while (readDataRow(tokenizer, nonEmptyForColIdx, row)) {
+            try { rowHandler.processCsvRow(row); }
+            catch (MalformedCsvException e) { throw new MalformedCsvException(getLineNumberText(row.lineNumber), e); }
+        }
+    }
+
+    public void parseAndCallRowHandler(@Nonnull CsvRowHandler rowHandler, @Nonnull BufferedReader r) throws MalformedCsvException {
+        try {
+            CsvTokenizer tokenizer = newTokenizer(r);
+            parseDataAndCallRowHandler(tokenizer, readHeader(tokenizer), rowHandler);
         }
         catch (IOException e) { throw new RuntimeException(e); }
     }
 
     public void parseAndCallHandler(CsvLineHandler lineHandler, File f) throws MalformedCsvException {
+        parseAndCallRowHandler(newMapFillingRowHandler(lineHandler), f);
+    }
+
+    public void parseAndCallRowHandler(@Nonnull CsvRowHandler rowHandler, @Nonnull File f) throws MalformedCsvException {
         try {
-            try (FileInputStream is = new FileInputStream(f)) {
+            try (InputStream is = DecompressingInputStream.newForFile(f)) {
                 Reader r = new UnicodeReader(is, defaultCharset.name());
                 BufferedReader br = new BufferedReader(r);
-                parseAndCallHandler(lineHandler, br);
+                parseAndCallRowHandler(rowHandler, br);
             }
         }
         catch (FileNotFoundException e) { throw new MalformedCsvException("CSV file '"+f+"' doesn't exist"); }
@@ -174,38 +793,232 @@ public class CsvParser {
     }
     
     public void parseAndCallHandler(CsvLineHandler lineHandler, Class<?> cl) throws MalformedCsvException {
+        parseAndCallRowHandler(newMapFillingRowHandler(lineHandler), cl);
+    }
+
+    public void parseAndCallRowHandler(@Nonnull CsvRowHandler rowHandler, @Nonnull Class<?> cl) throws MalformedCsvException {
         String name = cl.getName().replaceAll("\\.", "/"); // e.g. "com/offerready/MyClass"
         try (InputStream csvStream = cl.getClassLoader().getResourceAsStream(name + ".csv")) {
             if (csvStream == null) throw new IllegalArgumentException("No CSV file for class '" + cl.getName() + "'");
-            parseAndCallHandler(lineHandler, new BufferedReader(new InputStreamReader(csvStream, defaultCharset)));
+            parseAndCallRowHandler(rowHandler, new BufferedReader(new InputStreamReader(csvStream, defaultCharset)));
         }
         catch (IOException e) { throw new RuntimeException(prefixExceptionMessage("CSV file for class " + cl, e), e); }
         catch (MalformedCsvException e) { throw new MalformedCsvException("CSV file for class " + cl, e); }
     }
 
+    /**
+     * @return the offset of the first byte after the byte order mark, if the file can be split into chunks in the default charset,
+     *         or -1 if the file is compressed, or has a byte order mark which means it must be read with a different charset
+     */
+    protected long getDataStartAfterByteOrderMark(@Nonnull FileChannel channel) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(4);
+        while (start.hasRemaining() && channel.read(start, start.position()) > 0) { }
+        byte[] b = Arrays.copyOf(start.array(), start.position());
+        if (DecompressingInputStream.getCompressionFormat(b) != CompressionFormat.none) return -1;
+        if (b.length >= 2 && ((b[0] == (byte) 0xFE && b[1] == (byte) 0xFF) || (b[0] == (byte) 0xFF && b[1] == (byte) 0xFE))) return -1;
+        if (b.length >= 2 && b[0] == 0 && b[1] == 0) return -1; // UTF-32
+        if (b.length >= 3 && b[0] == (byte) 0xEF && b[1] == (byte) 0xBB && b[2] == (byte) 0xBF)
+            return defaultCharset.equals(StandardCharsets.UTF_8) ? 3 : -1;
+        return 0;
+    }
+
+    /**
+     * The bytes of the file can only be scanned for line breaks, quotes and separators, without decoding them, if those
+     * characters are single bytes which never appear as part of other characters. This is the case for UTF-8 and
+     * charsets such as ISO-8859-1 with one byte per character.
+     */
+    protected boolean isParallelParsingPossible() {
+        if (endOfDataRegex != null) return false; // lines after the end of the data would be parsed by other threads
+        if (fieldSeparatorRegexpOrNull != null) return false;
+        if (fieldSeparator.length() != 1 || fieldSeparator.charAt(0) >= 0x80) return false;
+        if (defaultCharset.equals(StandardCharsets.UTF_8)) return true;
+        if ( ! defaultCharset.canEncode() || defaultCharset.newEncoder().maxBytesPerChar() != 1) return false;
+        String specialChars = "\r\n\"" + fieldSeparator;
+        return Arrays.equals(specialChars.getBytes(defaultCharset), specialChars.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Scans the bytes of the file once, to find where records end, without decoding or parsing them.
+     * @return the header line as the first chunk, then chunks of complete records of approximately {@link #parallelChunkBytes}
+     */
+    protected @Nonnull List<CsvChunk> findChunks(@Nonnull FileChannel channel, long dataStart) throws IOException {
+        byte separator = (byte) fieldSeparator.charAt(0);
+        long size = channel.size(), chunkStart = dataStart;
+        int lineNumber = 1, chunkFirstLineNumber = 1;
+        CsvTokenizer.State state = CsvTokenizer.State.fieldStart;
+        byte[] block = new byte[64 * 1024];
+        List<CsvChunk> result = new ArrayList<>();
+        for (long windowStart = dataStart; windowStart < size; ) {
+            MappedByteBuffer window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, 256 * 1024 * 1024));
+            while (window.hasRemaining()) {
+                long blockStart = windowStart + window.position();
+                int length = Math.min(block.length, window.remaining());
+                window.get(block, 0, length);
+                for (int i = 0; i < length; i++) {
+                    byte b = block[i];
+                    if (b == '\n') lineNumber++;
+                    if (state == CsvTokenizer.State.quoted) {
+                        if (b == '"') state = CsvTokenizer.State.quoteInQuoted;
+                        continue;
+                    }
+                    if (state == CsvTokenizer.State.quoteInQuoted) {
+                        if (b == '"') { state = CsvTokenizer.State.quoted; continue; }
+                        state = CsvTokenizer.State.unquoted;
+                    }
+                    if (b == '\n') {
+                        state = CsvTokenizer.State.fieldStart;
+                        long recordEnd = blockStart + i + 1;
+                        if (result.isEmpty() || recordEnd - chunkStart >= parallelChunkBytes) {
+                            result.add(new CsvChunk(chunkStart, recordEnd, chunkFirstLineNumber));
+                            chunkStart = recordEnd;
+                            chunkFirstLineNumber = lineNumber;
+                        }
+                    }
+                    else if (b == separator || b == '\r') state = CsvTokenizer.State.fieldStart;
+                    else if (state == CsvTokenizer.State.fieldStart && b == '"') state = CsvTokenizer.State.quoted;
+                    else state = CsvTokenizer.State.unquoted;
+                }
+            }
+            windowStart += window.capacity();
+        }
+        if (chunkStart < size || result.isEmpty()) result.add(new CsvChunk(chunkStart, size, chunkFirstLineNumber));
+        return result;
+    }
+
+    protected @Nonnull CsvTokenizer newChunkTokenizer(@Nonnull FileChannel channel, @Nonnull CsvChunk chunk) throws IOException {
+        if (chunk.end - chunk.start > Integer.MAX_VALUE)
+            throw new IOException("Record starting on line " + chunk.firstLineNumber + " is longer than " + Integer.MAX_VALUE + " bytes");
+        MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+        CsvTokenizer result = newTokenizer(new InputStreamReader(new ByteBufferInputStream(bytes), defaultCharset));
+        result.lineNumber = chunk.firstLineNumber - 1;
+        return result;
+    }
+
+    /**
+     * Parses a large file using multiple threads.
+     *    <p>
+     * The file is memory-mapped, and split into chunks of complete records (see {@link #setParallelChunkBytes(long)}),
+     * which are parsed at the same time. The same checks are done as by {@link #parseAndCallRowHandler(CsvRowHandler, File)},
+     * and error messages contain the same line numbers.
+     *    <p>
+     * If ordered is false, the handler is called from multiple threads at the same time, in no particular order,
+     * so it must be thread-safe. If ordered is true, the handler is called for one row at a time, in the order of the file,
+     * although not always from the same thread; chunks are parsed ahead, and kept in memory until the handler has processed them.
+     *    <p>
+     * Parallel parsing requires that the file uses a charset such as UTF-8 (see {@link #isParallelParsingPossible()}),
+     * that the field separator is a single ASCII character, and that no end-of-data regex has been set.
+     * Otherwise the file is parsed on the calling thread.
+     */
+    public void parseAndCallRowHandlerInParallel(@Nonnull CsvRowHandler rowHandler, @Nonnull File f, int threadCount, boolean ordered)
+    throws MalformedCsvException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long dataStart = getDataStartAfterByteOrderMark(channel);
+            if (dataStart < 0 || ! isParallelParsingPossible()) {
+                parseAndCallRowHandler(rowHandler, f);
+                return;
+            }
+
+            List<CsvChunk> chunks = findChunks(channel, dataStart);
+            String[] fieldForColIdx = readHeader(newChunkTokenizer(channel, chunks.get(0)));
+
+            ThreadPool pool = new ThreadPool();
+            pool.setThreadCount(threadCount);
+            pool.setThreadNamePrefix("CsvParser");
+            List<Runnable> deliveries = new ArrayList<>();
+            for (CsvChunk chunk : chunks.subList(1, chunks.size())) {
+                if (ordered) {
+                    BufferedRows rows = new BufferedRows(fieldForColIdx);
+                    Runnable parse = () -> {
+                        try { parseDataAndCallRowHandler(newChunkTokenizer(channel, chunk), fieldForColIdx, rows); }
+                        catch (MalformedCsvException e) { rows.exceptionOrNull = e; }
+                        catch (IOException e) { throw new RuntimeException(e); }
+                    };
+                    Runnable deliver = () -> {
+                        try { rows.callRowHandler(rowHandler); }
+                        catch (MalformedCsvException e) { throw new RuntimeException(e); }
+                        finally { rows.release(); }
+                    };
+
+                    // Don't parse too far ahead of the handler, as the parsed rows are kept in memory
+                    int maxChunksAhead = 2 * threadCount;
+                    int idx = deliveries.size();
+                    pool.addTaskWithDependencies(idx >= maxChunksAhead ? singletonList(deliveries.get(idx - maxChunksAhead)) : emptyList(), parse);
+                    pool.addTaskWithDependencies(idx > 0 ? asList(parse, deliveries.get(idx - 1)) : singletonList(parse), deliver);
+                    deliveries.add(deliver);
+                } else {
+                    pool.addTask(() -> {
+                        try { parseDataAndCallRowHandler(newChunkTokenizer(channel, chunk), fieldForColIdx, rowHandler); }
+                        catch (IOException | MalformedCsvException e) { throw new RuntimeException(e); }
+                    });
+                }
+            }
+
+            try { pool.execute(); }
+            catch (RuntimeException e) {
+                ThreadPool.unwrapException(e, MalformedCsvException.class);
+                throw e;
+            }
+        }
+        catch (NoSuchFileException e) { throw new MalformedCsvException("CSV file '"+f+"' doesn't exist"); }
+        catch (IOException e) { throw new RuntimeException(prefixExceptionMessage("CSV file '" + f + "'", e), e); }
+        catch (MalformedCsvException e) { throw new MalformedCsvException("CSV file '" + f + "'", e); }
+    }
+
+    /**
+     * Reads the header line, and returns an iterator which reads the following rows only as they are requested.
+     * The iterator should be closed if not all rows are read.
+     * The same checks are performed as by {@link #parseAndCallRowHandler(CsvRowHandler, BufferedReader)}, but errors in rows
+     * are thrown from the iterator as described in {@link CsvRowIterator}.
+     */
+    public @Nonnull CsvRowIterator parseToIterator(@Nonnull BufferedReader r) throws MalformedCsvException {
+        try { return new CsvRowIterator(r); }
+        catch (IOException e) { throw new RuntimeException(e); }
+    }
+
+    public @Nonnull CsvRowIterator parseToIterator(@Nonnull File f) throws MalformedCsvException {
+        try {
+            InputStream is = DecompressingInputStream.newForFile(f);
+            try { return parseToIterator(new BufferedReader(new UnicodeReader(is, defaultCharset.name()))); }
+            catch (RuntimeException | MalformedCsvException e) { is.close(); throw e; }
+        }
+        catch (FileNotFoundException e) { throw new MalformedCsvException("CSV file '"+f+"' doesn't exist"); }
+        catch (IOException e) { throw new RuntimeException(prefixExceptionMessage("CSV file '" + f + "'", e), e); }
+        catch (MalformedCsvException e) { throw new MalformedCsvException("CSV file '" + f + "'", e); }
+    }
+
+    /**
+     * Returns a lazy stream of the rows; operations such as limit, or findFirst, stop reading the file early.
+     * Close the stream (e.g. with try-with-resources) if not all rows are read.
+     *    <p>
+     * The {@link CsvRow} objects are re-used, so use {@link CsvRow#copy()} if rows are to be kept, e.g. collected into a list.
+     * The stream may be made parallel, in which case batches of rows are copied into memory and processed on other threads.
+     */
+    public @Nonnull Stream<CsvRow> parseToStream(@Nonnull BufferedReader r) throws MalformedCsvException {
+        CsvRowIterator iterator = parseToIterator(r);
+        return StreamSupport.stream(new CsvRowSpliterator(iterator), false).onClose(iterator::close);
+    }
+
+    public @Nonnull Stream<CsvRow> parseToStream(@Nonnull File f) throws MalformedCsvException {
+        CsvRowIterator iterator = parseToIterator(f);
+        return StreamSupport.stream(new CsvRowSpliterator(iterator), false).onClose(iterator::close);
+    }
+
     public List<Map<String, String>> parseToListOfMaps(BufferedReader r) throws MalformedCsvException {
-        ArrayOfMapsLineHandler lineHandler = new ArrayOfMapsLineHandler();
-        parseAndCallHandler(lineHandler, r);
-        return lineHandler.result;
+        ArrayOfMapsRowHandler rowHandler = new ArrayOfMapsRowHandler();
+        parseAndCallRowHandler(rowHandler, r);
+        return rowHandler.result;
     }
 
     public List<Map<String, String>> parseToListOfMaps(File f) throws MalformedCsvException {
-        ArrayOfMapsLineHandler lineHandler = new ArrayOfMapsLineHandler();
-        parseAndCallHandler(lineHandler, f);
-        return lineHandler.result;
+        ArrayOfMapsRowHandler rowHandler = new ArrayOfMapsRowHandler();
+        parseAndCallRowHandler(rowHandler, f);
+        return rowHandler.result;
     }
 
     public List<Map<String, String>> parseToListOfMaps(Class<?> cl) throws MalformedCsvException {
-        ArrayOfMapsLineHandler lineHandler = new ArrayOfMapsLineHandler();
-        parseAndCallHandler(lineHandler, cl);
-        return lineHandler.result;
-    }
-    
-    private boolean containsField(List<String> desired,String field){
-        for(String s : desired){
-                if(s.replaceAll("\"", "").equals(field)) return true;
-        }
-        return false;
+        ArrayOfMapsRowHandler rowHandler = new ArrayOfMapsRowHandler();
+        parseAndCallRowHandler(rowHandler, cl);
+        return rowHandler.result;
     }
     
     protected String getLineNumberText(int lineNumber) {
@@ -0,0 +1,230 @@
+package com.databasesandlife.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Writes CSV files, which can be read by {@link CsvParser}.
+ *    <p>
+ * Values are written into a buffer, which is written to the underlying writer when it is full.
+ * Values are only quoted if they contain the field separator, quotes or line breaks, in which case quotes are doubled, as in RFC 4180.
+ * Empty strings are written as two quotes, so that they can be told apart from null values, for example by PostgreSQL's COPY.
+ * Numbers and dates are written into the buffer directly, without creating strings.
+ * <pre>
+ *    try (CsvWriter csv = new CsvWriter(csvParser, new File("products.csv.gz"))) {
+ *        csv.writeRow("id", "name", "price");
+ *        for (Product p : products) {
+ *            csv.writeField(p.id);
+ *            csv.writeField(p.name);
+ *            csv.writeField(p.price);
+ *            csv.endRow();
+ *        }
+ *    }
+ * </pre>
+ * If the first row is written with {@link #writeRow(CharSequence...)}, it is taken to be the header, and every subsequent row
+ * must have the same number of fields.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class CsvWriter implements AutoCloseable {
+
+    protected final @Nonnull Writer writer;
+    protected final @Nonnull String fieldSeparator;
+    protected @Nonnull String lineSeparator = "\r\n";
+    protected final char[] buffer = new char[64 * 1024];
+    protected int bufferLength = 0;
+    protected int fieldCountInRow = 0, rowCount = 0;
+    protected @CheckForNull Integer headerFieldCountOrNull = null;
+
+    public CsvWriter(@Nonnull Writer writer, @Nonnull String fieldSeparator) {
+        if (fieldSeparator.isEmpty()) throw new IllegalArgumentException("Field separator may not be empty");
+        this.writer = writer;
+        this.fieldSeparator = fieldSeparator;
+    }
+
+    /** 
+     * Uses the field separator and default charset of the parser.
+     * @throws IllegalArgumentException if the parser's field separator is a regexp which doesn't match a fixed string
+     */
+    public CsvWriter(@Nonnull CsvParser format, @Nonnull OutputStream out) {
+        this(new OutputStreamWriter(out, requireFixedFieldSeparator(format).defaultCharset), format.fieldSeparator);
+    }
+
+    /** 
+     * Uses the field separator and default charset of the parser, and compresses the output if the filename ends with ".gz".
+     * @throws IllegalArgumentException if the parser's field separator is a regexp which doesn't match a fixed string
+     */
+    public CsvWriter(@Nonnull CsvParser format, @Nonnull File file) throws IOException {
+        this(requireFixedFieldSeparator(format), newFileOutputStream(file));
+    }
+
+    /** Checked before the file is created, so that an unusable format doesn't leave an empty file */
+    protected static @Nonnull CsvParser requireFixedFieldSeparator(@Nonnull CsvParser format) {
+        if (format.fieldSeparatorRegexpOrNull != null) throw new IllegalArgumentException("Cannot write CSV with field separator regexp '"
+            + format.fieldSeparatorRegexpOrNull.pattern() + "', as it does not match a fixed string");
+        return format;
+    }
+
+    protected static @Nonnull OutputStream newFileOutputStream(@Nonnull File file) throws IOException {
+        OutputStream result = new FileOutputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) return new GZIPOutputStream(result, 64 * 1024);
+            return new BufferedOutputStream(result, 64 * 1024);
+        }
+        catch (IOException e) { result.close(); throw e; }
+    }
+
+    /** Default is CR LF, as in RFC 4180 */
+    public void setLineSeparator(@Nonnull String lineSeparator) { this.lineSeparator = lineSeparator; }
+
+    public int getRowCount() { return rowCount; }
+
+    protected void flushBuffer() throws IOException {
+        writer.write(buffer, 0, bufferLength);
+        bufferLength = 0;
+    }
+
+    protected void append(char c) throws IOException {
+        if (bufferLength == buffer.length) flushBuffer();
+        buffer[bufferLength++] = c;
+    }
+
+    protected void append(@Nonnull String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) append(s.charAt(i));
+    }
+
+    protected void startField() throws IOException {
+        if (fieldCountInRow++ > 0) append(fieldSeparator);
+    }
+
+    protected boolean needsQuotes(@Nonnull CharSequence value) {
+        if (value.length() == 0) return true;
+        char separatorStart = fieldSeparator.charAt(0);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == separatorStart || c == '"' || c == '\n' || c == '\r') return true;
+        }
+        return false;
+    }
+
+    protected void appendQuoted(@Nonnull CharSequence value) throws IOException {
+        append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') append('"');
+            append(c);
+        }
+        append('"');
+    }
+
+    /** @param valueOrNull null is written as an empty value, and the empty string as <code>""</code> */
+    public void writeField(@CheckForNull CharSequence valueOrNull) throws IOException {
+        startField();
+        if (valueOrNull == null) return;
+        if (needsQuotes(valueOrNull)) {
+            appendQuoted(valueOrNull);
+        } else {
+            for (int i = 0; i < valueOrNull.length(); i++) append(valueOrNull.charAt(i));
+        }
+    }
+
+    /** Quotes the value even if it does not need quotes, e.g. <code>\.</code> which ends the data of a PostgreSQL COPY */
+    public void writeQuotedField(@Nonnull CharSequence value) throws IOException {
+        startField();
+        appendQuoted(value);
+    }
+
+    public void writeEmptyField() throws IOException {
+        startField();
+    }
+
+    /** Writes the digits of a number which is not negative */
+    protected void appendDigits(long value, int minDigits) throws IOException {
+        if (bufferLength + 20 > buffer.length) flushBuffer();
+        int digitCount = 1;
+        for (long v = value / 10; v > 0; v /= 10) digitCount++;
+        digitCount = Math.max(digitCount, minDigits);
+        for (int i = bufferLength + digitCount - 1; i >= bufferLength; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        bufferLength += digitCount;
+    }
+
+    public void writeField(long value) throws IOException {
+        startField();
+        if (value == Long.MIN_VALUE) { append(Long.toString(value)); return; }
+        if (value < 0) append('-');
+        appendDigits(Math.abs(value), 1);
+    }
+
+    public void writeField(int value) throws IOException {
+        writeField((long) value);
+    }
+
+    /**
+     * Whole numbers, such as 12.0, are written without a decimal point, directly into the buffer.
+     * Other values are written in the format of {@link Double#toString(double)}, which {@link CsvParser.CsvRow#getDouble} can read.
+     */
+    public void writeField(double value) throws IOException {
+        if (value == Math.rint(value) && Math.abs(value) < (1L << 53) && ! (value == 0 && 1 / value < 0)) {
+            writeField((long) value);
+        } else {
+            startField();
+            append(Double.toString(value));
+        }
+    }
+
+    /** Writes the date in YYYY-MM-DD format, or an empty value if it is null */
+    public void writeField(@CheckForNull LocalDate dateOrNull) throws IOException {
+        startField();
+        if (dateOrNull == null) return;
+        if (dateOrNull.getYear() < 0 || dateOrNull.getYear() > 9999) { append(dateOrNull.toString()); return; }
+        appendDigits(dateOrNull.getYear(), 4);
+        append('-');
+        appendDigits(dateOrNull.getMonthValue(), 2);
+        append('-');
+        appendDigits(dateOrNull.getDayOfMonth(), 2);
+    }
+
+    public void endRow() throws IOException {
+        if (headerFieldCountOrNull != null && fieldCountInRow != headerFieldCountOrNull)
+            throw new IllegalStateException("Row " + (rowCount + 1) + " has " + fieldCountInRow + " fields " +
+                "but header has " + headerFieldCountOrNull + " fields");
+        append(lineSeparator);
+        fieldCountInRow = 0;
+        rowCount++;
+    }
+
+    /** If this is the first row, it is taken to be the header */
+    public void writeRow(@Nonnull CharSequence... values) throws IOException {
+        if (fieldCountInRow > 0) throw new IllegalStateException("Row already has fields; call endRow() first");
+        if (headerFieldCountOrNull != null && values.length != headerFieldCountOrNull)
+            throw new IllegalStateException("Row " + (rowCount + 1) + " has " + values.length + " fields " +
+                "but header has " + headerFieldCountOrNull + " fields");
+        for (CharSequence v : values) writeField(v);
+        if (rowCount == 0) headerFieldCountOrNull = values.length;
+        endRow();
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    @Override public void close() throws IOException {
+        try { flushBuffer(); }
+        finally { writer.close(); }
+    }
+}
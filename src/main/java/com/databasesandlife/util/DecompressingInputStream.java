@@ -0,0 +1,183 @@
+package com.databasesandlife.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Reads a stream which may be compressed, decompressing it if necessary, as determined by its first bytes ("magic number").
+ *    <p>
+ * Supported formats are gzip, and zip (in which case the first file in the zip is read).
+ * Zstandard is recognized, but as no Zstandard library is available, an IOException is thrown.
+ * Other streams are read unchanged.
+ *    <p>
+ * Compressed files opened with {@link #newForFile(File)} are decompressed on a separate thread, so that decompression happens
+ * at the same time as the parsing of the decompressed data.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class DecompressingInputStream extends InputStream {
+
+    public enum CompressionFormat { none, gzip, zip, zstd }
+
+    /**
+     * Reads blocks from the source stream on a separate thread, while the previous blocks are being read from this stream.
+     */
+    public static class ReadAheadInputStream extends InputStream {
+        protected static final byte[] endOfStream = new byte[0];
+
+        protected final @Nonnull InputStream source;
+        protected final int blockSize;
+        protected final @Nonnull BlockingQueue<byte[]> blocks;
+        protected final @Nonnull Thread thread;
+        protected volatile boolean closed = false;
+        /** Thrown while reading ahead, to be thrown to the reader once it has read the blocks read before it */
+        protected volatile @CheckForNull Throwable exceptionOrNull = null;
+        protected byte[] currentBlock = null;
+        protected int currentBlockPos = 0;
+
+        public ReadAheadInputStream(@Nonnull InputStream source, int blockSize, int blockCount) {
+            this.source = source;
+            this.blockSize = blockSize;
+            this.blocks = new ArrayBlockingQueue<>(blockCount);
+            this.thread = new Thread(this::readBlocks, "ReadAheadInputStream");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        protected void readBlocks() {
+            try {
+                while ( ! closed) {
+                    byte[] block = new byte[blockSize];
+                    int length = 0;
+                    while (length < blockSize) {
+                        int read = source.read(block, length, blockSize - length);
+                        if (read < 0) break;
+                        length += read;
+                    }
+                    if (length > 0) blocks.put(length == blockSize ? block : Arrays.copyOf(block, length));
+                    if (length < blockSize) break;
+                }
+            }
+            catch (InterruptedException e) { return; } // only happens when closed
+            // Also e.g. RuntimeExceptions from a decompressor, or OutOfMemoryError, otherwise the reader would wait forever
+            catch (Throwable e) { exceptionOrNull = e; }
+            try { if ( ! closed) blocks.put(endOfStream); }
+            catch (InterruptedException ignored) { }
+        }
+
+        /** @return false if the end of the stream has been reached */
+        protected boolean ensureCurrentBlock() throws IOException {
+            if (currentBlock != null && currentBlockPos < currentBlock.length) return true;
+            if (currentBlock == endOfStream) return false;
+            if (closed) throw new IOException("Stream is closed");
+            try { currentBlock = blocks.take(); }
+            catch (InterruptedException e) { throw new IOException(e); }
+            currentBlockPos = 0;
+            if (currentBlock == endOfStream) {
+                if (exceptionOrNull instanceof Error) throw (Error) exceptionOrNull;
+                if (exceptionOrNull != null) throw new IOException(exceptionOrNull);
+                return false;
+            }
+            return true;
+        }
+
+        @Override public int read() throws IOException {
+            if ( ! ensureCurrentBlock()) return -1;
+            return currentBlock[currentBlockPos++] & 0xFF;
+        }
+
+        @Override public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if ( ! ensureCurrentBlock()) return -1;
+            int count = Math.min(len, currentBlock.length - currentBlockPos);
+            System.arraycopy(currentBlock, currentBlockPos, b, off, count);
+            currentBlockPos += count;
+            return count;
+        }
+
+        @Override public void close() throws IOException {
+            closed = true;
+            thread.interrupt();
+            try { thread.join(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            source.close();
+        }
+    }
+
+    protected static final int bufferSize = 256 * 1024;
+
+    protected final @Nonnull InputStream in;
+    protected final @Nonnull CompressionFormat format;
+
+    protected DecompressingInputStream(@Nonnull InputStream in, @Nonnull CompressionFormat format) {
+        this.in = in;
+        this.format = format;
+    }
+
+    /** @param firstBytes the first (up to) four bytes of the stream */
+    public static @Nonnull CompressionFormat getCompressionFormat(@Nonnull byte[] firstBytes) {
+        if (firstBytes.length >= 2 && firstBytes[0] == (byte) 0x1F && firstBytes[1] == (byte) 0x8B) return CompressionFormat.gzip;
+        if (firstBytes.length >= 4 && firstBytes[0] == 'P' && firstBytes[1] == 'K' && firstBytes[2] == 3 && firstBytes[3] == 4)
+            return CompressionFormat.zip;
+        if (firstBytes.length >= 4 && firstBytes[0] == (byte) 0x28 && firstBytes[1] == (byte) 0xB5
+            && firstBytes[2] == (byte) 0x2F && firstBytes[3] == (byte) 0xFD) return CompressionFormat.zstd;
+        return CompressionFormat.none;
+    }
+
+    /** The stream is closed when the returned stream is closed, or if an exception is thrown */
+    public static @Nonnull DecompressingInputStream newForInputStream(@Nonnull InputStream raw) throws IOException {
+        try {
+            BufferedInputStream buffered = new BufferedInputStream(raw, bufferSize);
+            buffered.mark(4);
+            byte[] firstBytes = new byte[4];
+            int length = 0;
+            for (int read; length < 4 && (read = buffered.read(firstBytes, length, 4 - length)) > 0; ) length += read;
+            buffered.reset();
+
+            CompressionFormat format = getCompressionFormat(Arrays.copyOf(firstBytes, length));
+            switch (format) {
+                case gzip:
+                    return new DecompressingInputStream(new GZIPInputStream(buffered, bufferSize), format);
+                case zip:
+                    ZipInputStream zip = new ZipInputStream(buffered);
+                    for (ZipEntry e = zip.getNextEntry(); e != null; e = zip.getNextEntry())
+                        if ( ! e.isDirectory()) return new DecompressingInputStream(zip, format);
+                    throw new IOException("Zip file contains no files");
+                case zstd:
+                    throw new IOException("Zstandard compressed data is not supported");
+                default:
+                    return new DecompressingInputStream(buffered, format);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    public static @Nonnull DecompressingInputStream newForFile(@Nonnull File file) throws IOException {
+        DecompressingInputStream result = newForInputStream(new FileInputStream(file));
+        if (result.format == CompressionFormat.none) return result;
+        return new DecompressingInputStream(new ReadAheadInputStream(result.in, bufferSize, 4), result.format);
+    }
+
+    public @Nonnull CompressionFormat getCompressionFormat() { return format; }
+
+    @Override public int read() throws IOException { return in.read(); }
+    @Override public int read(@Nonnull byte[] b, int off, int len) throws IOException { return in.read(b, off, len); }
+    @Override public int available() throws IOException { return in.available(); }
+    @Override public void close() throws IOException { in.close(); }
+}
@@ -234,9 +234,12 @@ public class DomParser {
         return (Element) getExpression(expression).evaluate(root, XPathConstants.NODE);
     }
 
+    /** The file may be compressed, see {@link DecompressingInputStream} */
     public static Element from(File f) throws ConfigurationException {
-        try {
-            return newDocumentBuilder().parse(f).getDocumentElement();
+        try (InputStream in = DecompressingInputStream.newForFile(f)) {
+            InputSource source = new InputSource(in);
+            source.setSystemId(f.toURI().toString()); // so that relative references in the XML are resolved against the file
+            return newDocumentBuilder().parse(source).getDocumentElement();
         }
         catch (IOException e) { throw new RuntimeException(e); }
         catch (SAXException e) { throw new ConfigurationException("File '"+f+"'", e); }
@@ -75,6 +75,9 @@ public class EmailTransaction {
     // State
     // ------------------------------------------------------------------------
     
+    /** Name of the {@link ThreadPool} resource used by {@link #addSendTasks(ThreadPool)} */
+    public static final String smtpResource = "smtp";
+
     protected final @Nonnull EmailSendingConfiguration config;
     protected final List<Message> messages = new ArrayList<>();
 
@@ -180,19 +183,28 @@ public class EmailTransaction {
         this.messages.add(msg);
     }
     
+    /**
+     * Adds tasks to send the emails to a pool which is doing other work as well.
+     * The pool must have a limit for the resource {@link #smtpResource}, so as not to overload the remote SMTP server.
+     */
+    public void addSendTasks(@Nonnull ThreadPool threads) {
+        for (Message msg : messages) {
+            threads.addTaskUsingResource(smtpResource, () -> {
+                try (Timer ignored2 = new Timer("Send email to '" + msg.getRecipients(RecipientType.TO)[0]+"'")) {
+                    Transport.send(msg);
+                }
+                catch (MessagingException e) { throw new RuntimeException(e); }
+            });
+        }
+    }
+    
     public void commit() {
         try (Timer ignored = new Timer(getClass().getSimpleName()+".commit")) {
             ThreadPool threads = new ThreadPool();
             threads.setThreadNamePrefix(getClass().getSimpleName() + ".commit");
-            threads.setThreadCount(3); // Have some parallelism but do not overload the remote SMTP server
-            for (Message msg : messages) {
-                threads.addTask(() -> {
-                    try (Timer ignored2 = new Timer("Send email to '" + msg.getRecipients(RecipientType.TO)[0]+"'")) {
-                        Transport.send(msg);
-                    }
-                    catch (MessagingException e) { throw new RuntimeException(e); }
-                });
-            }        
+            threads.setThreadCount(3);
+            threads.setResourceLimit(smtpResource, 3); // Have some parallelism but do not overload the remote SMTP server
+            addSendTasks(threads);
             threads.execute();
         }
     }
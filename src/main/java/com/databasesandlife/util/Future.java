@@ -1,10 +1,28 @@
 package com.databasesandlife.util;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
@@ -14,6 +32,15 @@ import javax.annotation.Nonnull;
  * The client must create a subclass and implement the method {@link #populate()} which will be run in the thread.
  *     <p>
  * The reason for the creation of this class is the JVM-supplied {@link java.util.concurrent.Future} object seemed too complex.
+ *     <p>
+ * By default, the calculation runs on a shared pool of threads, see {@link #getDefaultExecutor()}.
+ * If {@link #get()} is called before the calculation has started, for example because all threads in the pool are busy,
+ * then the calculation is performed in the calling thread instead; this also means a future's calculation can
+ * safely wait for other futures. To run the calculation in a new thread, as in earlier versions, use the constructor
+ * {@link #Future(Executor)} with {@link #threadPerFuture}.
+ *     <p>
+ * Futures can be combined with {@link #map(Function)}, {@link #flatMap(Function)} and {@link #all(List)},
+ * which don't use a thread while waiting for the futures they depend on.
  *
  * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
  * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
@@ -22,8 +49,20 @@ import javax.annotation.Nonnull;
 public abstract class Future<T> {
 
     T result = null;
-    Exception exception = null;
-    Thread thread;
+    Throwable exception = null;
+    protected final @Nonnull Executor executor;
+    /** Set when the calculation is claimed by a thread, so it is only performed once */
+    protected final @Nonnull AtomicBoolean started = new AtomicBoolean(false);
+    protected final @Nonnull CountDownLatch completed = new CountDownLatch(1);
+    /** Run after completion; null once completed. Synchronized on this object. */
+    protected @CheckForNull List<Runnable> completionListeners = new ArrayList<>();
+    protected final long createdNanos = System.nanoTime();
+    protected volatile long startedNanos, completedNanos;
+    /**
+     * The executor thread performing the calculation, so it can be interrupted by {@link #cancel()}; 
+     * null if the calculation is performed by the thread calling {@link #get()}. Synchronized on this object.
+     */
+    protected @CheckForNull Thread calculatingThreadOrNull = null;
     
     /** Calculate the result and return it. Must not return null. */
     protected abstract @Nonnull T populate();
@@ -32,24 +71,118 @@ public abstract class Future<T> {
 
     /** An exception occurred during the population of this future */
     public static class FuturePopulationException extends RuntimeException {
-        FuturePopulationException(@Nonnull Exception cause) { super(cause); }
+        FuturePopulationException(@Nonnull Throwable cause) { super(cause); }
     }
-    
+
+    /** Totals over all futures, to find out if futures are waiting too long for a thread */
+    public static class Metrics {
+        protected static final AtomicLong count = new AtomicLong(), queueWaitNanos = new AtomicLong(), computeNanos = new AtomicLong();
+
+        public static long getCompletedCount() { return count.get(); }
+        /** Total time between futures being created and their calculation starting */
+        public static double getTotalQueueWaitSeconds() { return queueWaitNanos.get() / 1e9; }
+        public static double getTotalComputeSeconds() { return computeNanos.get() / 1e9; }
+    }
+
+    /** Runs each calculation in a new thread */
+    public static final Executor threadPerFuture = task -> new Thread(task).start();
+
+    protected static @CheckForNull ExecutorService defaultExecutorOrNull = null;
+
+    /** Use this executor for futures created with the default constructor */
+    public static synchronized void setDefaultExecutor(@Nonnull ExecutorService executor) {
+        defaultExecutorOrNull = executor;
+    }
+
+    /** 
+     * By default, a pool of threads which end after a second of being idle, with four threads per CPU core (at least 16),
+     * as calculations often wait for databases or remote servers. As with {@link #threadPerFuture}, they are not daemon threads,
+     * so the JVM does not exit while calculations are still running; to allow that, set an executor with daemon threads
+     * with {@link #setDefaultExecutor(ExecutorService)}.
+     */
+    public static synchronized @Nonnull ExecutorService getDefaultExecutor() {
+        if (defaultExecutorOrNull == null) {
+            int threadCount = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+            AtomicInteger threadIdx = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "Future-pool-" + threadIdx.incrementAndGet());
+                    thread.setDaemon(false);
+                    return thread;
+                });
+            executor.allowCoreThreadTimeOut(true);
+            defaultExecutorOrNull = executor;
+        }
+        return defaultExecutorOrNull;
+    }
+
+    /** The calculation is run on this executor */
     @SuppressFBWarnings("SC_START_IN_CTOR")
+    public Future(@Nonnull Executor executor) {
+        this.executor = executor;
+        executor.execute(() -> runIfNotStarted(true));
+    }
+
     public Future() {
-        thread = new Thread(new Runnable() {
-            @Override public void run() { 
-                try { 
-                    T localResult = populate();
-                    synchronized (Future.this) { result = localResult; }
-                }
-                catch (Exception e) {
-                    synchronized (Future.this) { exception = e; } 
-                }
+        this(getDefaultExecutor());
+    }
+
+    /** For futures which are completed by {@link #complete(Object, Throwable)} rather than by a calculation */
+    protected Future(@Nonnull Executor executor, boolean calculate) {
+        this.executor = executor;
+        if (calculate) executor.execute(() -> runIfNotStarted(true));
+        else started.set(true);
+    }
+
+    /** @param onExecutorThread false if called by the client's thread from {@link #get()}, whose interrupt status is not ours */
+    protected void runIfNotStarted(boolean onExecutorThread) {
+        if ( ! started.compareAndSet(false, true)) return;
+        startedNanos = System.nanoTime();
+
+        Thread thread = Thread.currentThread();
+        String previousName = thread.getName();
+        thread.setName(getThreadName());
+        if (onExecutorThread) synchronized (this) { calculatingThreadOrNull = thread; }
+        try {
+            T localResult = populate();
+            complete(localResult, null);
+        }
+        // Also catch Errors, otherwise the future never completes and get() waits forever
+        catch (Throwable e) {
+            complete(null, e);
+        }
+        finally {
+            if (onExecutorThread) synchronized (this) { 
+                calculatingThreadOrNull = null;
+                Thread.interrupted(); // a pool thread must not keep the interrupt from cancel() for its next task
             }
-        }, getThreadName());
-        
-        thread.start();
+            thread.setName(previousName);
+            Metrics.count.incrementAndGet();
+            Metrics.queueWaitNanos.addAndGet(startedNanos - createdNanos);
+            Metrics.computeNanos.addAndGet(completedNanos - startedNanos);
+        }
+    }
+
+    protected void complete(@CheckForNull T localResult, @CheckForNull Throwable localException) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (completed.getCount() == 0) return; // e.g. cancelled, then the calculation finished anyway
+            result = localResult;
+            exception = localException;
+            listeners = completionListeners;
+            completionListeners = null;
+            completedNanos = System.nanoTime();
+            completed.countDown();
+        }
+        if (listeners != null) for (Runnable listener : listeners) listener.run();
+    }
+
+    /** The listener is run when the future completes, or immediately if it has already completed */
+    protected void onComplete(@Nonnull Runnable listener) {
+        synchronized (this) {
+            if (completionListeners != null) { completionListeners.add(listener); return; }
+        }
+        listener.run();
     }
     
     public static <Q> Future<Q> of(@Nonnull Supplier<Q> task) {
@@ -64,27 +197,138 @@ public abstract class Future<T> {
         };
     }
 
+    /** A future whose value comes from other futures */
+    protected static class DependentFuture<R> extends Future<R> {
+        protected DependentFuture(@Nonnull Executor executor) { super(executor, false); }
+        @Override protected @Nonnull R populate() { throw new IllegalStateException("Completed by other futures"); }
+    }
+
+    /** @return a future whose value is the result of applying the function to this future's value, when available */
+    public @Nonnull <R> Future<R> map(@Nonnull Function<? super T, R> fn) {
+        DependentFuture<R> mapped = new DependentFuture<>(executor);
+        onComplete(() -> {
+            if (exception != null) { mapped.complete(null, exception); return; }
+            executor.execute(() -> {
+                try { mapped.complete(fn.apply(result), null); }
+                catch (Throwable e) { mapped.complete(null, e); }
+            });
+        });
+        return mapped;
+    }
+
+    /** @return a future whose value is the value of the future returned by the function, when available */
+    public @Nonnull <R> Future<R> flatMap(@Nonnull Function<? super T, Future<R>> fn) {
+        DependentFuture<R> mapped = new DependentFuture<>(executor);
+        onComplete(() -> {
+            if (exception != null) { mapped.complete(null, exception); return; }
+            executor.execute(() -> {
+                try {
+                    Future<R> inner = fn.apply(result);
+                    inner.onComplete(() -> mapped.complete(inner.result, inner.exception));
+                }
+                catch (Throwable e) { mapped.complete(null, e); }
+            });
+        });
+        return mapped;
+    }
+
+    /** @return a future whose value is the list of values of the futures, in the same order; or the first exception */
+    public static @Nonnull <Q> Future<List<Q>> all(@Nonnull List<? extends Future<Q>> futures) {
+        DependentFuture<List<Q>> all = new DependentFuture<>(getDefaultExecutor());
+        if (futures.isEmpty()) { all.complete(new ArrayList<>(), null); return all; }
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        for (Future<Q> f : futures) {
+            f.onComplete(() -> {
+                if (f.exception != null) {
+                    if (failed.compareAndSet(false, true)) all.complete(null, f.exception);
+                    return;
+                }
+                if (remaining.decrementAndGet() == 0 && ! failed.get()) {
+                    List<Q> results = new ArrayList<>(futures.size());
+                    for (Future<Q> each : futures) results.add(each.result);
+                    all.complete(results, null);
+                }
+            });
+        }
+        return all;
+    }
+
     protected String getThreadName() {
         return "Future-" + getClass().getSimpleName();
     }
+
+    /** @return null if the calculation has not completed, or never started (e.g. it was cancelled first) */
+    public @CheckForNull Double getQueueWaitSecondsOrNull() {
+        return completed.getCount() > 0 || startedNanos == 0 ? null : (startedNanos - createdNanos) / 1e9;
+    }
+
+    /** @return null if the calculation has not completed, or never started (e.g. it was cancelled first) */
+    public @CheckForNull Double getComputeSecondsOrNull() {
+        return completed.getCount() > 0 || startedNanos == 0 ? null : (completedNanos - startedNanos) / 1e9;
+    }
     
-    /** Same as {@link #get()} but times out after 'seconds' seconds. */
-    public @Nonnull T getOrTimeoutAfterSeconds(float seconds) throws FutureComputationTimedOutException, FuturePopulationException {
-        try { thread.join((int) (1000000 * seconds)); }
-        catch (InterruptedException e) { throw new RuntimeException(e); }
-        
+    /**
+     * Stops the calculation: if it has not started it will not start, and if it is running its thread is interrupted.
+     * If the calculation is running in a client thread, because that thread called {@link #get()} before the calculation
+     * had started on the executor, that thread is not interrupted; the calculation runs to completion and its result is discarded.
+     * Subsequent calls to {@link #get()} throw a {@link FuturePopulationException} caused by a {@link CancellationException}.
+     * Has no effect if the calculation has already completed.
+     */
+    public void cancel() {
+        started.set(true);
+        complete(null, new CancellationException(getThreadName() + " cancelled"));
         synchronized (this) {
-            if (result == null && exception == null) throw new FutureComputationTimedOutException();
+            if (calculatingThreadOrNull != null) calculatingThreadOrNull.interrupt();
+        }
+    }
 
+    protected @Nonnull T getCompletedResult() throws FuturePopulationException {
+        synchronized (this) {
             if (exception != null) throw new FuturePopulationException(exception); // wrap exception to preserve its stack backtrace
             return result;
         }
     }
+
+    /** 
+     * Same as {@link #get()} but times out after 'seconds' seconds. 
+     * For backwards compatibility, zero seconds means wait without timeout.
+     */
+    public @Nonnull T getOrTimeoutAfterSeconds(double seconds) throws FutureComputationTimedOutException, FuturePopulationException {
+        return getOrTimeoutAfterSeconds(seconds, false);
+    }
+
+    /** Retained so that code compiled against earlier versions, which took a float, still links */
+    public @Nonnull T getOrTimeoutAfterSeconds(float seconds) throws FutureComputationTimedOutException, FuturePopulationException {
+        return getOrTimeoutAfterSeconds((double) seconds, false);
+    }
+
+    /** 
+     * Same as {@link #get()} but times out after 'seconds' seconds. 
+     * For backwards compatibility, zero seconds means wait without timeout.
+     * @param cancelOnTimeout if true, the calculation is cancelled with {@link #cancel()} if it times out
+     */
+    public @Nonnull T getOrTimeoutAfterSeconds(double seconds, boolean cancelOnTimeout)
+    throws FutureComputationTimedOutException, FuturePopulationException {
+        if (seconds == 0) return get();
+        
+        try {
+            if ( ! completed.await((long) (seconds * 1e9), TimeUnit.NANOSECONDS)) {
+                if (cancelOnTimeout) cancel();
+                throw new FutureComputationTimedOutException();
+            }
+        }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+        
+        return getCompletedResult();
+    }
     
     /** Returns the object, waiting for its computation to be completed if necessary. */
     public @Nonnull T get() {
-        try { return getOrTimeoutAfterSeconds(0); }
-        catch (FutureComputationTimedOutException e) { throw new RuntimeException("impossible", e); }
+        runIfNotStarted(false); // rather than waiting for a thread to become free
+        try { if (completed.getCount() > 0) completed.await(); }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+        return getCompletedResult();
     }
     
     /**
@@ -94,4 +338,149 @@ public abstract class Future<T> {
     public abstract static class IterableFuture<I> extends Future<Iterable<I>> implements Iterable<I> {
         @Override public Iterator<I> iterator() { return get().iterator(); }
     }
+
+    /**
+     * An iterable whose values are computed in the background, and which can be iterated while they are being computed.
+     *    <p>
+     * The populate method is run on an executor, by default in a new thread, and passes each value to the "output" consumer as soon as it is available.
+     * Values are held in a buffer of limited size; if the buffer is full, the "output" consumer blocks until the
+     * client has iterated over some values.
+     * If the populate method throws an exception, the iterator throws a {@link FuturePopulationException},
+     * after all values produced before the exception have been iterated over.
+     *    <p>
+     * Can only be iterated once. If the client stops iterating before the end, it should call {@link #close()},
+     * which interrupts the thread, and causes subsequent calls to the "output" consumer to throw an exception.
+     * <pre>
+     *   try (StreamingIterableFuture&lt;Row&gt; rows = ...) {
+     *       for (Row r : rows) { if (...) break; }
+     *   }
+     * </pre>
+     */
+    public abstract static class StreamingIterableFuture<I> implements Iterable<I>, AutoCloseable {
+
+        /** Thrown by the "output" consumer after the client has called {@link #close()} */
+        public static class StreamingIterableFutureClosedException extends RuntimeException { }
+
+        protected static final Object endMarker = new Object();
+
+        protected final @Nonnull BlockingQueue<Object> buffer;
+        /** The thread running populate, so it can be interrupted by {@link #close()}. Synchronized on this object. */
+        protected @CheckForNull Thread populatingThreadOrNull = null;
+        protected volatile boolean closed = false;
+        /** Includes Errors, so that the iterator does not end normally with truncated output */
+        protected volatile @CheckForNull Throwable exception = null;
+        protected boolean iteratorCreated = false;
+
+        /** Calculate the values and pass them to output, which may block. Values must not be null. */
+        protected abstract void populate(@Nonnull Consumer<I> output);
+
+        /**
+         * The populate method is run on the executor.
+         * Unlike {@link Future#get()}, iterating cannot fall back to running populate in the client's thread,
+         * as populate may block until the client has iterated over values, so the executor must not queue it
+         * behind tasks which wait for this iterable, such as a fixed-size pool whose threads may all be busy.
+         * For that reason the default is {@link Future#threadPerFuture}.
+         */
+        @SuppressFBWarnings("SC_START_IN_CTOR")
+        public StreamingIterableFuture(@Nonnull Executor executor, int bufferSize) {
+            buffer = new ArrayBlockingQueue<>(bufferSize);
+            executor.execute(this::runPopulate);
+        }
+
+        public StreamingIterableFuture(int bufferSize) {
+            this(threadPerFuture, bufferSize);
+        }
+
+        public StreamingIterableFuture() {
+            this(1000);
+        }
+
+        protected void runPopulate() {
+            Thread thread = Thread.currentThread();
+            String previousName = thread.getName();
+            thread.setName(getThreadName());
+            synchronized (this) { populatingThreadOrNull = thread; }
+            try {
+                if (closed) return;
+                populate(value -> {
+                    if (value == null) throw new NullPointerException("Values may not be null");
+                    put(value);
+                });
+            }
+            catch (StreamingIterableFutureClosedException ignored) { }
+            catch (Throwable e) {
+                if ( ! closed) exception = e;
+            }
+            finally {
+                try { if ( ! closed) buffer.put(endMarker); }
+                catch (InterruptedException ignored) { } // client has closed, nobody is waiting for the end
+                synchronized (this) {
+                    populatingThreadOrNull = null;
+                    Thread.interrupted(); // a pool thread must not keep the interrupt from close() for its next task
+                }
+                thread.setName(previousName);
+            }
+        }
+
+        protected String getThreadName() {
+            return "StreamingIterableFuture-" + getClass().getSimpleName();
+        }
+
+        protected void put(@Nonnull Object value) {
+            if (closed) throw new StreamingIterableFutureClosedException();
+            try { buffer.put(value); }
+            catch (InterruptedException e) { throw new StreamingIterableFutureClosedException(); }
+        }
+
+        /** Can be polled by the populate method, to stop early if the client is no longer interested in the values */
+        protected boolean isClosed() {
+            return closed;
+        }
+
+        @Override public synchronized Iterator<I> iterator() {
+            if (iteratorCreated) throw new IllegalStateException("StreamingIterableFuture can only be iterated once");
+            iteratorCreated = true;
+
+            return new Iterator<I>() {
+                @CheckForNull Object peeked = null;
+                boolean finished = false;
+
+                @Override public boolean hasNext() {
+                    if (finished) return false;
+                    if (closed) { finished = true; peeked = null; return false; }
+                    if (peeked == null) {
+                        try { peeked = buffer.take(); }
+                        catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new RuntimeException(e); }
+                    }
+                    if (peeked == endMarker) {
+                        finished = true;
+                        if (exception != null && ! closed) throw new FuturePopulationException(exception);
+                        return false;
+                    }
+                    return true;
+                }
+
+                @SuppressWarnings("unchecked")
+                @Override public I next() {
+                    if ( ! hasNext()) throw new NoSuchElementException();
+                    I result = (I) peeked;
+                    peeked = null;
+                    return result;
+                }
+            };
+        }
+
+        /** 
+         * Stops the background computation if it is still running. Has no effect if the values have all been iterated over. 
+         * Afterwards the iterator has no more values.
+         */
+        @Override public void close() {
+            closed = true;
+            synchronized (this) {
+                if (populatingThreadOrNull != null) populatingThreadOrNull.interrupt();
+            }
+            buffer.clear();
+            buffer.offer(endMarker); // wakes an iterator waiting in another thread
+        }
+    }
 }
@@ -23,7 +23,7 @@ import org.xml.sax.SAXException;
 /**
  * A temporary file which can store arbitrary data for the duration of a process.
  * If we are dealing with a 4GB XML file, we don't want lots of seldom accessed strings hanging around the heap.
- * Currently strings and XML documents may be stored.
+ * Currently strings, XML documents and byte arrays may be stored.
  *    <p>
  * Usage:
  * For each object to be stored, firstly a "container" is created and then data is appended/written to the container.
@@ -114,6 +114,49 @@ public class OutOfHeapTemporaryStorage {
         catch (IOException e) { throw new RuntimeException(e); }
     }
     
+    // ------------------------------------------------------------------------------------
+    // Byte storage
+    // ------------------------------------------------------------------------------------
+
+    public class OutOfHeapBytes {
+        protected long offset;
+        protected int byteLength;
+
+        public byte[] toByteArray() { return readBytes(this); }
+        public int getByteLength() { return byteLength; }
+        public long getOffset() { return offset; }
+    }
+
+    public synchronized OutOfHeapBytes newBytesContainer(byte[] data) {
+        try {
+            OutOfHeapBytes result = new OutOfHeapBytes();
+            result.offset = file.length();
+            result.byteLength = data.length;
+            file.seek(result.offset);
+            file.write(data);
+            return result;
+        }
+        catch (IOException e) { throw new RuntimeException(e); }
+    }
+
+    protected synchronized byte[] readBytes(OutOfHeapBytes b) {
+        return readBytes(b.offset, b.byteLength);
+    }
+
+    /** 
+     * Reads bytes written by {@link #newBytesContainer(byte[])}, for when there are too many containers to keep on the heap,
+     * so only their offsets are kept. The bytes may also be part of a container, e.g. a header.
+     */
+    public synchronized byte[] readBytes(long offset, int byteLength) {
+        try {
+            file.seek(offset);
+            byte[] result = new byte[byteLength];
+            file.readFully(result);
+            return result;
+        }
+        catch (IOException e) { throw new RuntimeException(e); }
+    }
+    
     // ------------------------------------------------------------------------------------
     // XML storage
     // ------------------------------------------------------------------------------------
@@ -1,16 +1,40 @@
 package com.databasesandlife.util;
 
-import com.databasesandlife.util.gwtsafe.IdentityHashSet;
 import org.apache.log4j.Logger;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import com.databasesandlife.util.OutOfHeapTemporaryStorage.OutOfHeapBytes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 
 /**
  * Runs a number of {@link Runnable} tasks in a number of threads (over a number of CPU cores).
@@ -46,6 +70,11 @@ import static java.util.Collections.emptyList;
  * a member of the thread pool). The thread may still participate in dependency relationships, that is to say it's possible
  * to schedule a normal task to occur after an "off pool" task has completed. See {@link #addTaskOffPool(Runnable...)} 
  * and {@link #addTaskWithDependenciesOffPool(List, Runnable...)}.
+ * Off-pool tasks run on threads which are started as needed, up to {@link #setOffPoolThreadCount(int)};
+ * each such thread runs queued off-pool tasks until there are none left, and then ends.
+ * At most {@link #setOffPoolQueueCapacity(int)} off-pool tasks wait for a thread; a thread which makes more off-pool tasks
+ * ready then waits until there is space, so that a task producing many off-pool tasks cannot use unlimited memory.
+ * On Java 21 or later, these can be virtual threads, see {@link #setOffPoolVirtualThreads(boolean)}.
  *    <p>    
  * The difference to an {@link ExecutorService} is:
  * <ul>
@@ -56,8 +85,70 @@ import static java.util.Collections.emptyList;
  * point to additional pages which require processing.<br><br>
  * <li>It is impossible to forget to "shutdown" a ThreadPool and cause a leakage of threads, as is easily possible with {@link ExecutorService}.
  * If the {@link #execute()} method is never called then no threads are ever started and the object can be garbage collected normally.
- * If the {@link #execute()} method is called then that method makes sure all threads it creates are destroyed.
+ * If the {@link #execute()} method is called then that method makes sure all threads it creates are destroyed,
+ * with one exception: if it times out (see {@link #setTimeoutSeconds(double)}), it returns without waiting for tasks
+ * which ignore being interrupted, and their threads end only when those tasks end.
  * </ul>
+ *    <p>
+ * Internally, each worker thread has its own queue of ready tasks. Tasks added by a task running on a worker thread
+ * go to the front of that worker's queue; tasks added from other threads go to a shared queue.
+ * A worker whose queue is empty takes tasks from the shared queue, or "steals" them from the back of other workers' queues.
+ * Each task counts the dependencies it is still waiting for, so that tasks can be added, started and completed
+ * without a lock on the whole pool.
+ *    <p>
+ * The order in which ready tasks are started can be changed with {@link #setSchedulingStrategy(SchedulingStrategy)}:
+ * <ul>
+ * <li>{@link SchedulingStrategy#priority} starts tasks with the highest {@link PrioritizedTask#getPriority()} first.
+ * <li>{@link SchedulingStrategy#criticalPath} starts the task with the longest chain of work after it first,
+ * so that long chains of dependent tasks are not started late, which would make the total time longer than necessary.
+ * The duration of each task is taken from {@link TaskWithEstimatedDuration}, or else from the measured durations of
+ * previous tasks of the same class, see {@link #setTaskDurationHistory(TaskDurationHistory)}.
+ * After {@link #execute()}, the predicted and actual total durations can be compared with
+ * {@link #getPredictedMakespanSecondsOrNull()} and {@link #getActualMakespanSeconds()}.
+ * </ul>
+ * Both of these strategies use a single shared queue of ready tasks, rather than one queue per worker.
+ *    <p>
+ * For crawls, which might discover millions of pages to process, the tasks can implement {@link SpillableTask}
+ * and be added with {@link #addSpillableTask(SpillableTask)}. Tasks with a key which has already been added are ignored.
+ * After {@link #setMaxSpillableTasksInMemory(int)}, further tasks are serialized to a temporary file,
+ * and are read back in batches as the tasks in memory are completed.
+ *    <p>
+ * Tasks can return results, which are passed to the tasks which depend on them, without the tasks needing
+ * to share synchronized collections:
+ * <pre>
+ *      TaskHandle&lt;Page&gt; page = pool.addTaskWithResult(() -&gt; fetch(url));
+ *      TaskHandle&lt;List&lt;Link&gt;&gt; links = pool.addTaskWithResult(page, p -&gt; p.parseLinks());
+ * </pre>
+ * See {@link TaskHandle} for when the results are released.
+ *    <p>
+ * As soon as a task throws an exception, the pool is cancelled: no further tasks are started,
+ * threads executing tasks are interrupted (unless {@link #setInterruptOnFailure(boolean)} is false),
+ * and the {@link CancellationToken} is cancelled. Long-running tasks can poll the token, or register listeners on it,
+ * for example to cancel a database statement with {@link com.databasesandlife.util.jdbc.DbTransaction#cancelExecutingStatement()}.
+ * The pool can also be cancelled with {@link #cancel()}, or after a time limit with {@link #setTimeoutSeconds(double)}.
+ * In all these cases, the first exception is the one thrown from {@link #execute()}.
+ *    <p>
+ * To find out why a pool takes as long as it does, call {@link #setMetrics(Metrics)} before adding tasks.
+ * The time each task spent blocked by dependencies, waiting to be started, and executing is recorded,
+ * and can be summarized by task class, or written as a timeline which can be viewed in Chrome's
+ * <code>chrome://tracing</code> or <a href="https://ui.perfetto.dev/">Perfetto</a>.
+ * While executing, {@link #getTaskCountsByState()} shows how many tasks are blocked, ready, queued for an off-pool thread and executing.
+ *    <p>
+ * Creating threads for each {@link #execute()} is wasteful if it's called very often for small amounts of work.
+ * In that case, create one {@link SharedWorkers} object, e.g. in a static variable, and call
+ * {@link #setSharedWorkers(SharedWorkers)} on each new ThreadPool. Then {@link #execute()} runs the tasks on those threads,
+ * which are shared fairly between all ThreadPools executing at the same time. Each ThreadPool still has its own tasks,
+ * and its own exception, which is thrown from its own {@link #execute()}.
+ *    <p>
+ * Tasks can use a named resource which has a limit on how many tasks may use it at once, for example:
+ * <pre>
+ *      pool.setResourceLimit("db", 4);
+ *      pool.setResourceLimit("smtp", 3);
+ *      pool.addTaskUsingResource("smtp", () -&gt; Transport.send(msg));
+ * </pre>
+ * A worker which takes a task whose resource is fully in use puts the task aside until a task using the resource
+ * completes, and meanwhile runs other tasks. Tasks which don't use a resource are only limited by the number of threads.
+ * This also works for off-pool tasks, see {@link #addTaskWithDependenciesOffPoolUsingResource(String, List, Runnable...)}.
  *
  * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
  * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
@@ -71,113 +162,1229 @@ public class ThreadPool {
     public static class SynchronizationPoint implements ScheduleDependencyInAnyOrder {
         @Override public void run() { }
     }
-    
+
+    /** A task which implements this is started before tasks with a lower priority, see {@link SchedulingStrategy#priority} */
+    public interface PrioritizedTask extends Runnable {
+        /** Higher numbers are started first; tasks which don't implement {@link PrioritizedTask} have priority 0 */
+        int getPriority();
+    }
+
+    /** A task which knows approximately how long it will take, see {@link SchedulingStrategy#criticalPath} */
+    public interface TaskWithEstimatedDuration extends Runnable {
+        double getEstimatedDurationSeconds();
+    }
+
+    public enum SchedulingStrategy {
+        /** Tasks are started in an arbitrary order, with the lowest overhead. This is the default. */
+        workStealing,
+        /** Tasks are started in order of {@link PrioritizedTask#getPriority()} */
+        priority,
+        /** Tasks are started in order of {@link PrioritizedTask#getPriority()}, then longest remaining critical path */
+        criticalPath,
+    }
+
+    /**
+     * Average measured durations of tasks, by task class.
+     * Store an object of this class e.g. in a static variable and pass it to multiple pools,
+     * so that a pool can use the durations measured when previous pools executed.
+     */
+    public static class TaskDurationHistory {
+        protected final Map<Class<?>, Double> averageSecondsByClass = new ConcurrentHashMap<>();
+
+        public void recordDuration(@Nonnull Class<?> taskClass, double seconds) {
+            averageSecondsByClass.merge(taskClass, seconds, (previous, latest) -> 0.8*previous + 0.2*latest);
+        }
+
+        public @CheckForNull Double getAverageSecondsOrNull(@Nonnull Class<?> taskClass) {
+            return averageSecondsByClass.get(taskClass);
+        }
+    }
+
+    /**
+     * Long-lived threads which execute the tasks of any number of {@link ThreadPool} objects,
+     * see {@link ThreadPool#setSharedWorkers(SharedWorkers)}.
+     * Each worker takes one task from each executing ThreadPool in turn, so that a ThreadPool with many tasks
+     * does not prevent the tasks of other ThreadPools from running.
+     *    <p>
+     * The threads are daemon threads, so they do not prevent the JVM from exiting.
+     * Call {@link #close()} to stop them, after which this object cannot be used any more;
+     * ThreadPools still executing then fail, see {@link #close()}.
+     *    <p>
+     * A task may itself execute a ThreadPool using the same SharedWorkers. While that ThreadPool executes,
+     * the worker running the task runs ready tasks rather than waiting, so nested ThreadPools cannot
+     * deadlock by occupying all workers.
+     */
+    public static class SharedWorkers implements AutoCloseable {
+        protected final int threadCount;
+        /** ThreadPools whose {@link ThreadPool#execute()} is running. Synchronized on this object. */
+        protected final List<ThreadPool> jobs = new ArrayList<>();
+        /** Index into {@link #jobs} of the ThreadPool from which the next task should be taken. Synchronized on this object. */
+        protected int nextJobIdx = 0;
+        protected final AtomicInteger idleWorkerCount = new AtomicInteger();
+        /** Set while synchronized on this object, so that no job is added after {@link #close()} has failed the others */
+        protected volatile boolean closed = false;
+        /** Set for threads which are workers of this object */
+        protected final ThreadLocal<Integer> workerIdxOfThread = new ThreadLocal<>();
+
+        public SharedWorkers(@Nonnull String threadNamePrefix, int threadCount) {
+            this.threadCount = threadCount;
+            for (int i = 0; i < threadCount; i++) {
+                int idx = i;
+                Thread thread = new Thread(() -> runWorker(idx), threadNamePrefix + "-thread" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        public SharedWorkers() {
+            this(SharedWorkers.class.getSimpleName(), Runtime.getRuntime().availableProcessors());
+        }
+
+        /** Must be called while synchronized on this object */
+        protected @CheckForNull ThreadPool findJobWithReadyTasksOrNull() {
+            for (int i = 0; i < jobs.size(); i++) {
+                int idx = (nextJobIdx + i) % jobs.size();
+                ThreadPool job = jobs.get(idx);
+                if ( ! job.isFinished() && job.hasReadyTasks()) {
+                    nextJobIdx = (idx + 1) % jobs.size();
+                    return job;
+                }
+            }
+            return null;
+        }
+
+        protected void runReadyTask(@Nonnull ThreadPool job, int idx) {
+            TaskWithDependencies task = job.pollReadyTask(idx);
+            if (task == null || ! job.tryAcquireResource(task)) return;
+            boolean alreadyWorker = job.workerIdx.get() != null; // helping with another task of the same pool
+            job.workerIdx.set(idx);
+            try { job.runTask(task); }
+            finally { if ( ! alreadyWorker) job.workerIdx.remove(); }
+        }
+
+        protected void runWorker(int idx) {
+            workerIdxOfThread.set(idx);
+            while ( ! closed) {
+                ThreadPool job = null;
+                synchronized (this) {
+                    idleWorkerCount.incrementAndGet();
+                    try {
+                        while ( ! closed && (job = findJobWithReadyTasksOrNull()) == null) wait();
+                    }
+                    catch (InterruptedException e) { return; }
+                    finally { idleWorkerCount.decrementAndGet(); }
+                }
+                if (job == null) return; // closed
+
+                runReadyTask(job, idx);
+            }
+        }
+
+        protected void onReadyTaskAdded() {
+            if (idleWorkerCount.get() > 0) synchronized (this) { notify(); } // one new task needs only one worker
+        }
+
+        protected void execute(@Nonnull ThreadPool job) {
+            synchronized (this) {
+                if (closed) throw new IllegalStateException(getClass().getSimpleName() + " has been closed");
+                jobs.add(job);
+                notifyAll();
+            }
+            try {
+                Integer idx = workerIdxOfThread.get();
+                if (idx != null) { helpUntilFinished(job, idx); return; }
+                synchronized (job) {
+                    while ( ! job.isFinished()) {
+                        if (job.deadlineNanosOrNull == null) { job.wait(); continue; }
+                        long remaining = job.deadlineNanosOrNull - System.nanoTime();
+                        if (remaining <= 0) { job.onTimeout(); break; }
+                        TimeUnit.NANOSECONDS.timedWait(job, remaining);
+                    }
+                }
+            }
+            catch (InterruptedException e) { job.onException(e); }
+            finally {
+                synchronized (this) { jobs.remove(job); }
+            }
+        }
+
+        /** Called on a worker executing a nested job: runs ready tasks, preferably of that job, until it is finished */
+        protected void helpUntilFinished(@Nonnull ThreadPool job, int idx) throws InterruptedException {
+            while (true) {
+                ThreadPool next;
+                synchronized (this) {
+                    while (true) {
+                        if (job.isFinished()) return;
+                        if (job.deadlineNanosOrNull != null && job.deadlineNanosOrNull - System.nanoTime() <= 0) { job.onTimeout(); return; }
+                        next = job.hasReadyTasks() ? job : findJobWithReadyTasksOrNull();
+                        if (next != null) break;
+                        idleWorkerCount.incrementAndGet();
+                        try {
+                            if (job.deadlineNanosOrNull == null) wait();
+                            else TimeUnit.NANOSECONDS.timedWait(this, job.deadlineNanosOrNull - System.nanoTime());
+                        }
+                        finally { idleWorkerCount.decrementAndGet(); }
+                    }
+                }
+                runReadyTask(next, idx);
+            }
+        }
+
+        /**
+         * Stops the workers once they have finished their current tasks.
+         * The {@link ThreadPool#execute()} of any ThreadPool still executing throws an exception,
+         * as no worker would run its remaining tasks.
+         */
+        @Override public void close() {
+            List<ThreadPool> executingJobs;
+            synchronized (this) {
+                closed = true;
+                executingJobs = new ArrayList<>(jobs);
+                notifyAll();
+            }
+            for (ThreadPool job : executingJobs)
+                job.onException(new IllegalStateException(getClass().getSimpleName() + " was closed while " + job.threadNamePrefix + " was executing"));
+        }
+    }
+
+    /**
+     * A task which returns a result, see {@link ThreadPool#addTaskWithResult(Callable)}.
+     * This is a {@link Runnable}, so it can also be used as a dependency of normal tasks.
+     *    <p>
+     * The result is retained, and can be read with {@link #get()} after {@link ThreadPool#execute()}.
+     * To free it earlier, call {@link #releaseWhenConsumed()} once all tasks which consume the result
+     * (added with the other <code>addTaskWithResult</code> methods) have been added; it is then released as soon as
+     * they have all run, so that it can be garbage collected.
+     */
+    public static class TaskHandle<T> implements Runnable {
+        protected final @Nonnull Callable<T> callable;
+        protected @CheckForNull T result = null;
+        protected boolean done = false, consumersFinal = false, released = false;
+        protected int consumerCount = 0;
+
+        protected TaskHandle(@Nonnull Callable<T> callable) { this.callable = callable; }
+
+        @Override public void run() {
+            T r;
+            try { r = callable.call(); }
+            catch (RuntimeException e) { throw e; }
+            catch (Exception e) { throw new RuntimeException(e); }
+            synchronized (this) {
+                result = r;
+                done = true;
+                releaseIfConsumed();
+            }
+        }
+
+        /** Must be called while synchronized on this object */
+        protected void releaseIfConsumed() {
+            if (done && consumersFinal && consumerCount == 0) { result = null; released = true; }
+        }
+
+        protected synchronized void addConsumer() {
+            if (consumersFinal) throw new IllegalStateException("Consumer added to " + callable + " after releaseWhenConsumed()");
+            consumerCount++;
+        }
+
+        protected synchronized T consume() {
+            T r = result;
+            consumerCount--;
+            releaseIfConsumed();
+            return r;
+        }
+
+        /**
+         * States that no more consumers will be added, so that the result is released once the existing ones
+         * have run (or immediately, if they already have), after which {@link #get()} may not be called.
+         */
+        public synchronized void releaseWhenConsumed() {
+            consumersFinal = true;
+            releaseIfConsumed();
+        }
+
+        public synchronized T get() {
+            if ( ! done) throw new IllegalStateException("Task " + callable + " has not completed");
+            if (released) throw new IllegalStateException("Result of " + callable + " has been consumed and released");
+            return result;
+        }
+
+        @Override public String toString() { return callable.toString(); }
+    }
+
+    /** 
+     * Allows long-running tasks to find out that the pool has failed or has been cancelled, see {@link ThreadPool#getCancellationToken()}.
+     */
+    public static class CancellationToken {
+        protected volatile boolean cancelled = false;
+        /** Synchronized on this object */
+        protected final List<Runnable> listeners = new ArrayList<>();
+
+        public boolean isCancelled() { return cancelled; }
+
+        public void throwIfCancelled() throws CancellationException {
+            if (cancelled) throw new CancellationException("ThreadPool has been cancelled");
+        }
+
+        /** The listener is called once, from the thread cancelling the pool; or immediately, if already cancelled */
+        public void addCancellationListener(@Nonnull Runnable listener) {
+            synchronized (this) {
+                if ( ! cancelled) { listeners.add(listener); return; }
+            }
+            listener.run();
+        }
+
+        public synchronized void removeCancellationListener(@Nonnull Runnable listener) {
+            listeners.remove(listener);
+        }
+
+        protected void cancel() {
+            List<Runnable> toNotify;
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                toNotify = new ArrayList<>(listeners);
+                listeners.clear();
+            }
+            for (Runnable listener : toNotify) {
+                try { listener.run(); }
+                catch (RuntimeException e) { Logger.getLogger(getClass()).warn("Cancellation listener failed", e); }
+            }
+        }
+    }
+
+    /** Records the timing of each task, see {@link ThreadPool#setMetrics(Metrics)} */
+    public static class Metrics {
+        public static class TaskTiming {
+            public final @Nonnull String task, taskClass, threadName;
+            public final boolean offPool;
+            /** From {@link System#nanoTime()} */
+            public final long addedNanos, readyNanos, startNanos, endNanos;
+
+            public TaskTiming(
+                @Nonnull String task, @Nonnull String taskClass, @Nonnull String threadName, boolean offPool,
+                long addedNanos, long readyNanos, long startNanos, long endNanos
+            ) {
+                this.task = task;
+                this.taskClass = taskClass;
+                this.threadName = threadName;
+                this.offPool = offPool;
+                this.addedNanos = addedNanos;
+                this.readyNanos = readyNanos;
+                this.startNanos = startNanos;
+                this.endNanos = endNanos;
+            }
+
+            public double getBlockedSeconds() { return (readyNanos - addedNanos) / 1e9; }
+            public double getQueuedSeconds() { return (startNanos - readyNanos) / 1e9; }
+            public double getExecutingSeconds() { return (endNanos - startNanos) / 1e9; }
+        }
+
+        public static class TaskClassSummary {
+            public int count = 0;
+            public double blockedSeconds = 0, queuedSeconds = 0, executingSeconds = 0;
+        }
+
+        /** Synchronized on this object */
+        protected final List<TaskTiming> timings = new ArrayList<>();
+
+        protected synchronized void record(@Nonnull TaskTiming timing) { timings.add(timing); }
+
+        public synchronized @Nonnull List<TaskTiming> getTaskTimings() { return new ArrayList<>(timings); }
+
+        /** @return total durations by task class name, ordered by descending executing time */
+        public @Nonnull Map<String, TaskClassSummary> getSummaryByTaskClass() {
+            Map<String, TaskClassSummary> summaries = new HashMap<>();
+            for (TaskTiming t : getTaskTimings()) {
+                TaskClassSummary s = summaries.computeIfAbsent(t.taskClass, c -> new TaskClassSummary());
+                s.count++;
+                s.blockedSeconds += t.getBlockedSeconds();
+                s.queuedSeconds += t.getQueuedSeconds();
+                s.executingSeconds += t.getExecutingSeconds();
+            }
+            Map<String, TaskClassSummary> result = new LinkedHashMap<>();
+            summaries.entrySet().stream()
+                .sorted(Comparator.comparingDouble(e -> -e.getValue().executingSeconds))
+                .forEach(e -> result.put(e.getKey(), e.getValue()));
+            return result;
+        }
+
+        /** @return fraction of the time between the first task starting and the last task ending, that threads were executing tasks */
+        public double getUtilisation(int threadCount) {
+            List<TaskTiming> all = getTaskTimings();
+            if (all.isEmpty()) return 0;
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE, executing = 0;
+            for (TaskTiming t : all) {
+                if (t.offPool) continue;
+                first = Math.min(first, t.startNanos);
+                last = Math.max(last, t.endNanos);
+                executing += t.endNanos - t.startNanos;
+            }
+            if (last <= first) return 0;
+            return executing / ((double) (last - first) * threadCount);
+        }
+
+        protected static void appendJsonString(@Nonnull StringBuilder out, @Nonnull String str) {
+            out.append('"');
+            for (char c : str.toCharArray()) {
+                if (c == '"' || c == '\\') out.append('\\').append(c);
+                else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                else out.append(c);
+            }
+            out.append('"');
+        }
+
+        /** 
+         * Writes the "trace event" JSON format, which can be loaded into <code>chrome://tracing</code>
+         * or <a href="https://ui.perfetto.dev/">Perfetto</a>, showing a timeline of which task executed on which thread
+         */
+        public void writeChromeTrace(@Nonnull Writer writer) throws IOException {
+            List<TaskTiming> all = getTaskTimings();
+            long origin = all.stream().mapToLong(t -> t.addedNanos).min().orElse(0);
+            Map<String, Integer> threadIds = new LinkedHashMap<>();
+            for (TaskTiming t : all) threadIds.putIfAbsent(t.threadName, threadIds.size() + 1);
+
+            StringBuilder out = new StringBuilder("[\n");
+            for (Map.Entry<String, Integer> thread : threadIds.entrySet()) {
+                out.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(thread.getValue());
+                out.append(",\"args\":{\"name\":");
+                appendJsonString(out, thread.getKey());
+                out.append("}},\n");
+            }
+            for (TaskTiming t : all) {
+                out.append("{\"name\":");
+                appendJsonString(out, t.task);
+                out.append(",\"cat\":");
+                appendJsonString(out, t.taskClass);
+                out.append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(threadIds.get(t.threadName));
+                out.append(",\"ts\":").append((t.startNanos - origin) / 1000);
+                out.append(",\"dur\":").append((t.endNanos - t.startNanos) / 1000);
+                out.append(",\"args\":{\"blockedMs\":").append((t.readyNanos - t.addedNanos) / 1_000_000);
+                out.append(",\"queuedMs\":").append((t.startNanos - t.readyNanos) / 1_000_000).append("}},\n");
+                writer.write(out.toString());
+                out.setLength(0);
+            }
+            out.append("{}]\n"); // avoids trailing comma, viewers ignore empty events
+            writer.write(out.toString());
+            writer.flush();
+        }
+    }
+
+    /**
+     * An independent task, which can be serialized to disk until it is executed, see {@link ThreadPool#addSpillableTask(SpillableTask)}.
+     * As a different object is executed after deserialization, such tasks cannot be used as dependencies of other tasks.
+     */
+    public interface SpillableTask extends Runnable, Serializable {
+        /** For example the URL to be crawled; a task is not added if a task with the same key has already been added */
+        @Nonnull String getDeduplicationKey();
+    }
+
+    /** queuedOffPool means an off-pool task is waiting for an off-pool thread, or for space in the queue of such tasks */
+    protected enum TaskState { blocked, ready, queuedOffPool, executing, done }
+
+    /** See {@link #setResourceLimit(String, int)} */
+    protected static class Resource {
+        final int limit;
+        /** Synchronized on this object */
+        int inUse = 0;
+        /** Ready tasks which could not start as the resource was fully in use. Synchronized on this object. */
+        final Queue<TaskWithDependencies> waiting = new ArrayDeque<>();
+
+        Resource(int limit) { this.limit = limit; }
+    }
+
+    /** A task which has been added to the pool, or a {@link ScheduleDependencyInAnyOrder} which other tasks depend on */
     protected static class TaskWithDependencies {
+        final @Nonnull Runnable task;
         boolean offPool;
-        @Nonnull Runnable task;
-        @Nonnull IdentityHashSet<Runnable> dependencies;
+        @CheckForNull Resource resourceOrNull;
+        boolean holdsResource = false;
+        final int priority;
+        final long sequence;
+        /** Only set if {@link #metricsOrNull} is set */
+        long addedNanos, readyNanos;
+        double criticalPathSeconds;
+        /** Cached result of {@link #getCriticalPathSeconds}, valid while {@link #dependencyGraphVersion} equals bottomLevelVersion */
+        volatile double bottomLevelSeconds;
+        volatile long bottomLevelVersion = -1;
+        volatile @Nonnull TaskState state = TaskState.blocked;
+        /** Dependencies not yet completed, plus one while the task is still being added or hasn't been added yet */
+        final @Nonnull AtomicInteger blockingDependencyCount = new AtomicInteger(1);
+        /** Tasks waiting for this one to complete, or null after it has completed. Synchronized on this object. */
+        @CheckForNull List<TaskWithDependencies> dependents = new ArrayList<>();
+
+        TaskWithDependencies(@Nonnull Runnable task, long sequence) {
+            this.task = task;
+            this.priority = (task instanceof PrioritizedTask) ? ((PrioritizedTask) task).getPriority() : 0;
+            this.sequence = sequence;
+        }
     }
-    
+
+    /** Map from long to long stored without boxing, using open addressing; see {@link #seenSpillableTaskKeys}. Not thread-safe. */
+    protected static class LongToLongHashMap {
+        /** Lengths are a power of two; a zero key means the slot is empty, so the value of key zero is stored in {@link #zeroKeyValue} */
+        protected long[] keys = new long[64], values = new long[64];
+        protected int size = 0;
+        protected boolean containsZeroKey = false;
+        protected long zeroKeyValue = 0;
+
+        public long getOrDefault(long key, long defaultValue) {
+            if (key == 0) return containsZeroKey ? zeroKeyValue : defaultValue;
+            int mask = keys.length - 1;
+            for (int i = (int) mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+                if (keys[i] == 0) return defaultValue;
+            }
+        }
+
+        public void put(long key, long value) {
+            if (key == 0) { containsZeroKey = true; zeroKeyValue = value; return; }
+            if (2 * (size + 1) > keys.length) grow();
+            if (insert(keys, values, key, value)) size++;
+        }
+
+        /** @return false if the key was already present, and its value has been replaced */
+        protected static boolean insert(@Nonnull long[] keys, @Nonnull long[] values, long key, long value) {
+            int mask = keys.length - 1;
+            for (int i = (int) mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) { values[i] = value; return false; }
+                if (keys[i] == 0) { keys[i] = key; values[i] = value; return true; }
+            }
+        }
+
+        protected void grow() {
+            long[] biggerKeys = new long[keys.length * 2], biggerValues = new long[keys.length * 2];
+            for (int i = 0; i < keys.length; i++) if (keys[i] != 0) insert(biggerKeys, biggerValues, keys[i], values[i]);
+            keys = biggerKeys;
+            values = biggerValues;
+        }
+
+        /** Spreads the bits, so that keys differing only in their high bits do not collide */
+        protected static long mix(long x) {
+            x ^= x >>> 33;
+            x *= 0xff51afd7ed558ccdL;
+            return x ^ (x >>> 33);
+        }
+    }
+
+    /** Tasks are looked up by object identity, as {@link Runnable} objects are not expected to implement equals */
+    protected static final class IdentityKey {
+        final @Nonnull Object object;
+        IdentityKey(@Nonnull Object object) { this.object = object; }
+        @Override public boolean equals(Object other) { return other instanceof IdentityKey && ((IdentityKey) other).object == object; }
+        @Override public int hashCode() { return System.identityHashCode(object); }
+    }
+
+    protected final @Nonnull Logger logger = Logger.getLogger(getClass());
     protected @Nonnull String threadNamePrefix = getClass().getSimpleName();
     protected int threadCount = Runtime.getRuntime().availableProcessors();
-    protected final IdentityHashSet<Runnable> readyTasks = new IdentityHashSet<>();
-    protected final IdentityHashSet<Runnable> executingTasks = new IdentityHashSet<>();
-    protected final Map<Runnable, List<TaskWithDependencies>> blockerTasks = new IdentityHashMap<>();
-    protected final IdentityHashSet<Runnable> blockedTasks = new IdentityHashSet<>();
-    protected final IdentityHashSet<ScheduleDependencyInAnyOrder> doneAnyOrderDependencies = new IdentityHashSet<>();
-    protected @CheckForNull Throwable exceptionOrNull = null;
+    protected @CheckForNull SharedWorkers sharedWorkersOrNull = null;
+    protected @CheckForNull Metrics metricsOrNull = null;
+    protected int maxSpillableTasksInMemory = Integer.MAX_VALUE;
+    protected int spillBatchSize = 1000;
+    protected int offPoolThreadCount = 100;
+    protected int offPoolQueueCapacity = 10_000;
+    protected boolean offPoolVirtualThreads = false;
+    protected @Nonnull SchedulingStrategy schedulingStrategy = SchedulingStrategy.workStealing;
+    protected @Nonnull TaskDurationHistory taskDurationHistory = new TaskDurationHistory();
+    protected double defaultTaskDurationSeconds = 0.001;
+    protected @CheckForNull Double predictedMakespanSecondsOrNull = null;
+    protected double actualMakespanSeconds = 0;
+
+    /** Tasks which are blocked, ready or executing, and {@link ScheduleDependencyInAnyOrder} tasks also once done */
+    protected final Map<IdentityKey, TaskWithDependencies> tasks = new ConcurrentHashMap<>();
+    /** Ready tasks added by threads which are not workers, e.g. before {@link #execute()}, or by off-pool tasks */
+    protected final Queue<TaskWithDependencies> submittedTasks = new ConcurrentLinkedQueue<>();
+    /** Ready tasks, if the {@link #schedulingStrategy} is not {@link SchedulingStrategy#workStealing} */
+    protected final Queue<TaskWithDependencies> prioritizedTasks = new PriorityBlockingQueue<>(11,
+        Comparator.<TaskWithDependencies>comparingInt(t -> -t.priority)
+            .thenComparingDouble(t -> -t.criticalPathSeconds)
+            .thenComparingLong(t -> t.sequence));
+    protected final AtomicLong taskSequence = new AtomicLong();
+    /** For {@link SchedulingStrategy#criticalPath}, incremented when a dependency is added, which may lengthen existing critical paths */
+    protected final AtomicLong dependencyGraphVersion = new AtomicLong();
+    protected final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    /** Off-pool tasks which have not yet started, as {@link #offPoolThreadCount} threads are running */
+    protected final Queue<TaskWithDependencies> offPoolTasks = new ConcurrentLinkedQueue<>();
+    /** Size of {@link #offPoolTasks}; threads waiting for it to drop below {@link #offPoolQueueCapacity} wait on offPoolTasks */
+    protected final AtomicInteger offPoolQueuedCount = new AtomicInteger();
+    protected final AtomicInteger offPoolThreadsRunning = new AtomicInteger();
+    /** Set on threads running off-pool tasks, which never wait for space in the queue, as they are the ones which empty it */
+    protected final ThreadLocal<ExecutingThreadSlot> offPoolThreadSlot = new ThreadLocal<>();
+    /** 
+     * For each 64-bit hash of a {@link SpillableTask#getDeduplicationKey()}, the offset in {@link #spillStorageOrNull}
+     * of the last key added with that hash, see {@link #addDeduplicationKey(String)}.
+     * The keys are not on the heap, as there may be many millions. Synchronized on {@link #spilledBatches}.
+     */
+    protected final LongToLongHashMap seenSpillableTaskKeys = new LongToLongHashMap();
+    /** {@link SpillableTask}s in {@link #spilledBatches} or {@link #spillBuffer}, so completing tasks can skip unspilling without a lock */
+    protected final AtomicInteger spilledTaskCount = new AtomicInteger();
+    /** {@link SpillableTask}s added to the pool and not yet completed */
+    protected final AtomicInteger spillableTasksInMemory = new AtomicInteger();
+    /** Created when the first spillable task is added, as its deduplication key is stored there */
+    protected @CheckForNull OutOfHeapTemporaryStorage spillStorageOrNull = null;
+    /** Each is a serialized List of tasks. Synchronized on this object, which also guards the other spill fields. */
+    protected final Queue<OutOfHeapBytes> spilledBatches = new ArrayDeque<>();
+    /** Tasks to be spilled, when there are enough to make a batch */
+    protected @Nonnull List<SpillableTask> spillBuffer = new ArrayList<>();
     
-    protected synchronized void onTaskCompleted(Runnable task) {
-        Logger.getLogger(getClass()).debug("--- Processing removal of " + task + ":");
-        
-        executingTasks.remove(task);
-        
-        if (exceptionOrNull != null) return;
-        
-        if (task instanceof ScheduleDependencyInAnyOrder) 
-            doneAnyOrderDependencies.add((ScheduleDependencyInAnyOrder) task);
-        
-        for (TaskWithDependencies d : blockerTasks.getOrDefault(task, emptyList())) {
-            d.dependencies.remove(task);
-            if (d.dependencies.isEmpty()) {
-                if (d.offPool) {
-                    Logger.getLogger(getClass()).debug("Will add "+d.task+" (off pool)");
-                    addTaskOffPool(d.task);
-                } else {
-                    Logger.getLogger(getClass()).debug("Will add "+d.task+" to ready tasks");
-                    readyTasks.add(d.task);
+    /** Null if this JVM does not support virtual threads (before Java 21) */
+    protected static final @CheckForNull Method startVirtualThreadMethodOrNull = findStartVirtualThreadMethodOrNull();
+
+    protected static @CheckForNull Method findStartVirtualThreadMethodOrNull() {
+        try { return Thread.class.getMethod("startVirtualThread", Runnable.class); }
+        catch (NoSuchMethodException e) { return null; }
+    }
+    /** Ready tasks added by tasks running in each worker; created by {@link #execute()} */
+    protected volatile @Nonnull List<Deque<TaskWithDependencies>> workerTasks = emptyList();
+    /** Index into {@link #workerTasks}, set for threads which are workers of this pool */
+    protected final ThreadLocal<Integer> workerIdx = new ThreadLocal<>();
+    /** Ready plus executing tasks (including off-pool tasks); when this reaches zero the work is done */
+    protected final AtomicInteger outstandingTaskCount = new AtomicInteger();
+    protected final AtomicInteger idleWorkerCount = new AtomicInteger();
+    protected volatile @CheckForNull Throwable exceptionOrNull = null;
+    protected final @Nonnull CancellationToken cancellationToken = new CancellationToken();
+    protected boolean interruptOnFailure = true;
+    protected @CheckForNull Double timeoutSecondsOrNull = null;
+    protected @CheckForNull Long deadlineNanosOrNull = null;
+    /** 
+     * For each worker, the thread while it is running a task of this pool, to interrupt it; created by {@link #execute()}.
+     * Each worker only locks its own slot, so starting and ending a task doesn't contend with other workers.
+     */
+    protected volatile @Nonnull ExecutingThreadSlot[] workerSlots = new ExecutingThreadSlot[0];
+    /** One per thread running off-pool tasks, to interrupt it; each is added once when the thread starts, not per task */
+    protected final Set<ExecutingThreadSlot> offPoolSlots = ConcurrentHashMap.newKeySet();
+
+    /** 
+     * The thread running a task of this pool in one worker or off-pool thread. Synchronized on this object, so that 
+     * an interrupt meant for a task cannot reach the thread after it has moved on to another task, perhaps of another pool.
+     */
+    protected static class ExecutingThreadSlot {
+        protected @CheckForNull Thread threadOrNull = null;
+
+        /** @return the thread which was executing, non-null if the thread is helping with a nested pool */
+        protected synchronized @CheckForNull Thread enter(@Nonnull Thread thread) {
+            Thread previous = threadOrNull;
+            threadOrNull = thread;
+            return previous;
+        }
+
+        protected synchronized void leave(@CheckForNull Thread previous) {
+            threadOrNull = previous;
+            if (previous == null) Thread.interrupted(); // don't leave the interrupt flag set for the next task run by this thread
+        }
+
+        protected synchronized void interrupt() {
+            if (threadOrNull != null) threadOrNull.interrupt();
+        }
+    }
+
+    protected boolean isFinished() {
+        return outstandingTaskCount.get() == 0 || exceptionOrNull != null;
+    }
+
+    protected void wakeAllWorkers() {
+        synchronized (this) { notifyAll(); }
+        // Workers waiting in SharedWorkers.helpUntilFinished wait on the SharedWorkers, and need to know this pool is finished
+        if (sharedWorkersOrNull != null) synchronized (sharedWorkersOrNull) { sharedWorkersOrNull.notifyAll(); }
+    }
+
+    /** Keeps the first exception, as subsequent exceptions may be caused by tasks being interrupted */
+    protected void onException(@Nonnull Throwable e) {
+        synchronized (this) {
+            if (exceptionOrNull == null) exceptionOrNull = e;
+        }
+        cancellationToken.cancel();
+        synchronized (offPoolTasks) { offPoolTasks.notifyAll(); }
+        if (interruptOnFailure) {
+            for (ExecutingThreadSlot slot : workerSlots) slot.interrupt();
+            for (ExecutingThreadSlot slot : offPoolSlots) slot.interrupt();
+        }
+        wakeAllWorkers();
+    }
+
+    protected void onTimeout() {
+        onException(new TimeoutException(threadNamePrefix + " did not complete within " + timeoutSecondsOrNull + " seconds"));
+    }
+
+    protected void runTaskOnThisThread(@Nonnull TaskWithDependencies t) throws Throwable {
+        Thread thread = Thread.currentThread();
+        Integer idx = workerIdx.get(); // null for off-pool threads
+        ExecutingThreadSlot slot = idx == null ? offPoolThreadSlot.get() : workerSlots[idx];
+        Thread previousThread = slot.enter(thread);
+        long startNanos = metricsOrNull == null ? 0 : System.nanoTime();
+        try {
+            t.task.run();
+        }
+        finally {
+            slot.leave(previousThread);
+            if (metricsOrNull != null) metricsOrNull.record(new Metrics.TaskTiming(t.task.toString(), t.task.getClass().getName(),
+                thread.getName(), t.offPool, t.addedNanos, t.readyNanos, startNanos, System.nanoTime()));
+        }
+    }
+
+    protected void startThread(@Nonnull Runnable runnable, @Nonnull String name) {
+        if (offPoolVirtualThreads && startVirtualThreadMethodOrNull != null) {
+            try {
+                Thread thread = (Thread) startVirtualThreadMethodOrNull.invoke(null, runnable);
+                thread.setName(name);
+                return;
+            }
+            catch (ReflectiveOperationException e) { throw new RuntimeException(e); }
+        }
+        new Thread(runnable, name).start();
+    }
+
+    /** @return true if the number of running off-pool threads was increased */
+    protected boolean tryReserveOffPoolThread() {
+        while (true) {
+            int running = offPoolThreadsRunning.get();
+            if (running >= offPoolThreadCount) return false;
+            if (offPoolThreadsRunning.compareAndSet(running, running + 1)) return true;
+        }
+    }
+
+    protected class OffPoolRunnable implements Runnable {
+        @Override public void run() {
+            ExecutingThreadSlot slot = new ExecutingThreadSlot();
+            offPoolThreadSlot.set(slot);
+            offPoolSlots.add(slot);
+            try { runTasks(); }
+            finally { offPoolSlots.remove(slot); }
+        }
+
+        protected void runTasks() {
+            while (true) {
+                TaskWithDependencies t = offPoolTasks.poll();
+                if (t != null && offPoolQueuedCount.getAndDecrement() == offPoolQueueCapacity)
+                    synchronized (offPoolTasks) { offPoolTasks.notifyAll(); }
+                if (t == null) {
+                    offPoolThreadsRunning.decrementAndGet();
+                    // A task might have been added after the poll, but seen this thread as still running
+                    if ( ! offPoolTasks.isEmpty() && tryReserveOffPoolThread()) continue;
+                    return;
+                }
+
+                if (exceptionOrNull != null) { onTaskCompleted(t); continue; }
+
+                t.state = TaskState.executing;
+                try {
+                    runTaskOnThisThread(t);
+                }
+                catch (Throwable e) {
+                    onException(e);
+                }
+                finally {
+                    onTaskCompleted(t);
                 }
-                blockedTasks.remove(d.task);
             }
         }
-        blockerTasks.remove(task);
+    }
 
-        Logger.getLogger(getClass()).debug(this);
+    /** Doesn't throw, as it's called while completing other tasks; if the pool has failed or the thread is interrupted, it stops waiting */
+    protected void waitForOffPoolQueueSpace() {
+        synchronized (offPoolTasks) {
+            try {
+                while (offPoolQueuedCount.get() >= offPoolQueueCapacity && exceptionOrNull == null) offPoolTasks.wait();
+            }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
     }
-    
+
+    protected void startOffPool(@Nonnull TaskWithDependencies t) {
+        t.state = TaskState.queuedOffPool;
+        if (offPoolThreadSlot.get() == null && offPoolQueuedCount.get() >= offPoolQueueCapacity) waitForOffPoolQueueSpace();
+        offPoolQueuedCount.incrementAndGet();
+        offPoolTasks.add(t);
+        if (tryReserveOffPoolThread()) startThread(new OffPoolRunnable(), threadNamePrefix + "-offPool");
+    }
+
+    /** @return true if the task doesn't need a resource or has got it, false if it's been put aside until the resource is available */
+    protected boolean tryAcquireResource(@Nonnull TaskWithDependencies t) {
+        Resource r = t.resourceOrNull;
+        if (r == null || t.holdsResource) return true;
+        synchronized (r) {
+            if (r.inUse < r.limit) { r.inUse++; t.holdsResource = true; return true; }
+            r.waiting.add(t);
+            return false;
+        }
+    }
+
+    /** The resource is passed directly to the next waiting task, if there is one */
+    protected void releaseResource(@Nonnull TaskWithDependencies t) {
+        Resource r = t.resourceOrNull;
+        if (r == null || ! t.holdsResource) return;
+        TaskWithDependencies next;
+        synchronized (r) {
+            next = r.waiting.poll();
+            if (next == null) r.inUse--;
+            else next.holdsResource = true;
+        }
+        if (next != null) startOrEnqueue(next);
+    }
+
+    protected void startOrEnqueue(@Nonnull TaskWithDependencies t) {
+        if (t.offPool) {
+            if ( ! tryAcquireResource(t)) return;
+            logger.debug("Will start " + t.task + " (off pool)");
+            startOffPool(t);
+        } else {
+            t.state = TaskState.ready;
+            Integer idx = workerIdx.get();
+            if (schedulingStrategy == SchedulingStrategy.criticalPath) t.criticalPathSeconds = getCriticalPathSeconds(t);
+            if (schedulingStrategy != SchedulingStrategy.workStealing) prioritizedTasks.add(t);
+            else if (idx != null) workerTasks.get(idx).addFirst(t);
+            else submittedTasks.add(t);
+            // One new task needs only one worker: notify() rather than notifyAll(), so that the other idle workers
+            // don't all wake and contend for it. All workers are woken with notifyAll() on failure or when all work is done.
+            if (sharedWorkersOrNull != null) sharedWorkersOrNull.onReadyTaskAdded();
+            else if (idleWorkerCount.get() > 0) synchronized (this) { notify(); }
+        }
+    }
+
+    /** Called when a task has no more blocking dependencies */
+    protected void onTaskReady(@Nonnull TaskWithDependencies t) {
+        outstandingTaskCount.incrementAndGet();
+        if (metricsOrNull != null) t.readyNanos = System.nanoTime();
+        startOrEnqueue(t);
+    }
+
+    protected void onTaskCompleted(@Nonnull TaskWithDependencies t) {
+        logger.debug("--- Processing removal of " + t.task);
+
+        final List<TaskWithDependencies> dependents;
+        synchronized (t) {
+            t.state = TaskState.done;
+            dependents = t.dependents;
+            t.dependents = null;
+        }
+        releaseResource(t);
+        if ( ! (t.task instanceof ScheduleDependencyInAnyOrder)) tasks.remove(new IdentityKey(t.task), t);
+        if (t.task instanceof SpillableTask && spillableTasksInMemory.decrementAndGet() <= maxSpillableTasksInMemory / 2
+                && spilledTaskCount.get() > 0 && exceptionOrNull == null)
+            unspillBatch();
+
+        if (exceptionOrNull == null && dependents != null)
+            for (TaskWithDependencies d : dependents)
+                if (d.blockingDependencyCount.decrementAndGet() == 0)
+                    onTaskReady(d);
+
+        if (outstandingTaskCount.decrementAndGet() == 0) wakeAllWorkers();
+    }
+
+    /** Overridden by tests, to simulate keys whose hashes collide */
+    protected long hashDeduplicationKey(@Nonnull String key) {
+        return hash64(key);
+    }
+
+    protected static long hash64(@Nonnull String str) {
+        long result = 0xcbf29ce484222325L; // FNV-1a
+        for (int i = 0; i < str.length(); i++) {
+            result ^= str.charAt(i);
+            result *= 0x100000001b3L;
+        }
+        return result;
+    }
+
+    /**
+     * Each key is stored as the offset of the previous key with the same hash (or -1), the length, and the UTF-8 bytes.
+     * Only if the hash of a new key matches are the keys with that hash read, so that distinct keys are never
+     * considered duplicates. Must be called while synchronized on {@link #spilledBatches}.
+     * @return false if the key has already been added
+     */
+    protected boolean addDeduplicationKey(@Nonnull String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hashDeduplicationKey(key);
+        long lastOffsetWithHash = seenSpillableTaskKeys.getOrDefault(hash, -1);
+        for (long offset = lastOffsetWithHash; offset != -1; ) {
+            ByteBuffer header = ByteBuffer.wrap(spillStorageOrNull.readBytes(offset, 12));
+            long previousOffsetWithHash = header.getLong();
+            int length = header.getInt();
+            if (length == keyBytes.length && Arrays.equals(spillStorageOrNull.readBytes(offset + 12, length), keyBytes)) return false;
+            offset = previousOffsetWithHash;
+        }
+
+        if (spillStorageOrNull == null) spillStorageOrNull = new OutOfHeapTemporaryStorage();
+        ByteBuffer record = ByteBuffer.allocate(12 + keyBytes.length);
+        record.putLong(lastOffsetWithHash).putInt(keyBytes.length).put(keyBytes);
+        seenSpillableTaskKeys.put(hash, spillStorageOrNull.newBytesContainer(record.array()).getOffset());
+        return true;
+    }
+
+    /** Must be called while synchronized on {@link #spilledBatches} */
+    protected void spill(@Nonnull SpillableTask task) {
+        outstandingTaskCount.incrementAndGet(); // so the pool does not finish while spilled tasks remain
+        spilledTaskCount.incrementAndGet();
+        spillBuffer.add(task);
+        if (spillBuffer.size() < spillBatchSize) return;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) { out.writeObject(spillBuffer); }
+            if (spillStorageOrNull == null) spillStorageOrNull = new OutOfHeapTemporaryStorage();
+            spilledBatches.add(spillStorageOrNull.newBytesContainer(bytes.toByteArray()));
+            spillBuffer = new ArrayList<>();
+        }
+        catch (IOException e) { throw new RuntimeException("Cannot serialize " + task.getClass(), e); }
+    }
+
+    /** Moves the oldest spilled batch, or if there is none the unspilled buffer, into memory */
+    @SuppressWarnings("unchecked")
+    protected void unspillBatch() {
+        List<SpillableTask> batch;
+        synchronized (spilledBatches) {
+            // Another thread might have just moved a batch into memory
+            if (spillableTasksInMemory.get() > maxSpillableTasksInMemory / 2) return;
+
+            OutOfHeapBytes bytes = spilledBatches.poll();
+            if (bytes != null) {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    batch = (List<SpillableTask>) in.readObject();
+                }
+                catch (IOException | ClassNotFoundException e) { throw new RuntimeException(e); }
+            } else {
+                batch = spillBuffer;
+                spillBuffer = new ArrayList<>();
+            }
+            spillableTasksInMemory.addAndGet(batch.size());
+            spilledTaskCount.addAndGet(-batch.size());
+        }
+        for (SpillableTask task : batch) {
+            addTask(task);
+            outstandingTaskCount.decrementAndGet(); // counted when spilled; addTask has counted it again
+        }
+    }
+
+    protected double getEstimatedDurationSeconds(@Nonnull TaskWithDependencies t) {
+        if (t.task instanceof TaskWithEstimatedDuration) return ((TaskWithEstimatedDuration) t.task).getEstimatedDurationSeconds();
+        Double measured = taskDurationHistory.getAverageSecondsOrNull(t.task.getClass());
+        if (measured != null) return measured;
+        return defaultTaskDurationSeconds;
+    }
+
+    protected @Nonnull List<TaskWithDependencies> getDependents(@Nonnull TaskWithDependencies t) {
+        synchronized (t) { return t.dependents == null ? emptyList() : new ArrayList<>(t.dependents); }
+    }
+
+    /**
+     * @return the estimated duration of this task plus the longest chain of tasks which depend on it, 
+     * as far as those tasks have already been added.
+     *    <p>
+     * The result for each task is cached until a dependency is next added, so that while the dependency graph
+     * does not change, each task's value is calculated once, and not once for every task which becomes ready before it.
+     */
+    protected double getCriticalPathSeconds(@Nonnull TaskWithDependencies task) {
+        long version = dependencyGraphVersion.get();
+
+        // Depth-first without recursion, as chains of dependent tasks may be very long
+        Deque<TaskWithDependencies> stack = new ArrayDeque<>();
+        stack.push(task);
+        while ( ! stack.isEmpty()) {
+            TaskWithDependencies t = stack.peek();
+            if (t.bottomLevelVersion == version) { stack.pop(); continue; }
+            double longestAfter = 0;
+            boolean allDependentsKnown = true;
+            for (TaskWithDependencies d : getDependents(t)) {
+                if (d.bottomLevelVersion == version) longestAfter = Math.max(longestAfter, d.bottomLevelSeconds);
+                else { allDependentsKnown = false; stack.push(d); }
+            }
+            if (allDependentsKnown) {
+                t.bottomLevelSeconds = getEstimatedDurationSeconds(t) + longestAfter;
+                t.bottomLevelVersion = version;
+                stack.pop();
+            }
+        }
+        return task.bottomLevelSeconds;
+    }
+
+    /**
+     * Tasks added before {@link #execute()} became ready before the tasks depending on them were added,
+     * so calculate their critical paths again, now the dependency graph is known.
+     */
+    protected void predictMakespan() {
+        List<TaskWithDependencies> ready = new ArrayList<>();
+        for (TaskWithDependencies t; (t = prioritizedTasks.poll()) != null; ) ready.add(t);
+        double longestPath = 0;
+        for (TaskWithDependencies t : ready) {
+            t.criticalPathSeconds = getCriticalPathSeconds(t);
+            longestPath = Math.max(longestPath, t.criticalPathSeconds);
+        }
+        prioritizedTasks.addAll(ready);
+
+        double totalWork = 0;
+        for (TaskWithDependencies t : tasks.values()) if (t.state != TaskState.done) totalWork += getEstimatedDurationSeconds(t);
+
+        // Neither the longest chain, nor the work spread evenly over all threads, can be done any faster
+        predictedMakespanSecondsOrNull = Math.max(longestPath, totalWork / getWorkerCount());
+    }
+
+    protected @CheckForNull TaskWithDependencies pollReadyTask(int idx) {
+        if (schedulingStrategy != SchedulingStrategy.workStealing) return prioritizedTasks.poll();
+
+        List<Deque<TaskWithDependencies>> queues = workerTasks;
+
+        TaskWithDependencies result = queues.get(idx).pollFirst();
+        if (result != null) return result;
+
+        result = submittedTasks.poll();
+        if (result != null) return result;
+
+        for (int i = 1; i < queues.size(); i++) {
+            result = queues.get((idx + i) % queues.size()).pollLast();
+            if (result != null) return result;
+        }
+
+        return null;
+    }
+
+    protected boolean hasReadyTasks() {
+        if ( ! submittedTasks.isEmpty()) return true;
+        if ( ! prioritizedTasks.isEmpty()) return true;
+        for (Deque<TaskWithDependencies> q : workerTasks) if ( ! q.isEmpty()) return true;
+        return false;
+    }
+
     protected class RunnerRunnable implements Runnable {
+        protected final int idx;
+
+        public RunnerRunnable(int idx) { this.idx = idx; }
+
         @Override public void run() {
+            workerIdx.set(idx);
             while (true) {
-                final @CheckForNull Runnable nextTaskOrNull;
-                synchronized (ThreadPool.this) {
-                    if (executingTasks.isEmpty() && readyTasks.isEmpty()) break; // It's finished successfully
-                    if (exceptionOrNull != null) break;  // It's failed, no point continuing
-                    nextTaskOrNull = readyTasks.isEmpty() ? null : readyTasks.iterator().next();
-                    if (nextTaskOrNull != null) { readyTasks.remove(nextTaskOrNull); executingTasks.add(nextTaskOrNull); }
-                }
-                
-                if (nextTaskOrNull != null) {
-                    try {
-                        nextTaskOrNull.run(); 
-                    }
-                    // Also catch e.g. StackOverflowExceptions here, 
-                    // otherwise ThreadPool.execute appears to "succeed" but stuff that should have happened has not happened.
-                    catch (Throwable e) {
-                        synchronized (ThreadPool.this) {
-                            exceptionOrNull = e;
+                if (isFinished()) return;
+
+                TaskWithDependencies nextTask = pollReadyTask(idx);
+                if (nextTask == null) {
+                    // Other tasks are running, and they might produce lots more tasks,
+                    // so wait until a task is added or all work is done.
+                    synchronized (ThreadPool.this) {
+                        idleWorkerCount.incrementAndGet();
+                        try {
+                            while ( ! isFinished() && ! hasReadyTasks()) ThreadPool.this.wait();
                         }
+                        catch (InterruptedException ignored) { }
+                        finally { idleWorkerCount.decrementAndGet(); }
                     }
-                    finally {
-                        onTaskCompleted(nextTaskOrNull);
-                    }
-                } else {
-                    // it might be that other tasks are running, and they will produce lots more tasks
-                    // so keep the thread alive and polling until all work is done.
-                    try { Thread.sleep(10); }
-                    catch (InterruptedException ignored) { }
+                    continue;
                 }
+                if ( ! tryAcquireResource(nextTask)) continue;
+
+                runTask(nextTask);
             }
         }
     }
+
+    protected void runTask(@Nonnull TaskWithDependencies t) {
+        t.state = TaskState.executing;
+        boolean recordDuration = schedulingStrategy == SchedulingStrategy.criticalPath;
+        long startNanos = recordDuration ? System.nanoTime() : 0;
+        try {
+            runTaskOnThisThread(t);
+            if (recordDuration) taskDurationHistory.recordDuration(t.task.getClass(), (System.nanoTime() - startNanos) / 1e9);
+        }
+        // Also catch e.g. StackOverflowExceptions here, 
+        // otherwise ThreadPool.execute appears to "succeed" but stuff that should have happened has not happened.
+        catch (Throwable e) {
+            onException(e);
+        }
+        finally {
+            onTaskCompleted(t);
+        }
+    }
     
     public void setThreadCount(int count) { threadCount = count; }
     public void setThreadNamePrefix(String prefix) { threadNamePrefix = prefix; }
-    
-    public synchronized void addTaskWithDependencies(List<? extends Runnable> dependencies, Runnable... after) {
-        List<Runnable> stillScheduledDependencies = dependencies.stream()
-            .filter(dep -> dep instanceof ScheduleDependencyInAnyOrder ||
-                executingTasks.contains(dep) || readyTasks.contains(dep) || blockedTasks.contains(dep))
-            .filter(dep -> ! (dep instanceof ScheduleDependencyInAnyOrder && doneAnyOrderDependencies.contains((ScheduleDependencyInAnyOrder) dep)))
-            .collect(Collectors.toList());
-
-        if (stillScheduledDependencies.isEmpty()) {
-            readyTasks.addAll(after);
+
+    /** Whether threads executing tasks are interrupted when a task fails or the pool is cancelled; true by default */
+    public void setInterruptOnFailure(boolean interrupt) { interruptOnFailure = interrupt; }
+
+    /** 
+     * If {@link #execute()} takes longer than this, the pool is cancelled and it throws a {@link TimeoutException} (wrapped).
+     * It does so without waiting for running tasks to end: tasks which ignore being interrupted keep running, and
+     * keep their threads, after execute() has thrown, so they must not modify state which the caller then uses.
+     */
+    public void setTimeoutSeconds(double seconds) { timeoutSecondsOrNull = seconds; }
+
+    /** Tasks can poll this, or add listeners to it, to stop work early if the pool has failed */
+    public @Nonnull CancellationToken getCancellationToken() { return cancellationToken; }
+
+    /** 
+     * When more {@link SpillableTask}s than this are in memory, further ones are written to a temporary file.
+     * By default they are always kept in memory.
+     */
+    public void setMaxSpillableTasksInMemory(int max) {
+        if (max < 1) throw new IllegalArgumentException("At least one spillable task must be in memory, otherwise none would run");
+        maxSpillableTasksInMemory = max;
+    }
+
+    /** Number of {@link SpillableTask}s written to, and read back from, the temporary file at once; default 1000 */
+    public void setSpillBatchSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("Spill batch size must be at least 1");
+        spillBatchSize = size;
+    }
+
+    /** 
+     * Adds the task, unless a task with the same {@link SpillableTask#getDeduplicationKey()} has already been added.
+     * The keys are written to a temporary file, and only their 64-bit hashes are kept in memory.
+     * @return false if the task was a duplicate and was not added
+     */
+    public boolean addSpillableTask(@Nonnull SpillableTask task) {
+        synchronized (spilledBatches) {
+            if ( ! addDeduplicationKey(task.getDeduplicationKey())) return false;
+
+            // Once tasks have been spilled, spill newer ones too, so that tasks are executed roughly in the order added
+            if (spillableTasksInMemory.get() >= maxSpillableTasksInMemory || ! spilledBatches.isEmpty() || ! spillBuffer.isEmpty()) {
+                spill(task);
+                return true;
+            }
+            spillableTasksInMemory.incrementAndGet();
+        }
+        addTask(task);
+        return true;
+    }
+
+    /** Record the timing of each task into this object; must be called before tasks are added */
+    public void setMetrics(@Nonnull Metrics metrics) { metricsOrNull = metrics; }
+
+    /** @return the number of tasks currently in each state, for monitoring while the pool executes */
+    public @Nonnull Map<String, Integer> getTaskCountsByState() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (TaskState state : TaskState.values()) if (state != TaskState.done) result.put(state.name(), 0);
+        for (TaskWithDependencies t : tasks.values()) if (t.state != TaskState.done) result.merge(t.state.name(), 1, Integer::sum);
+        result.put("idleWorkers", sharedWorkersOrNull == null ? idleWorkerCount.get() : sharedWorkersOrNull.idleWorkerCount.get());
+        return result;
+    }
+
+    /** Stops starting new tasks and interrupts executing tasks; {@link #execute()} then throws a {@link CancellationException} (wrapped) */
+    public void cancel() {
+        onException(new CancellationException(threadNamePrefix + " was cancelled"));
+    }
+
+    /** Execute tasks on these threads, instead of starting new threads; {@link #setThreadCount(int)} is then ignored */
+    public void setSharedWorkers(@Nonnull SharedWorkers workers) { sharedWorkersOrNull = workers; }
+
+    protected int getWorkerCount() {
+        return sharedWorkersOrNull == null ? threadCount : sharedWorkersOrNull.threadCount;
+    }
+
+    /** 
+     * Maximum number of threads running off-pool tasks at once; further off-pool tasks wait until a thread is free.
+     * Default 100. Off-pool tasks which wait for each other need at least as many threads as tasks waiting at once.
+     */
+    public void setOffPoolThreadCount(int count) {
+        if (count < 1) throw new IllegalArgumentException("Off-pool thread count must be at least 1");
+        offPoolThreadCount = count;
+    }
+
+    /**
+     * Maximum number of off-pool tasks waiting for a free thread; default 10k.
+     * A thread (other than one running off-pool tasks) which makes another off-pool task ready, for example by adding it,
+     * waits until the queue has space. Use {@link Integer#MAX_VALUE} for an unbounded queue.
+     */
+    public void setOffPoolQueueCapacity(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Off-pool queue capacity must be at least 1");
+        offPoolQueueCapacity = capacity;
+    }
+
+    /** 
+     * Run off-pool tasks on virtual threads, if this JVM supports them (Java 21 or later), otherwise normal threads are used.
+     * Virtual threads are suitable for large numbers of off-pool tasks which mainly wait on I/O.
+     */
+    public void setOffPoolVirtualThreads(boolean virtual) {
+        if (virtual && startVirtualThreadMethodOrNull == null) logger.info("Virtual threads not supported on this JVM, will use normal threads");
+        offPoolVirtualThreads = virtual;
+    }
+
+    public static boolean isVirtualThreadSupported() { return startVirtualThreadMethodOrNull != null; }
+
+    /** Must be called before any tasks are added */
+    public void setSchedulingStrategy(@Nonnull SchedulingStrategy strategy) {
+        if ( ! tasks.isEmpty()) throw new IllegalStateException("Scheduling strategy must be set before tasks are added");
+        schedulingStrategy = strategy;
+    }
+
+    /** Durations measured in this pool are added to this history, and it is used to estimate durations for {@link SchedulingStrategy#criticalPath} */
+    public void setTaskDurationHistory(@Nonnull TaskDurationHistory history) { taskDurationHistory = history; }
+
+    /** For {@link SchedulingStrategy#criticalPath}, tasks whose duration is not known are assumed to take this long */
+    public void setDefaultTaskDurationSeconds(double seconds) { defaultTaskDurationSeconds = seconds; }
+
+    /**
+     * For {@link SchedulingStrategy#criticalPath}, the predicted duration of {@link #execute()}, 
+     * considering the tasks which had been added before it was called. 
+     * Null if another strategy is used or execute has not been called.
+     */
+    public @CheckForNull Double getPredictedMakespanSecondsOrNull() { return predictedMakespanSecondsOrNull; }
+
+    /** How long the last call to {@link #execute()} took */
+    public double getActualMakespanSeconds() { return actualMakespanSeconds; }
+
+    /**
+     * Allow at most this many tasks using this resource to run at once.
+     * Must be called before tasks using the resource are added.
+     */
+    public void setResourceLimit(@Nonnull String resource, int maxConcurrentTasks) {
+        if (maxConcurrentTasks < 1) throw new IllegalArgumentException("Resource '" + resource + "' must have a limit of at least 1");
+        resources.put(resource, new Resource(maxConcurrentTasks));
+    }
+
+    protected @Nonnull Resource getResource(@Nonnull String resource) {
+        Resource result = resources.get(resource);
+        if (result == null) throw new IllegalArgumentException("Resource '" + resource + "' has no limit: call setResourceLimit first");
+        return result;
+    }
+
+    /** @return the object representing the task, which is already registered in {@link #tasks} */
+    protected @Nonnull TaskWithDependencies newTask(@Nonnull Runnable task, boolean offPool, @CheckForNull Resource resourceOrNull) {
+        if (task instanceof ScheduleDependencyInAnyOrder) {
+            // Reuse the object, if tasks depending on this task have already been added
+            TaskWithDependencies result = tasks.compute(new IdentityKey(task), (key, existing) ->
+                existing == null || existing.state == TaskState.done ? new TaskWithDependencies(task, taskSequence.incrementAndGet()) : existing);
+            result.offPool = offPool;
+            result.resourceOrNull = resourceOrNull;
+            if (metricsOrNull != null) result.addedNanos = System.nanoTime();
+            return result;
         } else {
-            for (Runnable job : after) {
-                blockedTasks.add(job);
+            TaskWithDependencies result = new TaskWithDependencies(task, taskSequence.incrementAndGet());
+            result.offPool = offPool;
+            result.resourceOrNull = resourceOrNull;
+            if (metricsOrNull != null) result.addedNanos = System.nanoTime();
+            tasks.put(new IdentityKey(task), result);
+            return result;
+        }
+    }
 
-                TaskWithDependencies d = new TaskWithDependencies();
-                d.task = job;
-                d.dependencies = new IdentityHashSet<>(stillScheduledDependencies);
+    protected void addTaskWithDependencies(
+        @Nonnull List<? extends Runnable> dependencies, boolean offPool, @CheckForNull String resourceOrNull, @Nonnull Runnable... after
+    ) {
+        Resource resource = resourceOrNull == null ? null : getResource(resourceOrNull);
+        for (Runnable job : after) {
+            TaskWithDependencies d = newTask(job, offPool, resource);
 
-                for (Runnable dep : stillScheduledDependencies) {
-                    blockerTasks.putIfAbsent(dep, new ArrayList<>());
-                    blockerTasks.get(dep).add(d);
+            for (Runnable dep : dependencies) {
+                // If a dependency cannot be found it is assumed to be already done,
+                // unless it can be scheduled in any order, in which case it might not have been added yet.
+                TaskWithDependencies blocker = (dep instanceof ScheduleDependencyInAnyOrder)
+                    ? tasks.computeIfAbsent(new IdentityKey(dep), key -> new TaskWithDependencies(dep, taskSequence.incrementAndGet()))
+                    : tasks.get(new IdentityKey(dep));
+                if (blocker == null) continue;
+                synchronized (blocker) {
+                    if (blocker.dependents == null) continue; // already done
+                    blocker.dependents.add(d);
+                    d.blockingDependencyCount.incrementAndGet();
                 }
+                if (schedulingStrategy == SchedulingStrategy.criticalPath) dependencyGraphVersion.incrementAndGet();
             }
+
+            // Now all dependencies are registered, remove the "+1" meaning "still being added"
+            if (d.blockingDependencyCount.decrementAndGet() == 0) onTaskReady(d);
         }
     }
 
+    public void addTaskWithDependencies(List<? extends Runnable> dependencies, Runnable... after) {
+        addTaskWithDependencies(dependencies, false, null, after);
+    }
+
     /** @return the runnable that's been scheduled for execution, as convenience */
     public @Nonnull <R extends Runnable> R addTaskWithDependencies(@Nonnull List<? extends Runnable> dependencies, @Nonnull R after) {
         addTaskWithDependencies(dependencies, new Runnable[] { after });
@@ -185,8 +1392,7 @@ public class ThreadPool {
     }
 
     public void addTask(Runnable... tasks) {
-        for (Runnable r : tasks)
-            addTaskWithDependencies(emptyList(), r);
+        addTaskWithDependencies(emptyList(), tasks);
     }
 
     /** @return the runnable that's been scheduled for execution, as convenience */
@@ -204,23 +1410,8 @@ public class ThreadPool {
      * Intended for CPU-bound thread pools which require a task to be completed which does not 
      * consume CPU for example an HTTP request.
      */
-    public synchronized void addTaskOffPool(Runnable... tasks) {
-        for (Runnable t : tasks) {
-            executingTasks.add(t);
-            new Thread(() -> {
-                try {
-                    t.run();
-                }
-                catch (Exception e) {
-                    synchronized (ThreadPool.this) {
-                        exceptionOrNull = e;
-                    }
-                }
-                finally {
-                    onTaskCompleted(t);
-                }
-            }).start();
-        }
+    public void addTaskOffPool(Runnable... tasks) {
+        addTaskWithDependencies(emptyList(), true, null, tasks);
     }
 
     /** @return the runnable that's been scheduled for execution, as convenience */
@@ -229,30 +1420,8 @@ public class ThreadPool {
         return task;
     }
     
-    public synchronized void addTaskWithDependenciesOffPool(List<? extends Runnable> dependencies, Runnable... after) {
-        List<Runnable> stillScheduledDependencies = dependencies.stream()
-            .filter(dep -> dep instanceof ScheduleDependencyInAnyOrder || 
-                executingTasks.contains(dep) || readyTasks.contains(dep) || blockedTasks.contains(dep))
-            .filter(dep -> ! (dep instanceof ScheduleDependencyInAnyOrder && doneAnyOrderDependencies.contains((ScheduleDependencyInAnyOrder) dep)))
-            .collect(Collectors.toList());
-
-        if (stillScheduledDependencies.isEmpty()) {
-            addTaskOffPool(after);
-        } else {
-            for (Runnable job : after) {
-                blockedTasks.add(job);
-
-                TaskWithDependencies d = new TaskWithDependencies();
-                d.offPool = true;
-                d.task = job;
-                d.dependencies = new IdentityHashSet<>(stillScheduledDependencies);
-
-                for (Runnable dep : stillScheduledDependencies) {
-                    blockerTasks.putIfAbsent(dep, new ArrayList<>());
-                    blockerTasks.get(dep).add(d);
-                }
-            }
-        }
+    public void addTaskWithDependenciesOffPool(List<? extends Runnable> dependencies, Runnable... after) {
+        addTaskWithDependencies(dependencies, true, null, after);
     }
 
     public @Nonnull <R extends Runnable> R addTaskWithDependenciesOffPool(List<? extends Runnable> dependencies, R after) {
@@ -260,13 +1429,95 @@ public class ThreadPool {
         return after;
     }
 
+    /** @param resource must have been registered with {@link #setResourceLimit(String, int)} */
+    public void addTaskWithDependenciesUsingResource(@Nonnull String resource, List<? extends Runnable> dependencies, Runnable... after) {
+        addTaskWithDependencies(dependencies, false, resource, after);
+    }
+
+    /** @param resource must have been registered with {@link #setResourceLimit(String, int)} */
+    public void addTaskUsingResource(@Nonnull String resource, Runnable... tasks) {
+        addTaskWithDependenciesUsingResource(resource, emptyList(), tasks);
+    }
+
+    /** @return the runnable that's been scheduled for execution, as convenience */
+    public @Nonnull <R extends Runnable> R addTaskUsingResource(@Nonnull String resource, @Nonnull R task) {
+        addTaskUsingResource(resource, new Runnable[] { task });
+        return task;
+    }
+
+    /** @param resource must have been registered with {@link #setResourceLimit(String, int)} */
+    public void addTaskWithDependenciesOffPoolUsingResource(@Nonnull String resource, List<? extends Runnable> dependencies, Runnable... after) {
+        addTaskWithDependencies(dependencies, true, resource, after);
+    }
+
+    /** Checked exceptions thrown by the task are wrapped in a RuntimeException, see {@link #unwrapException(RuntimeException, Class)} */
+    public @Nonnull <T> TaskHandle<T> addTaskWithResult(@Nonnull Callable<T> task) {
+        return addTask(new TaskHandle<>(task));
+    }
+
+    /** The task is run after the dependency, and is passed its result */
+    public @Nonnull <A, T> TaskHandle<T> addTaskWithResult(@Nonnull TaskHandle<A> dependency, @Nonnull Function<? super A, T> task) {
+        dependency.addConsumer();
+        return addTaskWithDependencies(singletonList(dependency), new TaskHandle<>(() -> task.apply(dependency.consume())));
+    }
+
+    /** The task is run after both dependencies, and is passed their results */
+    public @Nonnull <A, B, T> TaskHandle<T> addTaskWithResult(
+        @Nonnull TaskHandle<A> a, @Nonnull TaskHandle<B> b, @Nonnull BiFunction<? super A, ? super B, T> task
+    ) {
+        a.addConsumer();
+        b.addConsumer();
+        return addTaskWithDependencies(Arrays.asList(a, b), new TaskHandle<>(() -> task.apply(a.consume(), b.consume())));
+    }
+
+    /** The task is run after all dependencies, and is passed their results, in the same order */
+    public @Nonnull <A, T> TaskHandle<T> addTaskWithResults(
+        @Nonnull List<TaskHandle<A>> dependencies, @Nonnull Function<? super List<A>, T> task
+    ) {
+        for (TaskHandle<A> d : dependencies) d.addConsumer();
+        return addTaskWithDependencies(dependencies, new TaskHandle<>(() -> {
+            List<A> results = new ArrayList<>(dependencies.size());
+            for (TaskHandle<A> d : dependencies) results.add(d.consume());
+            return task.apply(results);
+        }));
+    }
+
     /** See {@link #unwrapException(RuntimeException, Class)} to how to handle checked exceptions */
     public void execute() {
-        List<Thread> threads = IntStream.range(0, threadCount)
-            .mapToObj(i -> new Thread(new RunnerRunnable(), threadNamePrefix+"-thread"+i))
-            .collect(Collectors.toList());
-        for (Thread t : threads) t.start();
-        for (Thread t : threads) try { t.join(); } catch (InterruptedException e) { exceptionOrNull = e; }
+        int workerCount = getWorkerCount();
+        List<Deque<TaskWithDependencies>> queues = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) queues.add(new ConcurrentLinkedDeque<>());
+        workerTasks = queues;
+        ExecutingThreadSlot[] slots = new ExecutingThreadSlot[workerCount];
+        for (int i = 0; i < workerCount; i++) slots[i] = new ExecutingThreadSlot();
+        workerSlots = slots;
+
+        long startNanos = System.nanoTime();
+        if (timeoutSecondsOrNull != null) deadlineNanosOrNull = startNanos + (long) (timeoutSecondsOrNull * 1e9);
+        if (schedulingStrategy == SchedulingStrategy.criticalPath) predictMakespan();
+
+        if (sharedWorkersOrNull != null) {
+            sharedWorkersOrNull.execute(this);
+        } else {
+            List<Thread> threads = IntStream.range(0, threadCount)
+                .mapToObj(i -> new Thread(new RunnerRunnable(i), threadNamePrefix+"-thread"+i))
+                .collect(Collectors.toList());
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) {
+                try {
+                    if (deadlineNanosOrNull == null) { t.join(); continue; }
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanosOrNull - System.nanoTime());
+                    if (remainingMillis > 0) t.join(remainingMillis);
+                    if (t.isAlive()) { onTimeout(); break; } // don't wait for tasks which ignore being interrupted
+                }
+                catch (InterruptedException e) { onException(e); }
+            }
+        }
+
+        actualMakespanSeconds = (System.nanoTime() - startNanos) / 1e9;
+        if (predictedMakespanSecondsOrNull != null) logger.info(String.format("%s: predicted duration %.3f seconds, actual duration %.3f seconds",
+            threadNamePrefix, predictedMakespanSecondsOrNull, actualMakespanSeconds));
+
         if (exceptionOrNull != null) throw new RuntimeException(exceptionOrNull);
     }
     
@@ -298,20 +1549,23 @@ public class ThreadPool {
             throw (E) e.getCause();
     }
 
-    protected void addTasksToString(StringBuilder result, String indent, Runnable task, int blockedByCount) {
-        result.append(indent).append(task.toString());
-        List<TaskWithDependencies> dependents = blockerTasks.getOrDefault(task, emptyList());
-        if (blockedByCount > 0) result.append(" (blocked by ").append(blockedByCount).append(" tasks)");
+    protected void addTasksToString(StringBuilder result, String indent, TaskWithDependencies task) {
+        result.append(indent).append(task.task.toString());
+        final List<TaskWithDependencies> dependents;
+        synchronized (task) { dependents = task.dependents == null ? emptyList() : new ArrayList<>(task.dependents); }
+        int blockedByCount = task.blockingDependencyCount.get();
+        if (task.state == TaskState.blocked && blockedByCount > 0) result.append(" (blocked by ").append(blockedByCount).append(" tasks)");
         if ( ! dependents.isEmpty()) result.append(", and thereafter:");
         result.append("\n");
         for (TaskWithDependencies dependent : dependents)
-            addTasksToString(result, indent+"  ", dependent.task, dependent.dependencies.size());
+            addTasksToString(result, indent+"  ", dependent);
     }
 
     @Override public String toString() {
         StringBuilder result = new StringBuilder();
-        for (Runnable r : executingTasks) addTasksToString(result, "", r, 0);
-        for (Runnable r : readyTasks)     addTasksToString(result, "", r, 0);
+        for (TaskWithDependencies t : tasks.values()) if (t.state == TaskState.executing) addTasksToString(result, "", t);
+        for (TaskWithDependencies t : tasks.values()) if (t.state == TaskState.ready)     addTasksToString(result, "", t);
+        for (TaskWithDependencies t : tasks.values()) if (t.state == TaskState.queuedOffPool) addTasksToString(result, "", t);
         return result.toString();
     }
 }
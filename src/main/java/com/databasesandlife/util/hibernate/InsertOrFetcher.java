@@ -3,6 +3,8 @@ package com.databasesandlife.util.hibernate;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import org.hibernate.Criteria;
 import org.hibernate.LockMode;
 import org.hibernate.Transaction;
@@ -10,6 +12,8 @@ import org.hibernate.Session;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.exception.ConstraintViolationException;
 
+import com.databasesandlife.util.jdbc.ExistingRowCache;
+
 // Javadoc deliberately doesn't have * at the start to make it easier to copy/paste to an HTML editor
 /**
 <p>Reads an instance from a database, creating it just in time if it doesn't exist yet.</p>
@@ -83,40 +87,55 @@ Session and returned.</p>
  */
 public class InsertOrFetcher {
 
-    protected static <T> T load(Class<T> cl, Session mainSession, T objectForInsertion, Collection<String> domainKey, LockMode lk) {
+    protected static <T> T load(
+        Class<T> cl, Session mainSession, T objectForInsertion, Collection<String> domainKey, LockMode lk,
+        ExistingRowCache cacheOrNull
+    ) {
         try {
-            // Insert object & catch exception if fail
-            Session newSession = mainSession.getSessionFactory().openSession();
-            try {
-                Transaction tx = newSession.beginTransaction();
-                try {
-                    newSession.save(objectForInsertion);
-                    tx.commit();
-                }
-                finally { if (tx.isActive()) tx.rollback(); }
-            }
-            catch (ConstraintViolationException e) { }    // Object already exists, continue to "fetch" below
-            finally { newSession.close(); }
-
-            // Create fetch parameters
-            Criteria select = mainSession.createCriteria(cl);
-            select.setLockMode(lk);
+            // Determine values of domain key
+            Map<String, Object> domainKeyValues = new HashMap<>();
             for (String attr : domainKey) {
                 try {
                     String methodName = "get" + attr.substring(0, 1).toUpperCase() + attr.substring(1);
                     Method method = cl.getMethod(methodName);
-                    Object value = method.invoke(objectForInsertion);
-                    select.add(Restrictions.eq(attr, value));
+                    domainKeyValues.put(attr, method.invoke(objectForInsertion));
                 }
                 catch (NoSuchMethodException e) { throw new RuntimeException(
                     "Class '"+cl+"' has no public getter for property '"+attr+"'"); }
             }
+            String[] domainKeyArray = domainKey.toArray(new String[0]);
+
+            // Insert object & catch exception if fail
+            boolean attemptedInsert = false;
+            if (cacheOrNull == null || ! cacheOrNull.isKnownToExist(cl.getName(), domainKeyValues, domainKeyArray)) {
+                attemptedInsert = true;
+                Session newSession = mainSession.getSessionFactory().openSession();
+                try {
+                    Transaction tx = newSession.beginTransaction();
+                    try {
+                        newSession.save(objectForInsertion);
+                        tx.commit();
+                    }
+                    finally { if (tx.isActive()) tx.rollback(); }
+                }
+                catch (ConstraintViolationException e) { }    // Object already exists, continue to "fetch" below
+                finally { newSession.close(); }
+            }
+
+            // Create fetch parameters
+            Criteria select = mainSession.createCriteria(cl);
+            select.setLockMode(lk);
+            for (Map.Entry<String, Object> e : domainKeyValues.entrySet())
+                select.add(Restrictions.eq(e.getKey(), e.getValue()));
 
             // Fetch & return object (it must exist if insert failed)
             T result = cl.cast(select.uniqueResult());
             if (result == null) throw new RuntimeException("INSERT was successful or caused constraint exception, " +
                 "but SELECT didn't find object -- possibly unique constraint wrongly defined?");
 
+            // The insert was committed, or the constraint violation was of the domain key, as the SELECT found the row
+            if (cacheOrNull != null && attemptedInsert) cacheOrNull.markExisting(cl.getName(), domainKeyValues, domainKeyArray);
+
             return result;
         }
         catch (IllegalAccessException e) { throw new RuntimeException(e); }
@@ -132,7 +151,18 @@ public class InsertOrFetcher {
      * @return                   See class documentation
      */
     public static <T> T load(Class<T> cl, Session mainSession, T objectForInsertion, Collection<String> domainKey) {
-        return load(cl, mainSession, objectForInsertion, domainKey, LockMode.READ);
+        return load(cl, mainSession, objectForInsertion, domainKey, LockMode.READ, null);
+    }
+
+    /**
+     * As {@link #load(Class, Session, Object, Collection)} but doesn't attempt the insert if the cache knows
+     * the object already exists in the database.
+     * The cache is keyed by the class name and the domain key.
+     */
+    public static <T> T load(
+        Class<T> cl, Session mainSession, T objectForInsertion, Collection<String> domainKey, ExistingRowCache cache
+    ) {
+        return load(cl, mainSession, objectForInsertion, domainKey, LockMode.READ, cache);
     }
 
     /**
@@ -144,6 +174,6 @@ public class InsertOrFetcher {
      * @return                   See class documentation
      */
     public static <T> T loadAndLock(Class<T> cl, Session mainSession, T objectForInsertion, Collection<String> domainKey) {
-        return load(cl, mainSession, objectForInsertion, domainKey, LockMode.UPGRADE);
+        return load(cl, mainSession, objectForInsertion, domainKey, LockMode.UPGRADE, null);
     }
 }
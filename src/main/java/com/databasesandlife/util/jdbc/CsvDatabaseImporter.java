@@ -0,0 +1,419 @@
+package com.databasesandlife.util.jdbc;
+
+import java.io.BufferedReader;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+
+import com.databasesandlife.util.CsvParser;
+import com.databasesandlife.util.CsvParser.ColumnRef;
+import com.databasesandlife.util.CsvParser.CsvRow;
+import com.databasesandlife.util.CsvParser.CsvRowHandler;
+import com.databasesandlife.util.CsvParser.MalformedCsvException;
+import com.databasesandlife.util.CsvWriter;
+import com.databasesandlife.util.ThreadPool;
+import com.databasesandlife.util.YearMonthDay;
+import com.databasesandlife.util.jdbc.DbTransaction.DbServerProduct;
+import com.databasesandlife.util.jdbc.DbTransaction.DbTransactionFactory;
+import com.databasesandlife.util.jdbc.DbTransaction.SqlException;
+
+/**
+ * Imports a CSV file into a database table.
+ *    <p>
+ * The CSV is parsed on one thread, and the rows are written to the database on another, so that parsing and writing happen at the same time.
+ * The parsing thread converts the rows into batches, which are passed to the writing thread via a bounded queue,
+ * so that a slow database does not cause the whole file to be read into memory.
+ * Each batch is written with multi-row INSERT statements, or with COPY on PostgreSQL,
+ * unless it contains values of a type which cannot be written with COPY, such as arrays.
+ *    <p>
+ * A transaction is committed every {@link #setRowsPerCommit(int)} rows.
+ * To be able to resume an import which has failed, store the number of rows imported in the {@link ProgressListener},
+ * in the transaction which is about to be committed, and pass that number to {@link #setSkipRowCount(long)} when resuming.
+ * <pre>
+ *    CsvDatabaseImporter importer = new CsvDatabaseImporter(new CsvParser(), txFactory, "product");
+ *    importer.addColumn("id", "id", CsvDatabaseImporter.longValue);
+ *    importer.addColumn("name");
+ *    importer.addColumn("price", "price_eur", CsvDatabaseImporter.doubleValue);
+ *    importer.setSkipRowCount(rowsAlreadyImported);
+ *    importer.setProgressListener((tx, rowCount) -&gt; tx.execute("UPDATE import_job SET row_count=? WHERE id=?", rowCount, jobId));
+ *    Statistics stats = importer.importFile(new File("products.csv.gz"));
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class CsvDatabaseImporter {
+
+    /** Converts a CSV value to a value which can be passed to {@link DbTransaction#execute(String, Object...)} */
+    @FunctionalInterface
+    public interface ValueConverter {
+        @CheckForNull Object convert(@Nonnull CsvRow row, int colIdx) throws MalformedCsvException;
+    }
+
+    /** Called in the transaction which is about to be committed */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /** @param importedRowCount including rows skipped due to {@link #setSkipRowCount(long)} */
+        void beforeCommit(@Nonnull DbTransaction tx, long importedRowCount);
+    }
+
+    public static class Statistics {
+        /** Excluding rows skipped due to {@link #setSkipRowCount(long)} */
+        public long rowCount = 0;
+        public int commitCount = 0;
+        /** 
+         * Time spent parsing and writing, excluding the time spent waiting for the other thread.
+         * The parsing time starts at the first row not skipped due to {@link #setSkipRowCount(long)}.
+         */
+        public double parseSeconds = 0, writeSeconds = 0, elapsedSeconds = 0;
+
+        public double getParseRowsPerSecond() { return rowCount / parseSeconds; }
+        public double getWriteRowsPerSecond() { return rowCount / writeSeconds; }
+        public double getRowsPerSecond() { return rowCount / elapsedSeconds; }
+
+        @Override public String toString() {
+            return String.format("%d rows in %.1f seconds (%.0f rows/s): parse %.0f rows/s, write %.0f rows/s, %d commits",
+                rowCount, elapsedSeconds, getRowsPerSecond(), getParseRowsPerSecond(), getWriteRowsPerSecond(), commitCount);
+        }
+    }
+
+    protected static class Column {
+        protected final @Nonnull ColumnRef csvField;
+        protected final @Nonnull String dbColumn;
+        protected final @Nonnull ValueConverter converter;
+
+        protected Column(@Nonnull String csvField, @Nonnull String dbColumn, @Nonnull ValueConverter converter) {
+            this.csvField = new ColumnRef(csvField);
+            this.dbColumn = dbColumn;
+            this.converter = converter;
+        }
+    }
+
+    /** Empty values are imported as empty strings */
+    public static final ValueConverter stringValue = (row, colIdx) -> row.getString(colIdx);
+    public static final ValueConverter stringOrNullValue = (row, colIdx) -> row.isEmpty(colIdx) ? null : row.getString(colIdx);
+    public static final ValueConverter intValue = (row, colIdx) -> row.isEmpty(colIdx) ? null : row.getInt(colIdx);
+    public static final ValueConverter longValue = (row, colIdx) -> row.isEmpty(colIdx) ? null : row.getLong(colIdx);
+    public static final ValueConverter doubleValue = (row, colIdx) -> row.isEmpty(colIdx) ? null : row.getDouble(colIdx);
+
+    /** Dates in YYYY-MM-DD format */
+    public static final ValueConverter localDateValue = (row, colIdx) -> {
+        if (row.isEmpty(colIdx)) return null;
+        try { return LocalDate.parse(row.get(colIdx)); }
+        catch (DateTimeParseException e) { throw row.newInvalidValueException(colIdx, "a date in YYYY-MM-DD format"); }
+    };
+
+    protected static final List<Object[]> endOfData = new ArrayList<>();
+
+    protected final @Nonnull CsvParser parser;
+    protected final @Nonnull DbTransactionFactory txFactory;
+    protected final @Nonnull String table;
+    protected final @Nonnull List<Column> columns = new ArrayList<>();
+    protected int rowsPerBatch = 1000, rowsPerCommit = 100_000, bufferedBatchCount = 4;
+    protected @CheckForNull Boolean useCopyOrNull = null;
+    protected long skipRowCount = 0;
+    protected @CheckForNull ProgressListener progressListenerOrNull = null;
+    protected volatile long startNanos;
+    /** The transaction being written by the writing thread, so that its statement can be cancelled if parsing fails */
+    protected volatile @CheckForNull DbTransaction currentTxOrNull = null;
+    /** Set while a COPY is running, which {@link DbTransaction#cancelExecutingStatement()} cannot cancel */
+    protected volatile @CheckForNull PGConnection copyingConnectionOrNull = null;
+
+    public CsvDatabaseImporter(@Nonnull CsvParser parser, @Nonnull DbTransactionFactory txFactory, @Nonnull String table) {
+        this.parser = parser;
+        this.txFactory = txFactory;
+        this.table = table;
+    }
+
+    public void addColumn(@Nonnull String csvField, @Nonnull String dbColumn, @Nonnull ValueConverter converter) {
+        columns.add(new Column(csvField, dbColumn, converter));
+    }
+
+    /** Imports the CSV field as a string into the database column of the same name; empty values are imported as null */
+    public void addColumn(@Nonnull String field) {
+        addColumn(field, field, stringOrNullValue);
+    }
+
+    /** Number of rows passed from the parsing thread to the writing thread at once, and written with one COPY; default 1000 */
+    public void setRowsPerBatch(int rows) { rowsPerBatch = rows; }
+
+    /** Rounded up to a whole number of batches; default 100k */
+    public void setRowsPerCommit(int rows) { rowsPerCommit = rows; }
+
+    /** Number of batches which may be parsed but not yet written; default 4 */
+    public void setBufferedBatchCount(int count) { bufferedBatchCount = count; }
+
+    /** By default, COPY is used on PostgreSQL and multi-row INSERT statements on other databases */
+    public void setUseCopy(boolean useCopy) { useCopyOrNull = useCopy; }
+
+    /** Skips the first rows of the CSV, for example, to resume an import, see {@link ProgressListener} */
+    public void setSkipRowCount(long count) { skipRowCount = count; }
+
+    public void setProgressListener(@Nonnull ProgressListener listener) { progressListenerOrNull = listener; }
+
+    // ------------------------------------------------------------------------------------------------------------------------
+    // Parsing thread
+    // ------------------------------------------------------------------------------------------------------------------------
+
+    protected class RowBatcher implements CsvRowHandler {
+        protected final @Nonnull BlockingQueue<List<Object[]>> batches;
+        protected @Nonnull List<Object[]> batch = new ArrayList<>(rowsPerBatch);
+        protected long skippedRowCount = 0, blockedNanos = 0;
+        /** Zero until the first row which is not skipped */
+        protected long firstRowNanos = 0;
+
+        protected RowBatcher(@Nonnull BlockingQueue<List<Object[]>> batches) { this.batches = batches; }
+
+        protected void put(@Nonnull List<Object[]> b) {
+            long start = System.nanoTime();
+            try { batches.put(b); }
+            catch (InterruptedException e) { throw new RuntimeException(e); }
+            blockedNanos += System.nanoTime() - start;
+        }
+
+        @Override public void processCsvRow(@Nonnull CsvRow row) throws MalformedCsvException {
+            if (skippedRowCount < skipRowCount) { skippedRowCount++; return; }
+            if (firstRowNanos == 0) firstRowNanos = System.nanoTime();
+
+            Object[] values = new Object[columns.size()];
+            for (int c = 0; c < values.length; c++) {
+                Column column = columns.get(c);
+                values[c] = column.converter.convert(row, row.getColIdx(column.csvField));
+            }
+            batch.add(values);
+
+            if (batch.size() >= rowsPerBatch) {
+                put(batch);
+                batch = new ArrayList<>(rowsPerBatch);
+            }
+        }
+
+        public void finish() {
+            if ( ! batch.isEmpty()) put(batch);
+            put(endOfData);
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------------------------------
+    // Writing thread
+    // ------------------------------------------------------------------------------------------------------------------------
+
+    protected @Nonnull String getColumnList(@Nonnull DbTransaction tx) {
+        StringBuilder result = new StringBuilder();
+        for (Column c : columns) {
+            if (result.length() > 0) result.append(", ");
+            result.append(tx.getSchemaQuote()).append(c.dbColumn).append(tx.getSchemaQuote());
+        }
+        return result.toString();
+    }
+
+    protected void writeBatchWithInsert(@Nonnull DbTransaction tx, @Nonnull List<Object[]> batch) {
+        // SQL Server allows at most 1000 rows per INSERT and 2100 parameters per statement
+        int rowsPerStatement = Math.max(1, Math.min(1000, 2000 / columns.size()));
+        String columnList = getColumnList(tx);
+        for (int from = 0; from < batch.size(); from += rowsPerStatement) {
+            List<Object[]> rows = batch.subList(from, Math.min(batch.size(), from + rowsPerStatement));
+            StringBuilder sql = new StringBuilder("INSERT INTO " + table + " (" + columnList + ") VALUES ");
+            List<Object> params = new ArrayList<>(rows.size() * columns.size());
+            for (int r = 0; r < rows.size(); r++) {
+                if (r > 0) sql.append(", ");
+                sql.append("(");
+                for (int c = 0; c < columns.size(); c++) {
+                    Object value = rows.get(r)[c];
+                    if (c > 0) sql.append(", ");
+                    sql.append(tx.getQuestionMarkForValue(value));
+                    params.add(value);
+                }
+                sql.append(")");
+            }
+            tx.execute(sql, params);
+        }
+    }
+
+    protected static @Nonnull String toHex(@Nonnull byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        StringBuilder result = new StringBuilder(2 + 2 * bytes.length).append("\\x");
+        for (byte b : bytes) result.append(digits[(b >> 4) & 0xF]).append(digits[b & 0xF]);
+        return result.toString();
+    }
+
+    /** 
+     * Writes the value as PostgreSQL expects it in a COPY in CSV format, 
+     * and as {@link DbTransaction#execute(String, Object...)} would store it.
+     * @return false if values of this type cannot be written
+     */
+    protected static boolean writeCopyValue(@Nonnull CsvWriter csv, @CheckForNull Object value) throws IOException {
+        if (value == null) csv.writeEmptyField();
+        else if (value instanceof CharSequence) {
+            // Unquoted, this would be the end-of-data marker, if it were the only value of the row
+            if ("\\.".contentEquals((CharSequence) value)) csv.writeQuotedField((CharSequence) value);
+            else csv.writeField((CharSequence) value);
+        }
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            csv.writeField(((Number) value).longValue());
+        else if (value instanceof Double) csv.writeField((double) (Double) value);
+        else if (value instanceof Float || value instanceof BigInteger) csv.writeField(value.toString());
+        else if (value instanceof BigDecimal) csv.writeField(((BigDecimal) value).toPlainString());
+        else if (value instanceof LocalDate) csv.writeField((LocalDate) value);
+        else if (value instanceof LocalDateTime || value instanceof LocalTime || value instanceof YearMonthDay) csv.writeField(value.toString());
+        // Stored as UTC, as DbTransaction does; java.sql.Date doesn't support toInstant()
+        else if (value instanceof java.util.Date)
+            csv.writeField(LocalDateTime.ofInstant(Instant.ofEpochMilli(((java.util.Date) value).getTime()), ZoneOffset.UTC).toString());
+        else if (value instanceof byte[]) csv.writeField(toHex((byte[]) value));
+        else if (value instanceof Boolean || value instanceof UUID || value instanceof Character) csv.writeField(value.toString());
+        else if (value instanceof Enum<?>) csv.writeField(((Enum<?>) value).name());
+        else return false;
+        return true;
+    }
+
+    /** @return false if the batch contains a value which cannot be written with COPY, in which case nothing was written */
+    protected boolean writeBatchWithCopy(@Nonnull DbTransaction tx, @Nonnull List<Object[]> batch) {
+        CharArrayWriter data = new CharArrayWriter(batch.size() * columns.size() * 8);
+        try (CsvWriter csv = new CsvWriter(data, ",")) {
+            csv.setLineSeparator("\n");
+            for (Object[] row : batch) {
+                for (Object value : row) if ( ! writeCopyValue(csv, value)) return false;
+                csv.endRow();
+            }
+        }
+        catch (IOException e) { throw new RuntimeException(e); } // unreachable, CharArrayWriter does not throw
+
+        String sql = "COPY " + table + " (" + getColumnList(tx) + ") FROM STDIN WITH (FORMAT csv)";
+        try {
+            PGConnection connection = tx.getConnection().unwrap(PGConnection.class);
+            copyingConnectionOrNull = connection;
+            try { connection.getCopyAPI().copyIn(sql, new CharArrayReader(data.toCharArray())); }
+            finally { copyingConnectionOrNull = null; }
+        }
+        catch (SQLException | IOException e) { throw new SqlException("database error (" + sql + ")", e); }
+        return true;
+    }
+
+    protected void writeBatch(@Nonnull DbTransaction tx, @Nonnull List<Object[]> batch) {
+        boolean useCopy = useCopyOrNull != null ? useCopyOrNull : tx.product == DbServerProduct.postgres;
+        if (useCopy && writeBatchWithCopy(tx, batch)) return;
+        writeBatchWithInsert(tx, batch);
+    }
+
+    /** Called from the thread which cancels the import */
+    protected void cancelWriting() {
+        DbTransaction tx = currentTxOrNull;
+        if (tx != null) tx.cancelExecutingStatement();
+        PGConnection copying = copyingConnectionOrNull;
+        if (copying != null) {
+            try { copying.cancelQuery(); }
+            catch (SQLException e) { Logger.getLogger(getClass()).warn("Could not cancel COPY", e); }
+        }
+    }
+
+    protected void commit(@Nonnull DbTransaction tx, long importedRowCount, @Nonnull Statistics stats) {
+        if (progressListenerOrNull != null) progressListenerOrNull.beforeCommit(tx, importedRowCount);
+        tx.commit();
+        stats.commitCount++;
+        Logger.getLogger(getClass()).info(String.format("Table '%s': %d rows imported, %d rows/s", table,
+            importedRowCount, Math.round(stats.rowCount / ((System.nanoTime() - startNanos) / 1e9))));
+    }
+
+    protected void writeBatches(@Nonnull BlockingQueue<List<Object[]>> batches, @Nonnull Statistics stats) {
+        long start = System.nanoTime(), blockedNanos = 0, importedRowCount = skipRowCount, rowsInTx = 0;
+        DbTransaction tx = txFactory.newDbTransaction();
+        currentTxOrNull = tx;
+        try {
+            while (true) {
+                long before = System.nanoTime();
+                List<Object[]> batch;
+                try { batch = batches.take(); }
+                catch (InterruptedException e) { throw new RuntimeException(e); }
+                blockedNanos += System.nanoTime() - before;
+                if (batch == endOfData) break;
+
+                writeBatch(tx, batch);
+                importedRowCount += batch.size();
+                rowsInTx += batch.size();
+                stats.rowCount += batch.size();
+
+                if (rowsInTx >= rowsPerCommit) {
+                    commit(tx, importedRowCount, stats);
+                    tx = txFactory.newDbTransaction();
+                    currentTxOrNull = tx;
+                    rowsInTx = 0;
+                }
+            }
+            commit(tx, importedRowCount, stats);
+        }
+        finally {
+            currentTxOrNull = null;
+            tx.rollbackIfConnectionStillOpen();
+        }
+        stats.writeSeconds = (System.nanoTime() - start - blockedNanos) / 1e9;
+    }
+
+    // ------------------------------------------------------------------------------------------------------------------------
+    // Import
+    // ------------------------------------------------------------------------------------------------------------------------
+
+    @FunctionalInterface
+    protected interface Parse {
+        void parse(@Nonnull CsvRowHandler handler) throws MalformedCsvException;
+    }
+
+    protected @Nonnull Statistics importRows(@Nonnull Parse parse) throws MalformedCsvException {
+        if (columns.isEmpty()) throw new IllegalStateException("No columns added");
+
+        Statistics stats = new Statistics();
+        BlockingQueue<List<Object[]>> batches = new ArrayBlockingQueue<>(bufferedBatchCount);
+        startNanos = System.nanoTime();
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadNamePrefix(getClass().getSimpleName());
+        pool.setThreadCount(2);
+        pool.getCancellationToken().addCancellationListener(this::cancelWriting);
+        pool.addTask(() -> {
+            RowBatcher batcher = new RowBatcher(batches);
+            try { parse.parse(batcher); }
+            catch (MalformedCsvException e) { throw new RuntimeException(e); }
+            batcher.finish();
+            if (batcher.firstRowNanos != 0) stats.parseSeconds = (System.nanoTime() - batcher.firstRowNanos - batcher.blockedNanos) / 1e9;
+        });
+        pool.addTask(() -> writeBatches(batches, stats));
+        try { pool.execute(); }
+        catch (RuntimeException e) {
+            ThreadPool.unwrapException(e, MalformedCsvException.class);
+            throw e;
+        }
+
+        stats.elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        Logger.getLogger(getClass()).info("Table '" + table + "': " + stats);
+        return stats;
+    }
+
+    /** The file may be compressed, see {@link CsvParser#parseAndCallRowHandler(CsvRowHandler, File)} */
+    public @Nonnull Statistics importFile(@Nonnull File file) throws MalformedCsvException {
+        return importRows(handler -> parser.parseAndCallRowHandler(handler, file));
+    }
+
+    public @Nonnull Statistics importReader(@Nonnull BufferedReader reader) throws MalformedCsvException {
+        return importRows(handler -> parser.parseAndCallRowHandler(handler, reader));
+    }
+}
@@ -39,6 +39,9 @@ import com.microsoft.sqlserver.jdbc.SQLServerDriver;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
 import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExceptionMessage;
 
 /**
@@ -66,6 +69,7 @@ import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExc
  *   <li>{@link #insertIgnoringUniqueConstraintViolations} and {@link #updateIgnoringUniqueConstraintViolations}
  *       perform inserts and updates, but ignore any unique constraint violations.
  *       For example using the "insert then update" pattern, for "just-in-time" creating records, can use these methods.
+ *       An {@link ExistingRowCache} can be passed to avoid attempting inserts for rows known to exist already.
  *   <li>{@link #attempt(Runnable)} establishes a savepoint before the runnable and rolls back to it on failure,
  *       necessary for any operation that may fail when using PostgreSQL.</li>
  *   <li>The transaction isolation level is set to REPEATABLE READ. (This is the default in MySQL but not other databases.)
@@ -73,6 +77,8 @@ import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExc
  *       When the transaction rolls back, this listener will get called.
  *       This is so that any primary keys which have been assigned and stored in Java objects,
  *       which are now no longer valid due to the rollback, may be removed from the Java objects.
+ *   <li>You can register {@link CommitListener} objects with {@link #addCommitListener(CommitListener)},
+ *       which are called after the transaction has committed.
  * </ul>
  *     <p>
  * Upon creating an object, a connection is made to the database, and a transaction is started.
@@ -103,7 +109,10 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
     public final DbServerProduct product;
     protected Connection connection;    // null means already committed
     protected final List<RollbackListener> rollbackListeners = new ArrayList<>();
+    protected final List<CommitListener> commitListeners = new ArrayList<>();
     protected final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+    /** Set while a statement executes, so that it can be cancelled from another thread */
+    protected volatile PreparedStatement executingStatementOrNull = null;
     protected final Map<Class<? extends Enum<?>>, String> postgresTypeForEnum = new HashMap<>();
 
     @Override
@@ -145,6 +154,10 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         public void transactionHasRolledback();
     }
     
+    @FunctionalInterface public interface CommitListener {
+        public void transactionHasCommitted();
+    }
+    
     public static class DbQueryResultRow {
         ResultSet rs;
         DbQueryResultRow(ResultSet rs) { this.rs = rs; }
@@ -181,6 +194,12 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             try { return rs.getString(col); }
             catch (SQLException e) { throw new RuntimeException(e); }
         }
+
+        /** Returns the object as delivered by the JDBC driver, e.g. Integer, Long, String or BigDecimal */
+        public Object getObject(String col) {
+            try { return rs.getObject(col); }
+            catch (SQLException e) { throw new RuntimeException(e); }
+        }
         
         public Integer getInt(String col) {
             try { int result = rs.getInt(col); if (rs.wasNull()) return null; else return result; }
@@ -470,7 +489,14 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
                             ps.setString(i+1, ((YearMonthDay) args[i]).toYYYYMMDD()); 
                     }
                 else if (args[i] instanceof LocalTime)
-                    ps.setTime(i+1, java.sql.Time.valueOf((LocalTime) args[i]));
+                    switch (product) {
+                        case postgres:
+                            ps.setObject(i+1, args[i]);
+                            break;
+                        default:
+                            // java.sql.Time has no fractional seconds; the string e.g. "12:34:56.789" keeps them
+                            ps.setString(i+1, args[i].toString());
+                    }
                 else if (args[i] instanceof LocalDate)
                     ps.setDate(i+1, java.sql.Date.valueOf((LocalDate) args[i]));
                 else if (args[i] instanceof LocalDateTime)
@@ -543,19 +569,111 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         return "?";
     }
     
+    public enum ConstraintViolationType { unique, foreignKey }
+
+    /** The result of classifying a database error as a constraint violation */
+    public static class ParsedConstraintViolation {
+        public final @Nonnull ConstraintViolationType type;
+        /** null if the database did not report which constraint was violated */
+        public final @CheckForNull String constraintName;
+        public ParsedConstraintViolation(@Nonnull ConstraintViolationType t, @CheckForNull String c) { type=t; constraintName=c; }
+    }
+
+    protected static final Pattern mysqlUniqueViolationPattern = Pattern.compile("Duplicate entry '.*' for key '(.*)'");
+    protected static final Pattern postgresUniqueViolationPattern = Pattern.compile("violates unique constraint \"(.*)\"");
+    protected static final Pattern postgresGermanUniqueViolationPattern = Pattern.compile("verletzt Unique-Constraint „(.*)“");
+    protected static final Pattern sqlServerUniqueViolationPattern = Pattern.compile(
+        "(?:UNIQUE KEY constraint|PRIMARY KEY constraint|with unique index) '([^']*)'");
+    /** The constraint name is the first double-quoted string in error 547, whatever the language of the message */
+    protected static final Pattern sqlServerConstraintNamePattern = Pattern.compile("\"([^\"]+)\"");
+
     /** @return the name of the unique constraint that was violated, or null if the error was not about a unique constraint violation */
     public static String parseUniqueConstraintViolationOrNull(String msg) {
-        { Matcher m = Pattern.compile("Duplicate entry '.*' for key '(.*)'").matcher(msg); if (m.find()) return m.group(1); } // MySQL
-        { Matcher m = Pattern.compile("violates unique constraint \"(.*)\"").matcher(msg); if (m.find()) return m.group(1); } // PostgreSQL
-        { Matcher m = Pattern.compile("verletzt Unique-Constraint „(.*)“").matcher(msg); if (m.find()) return m.group(1); } // PostgreSQL German
+        if (msg == null) return null;
+        { Matcher m = mysqlUniqueViolationPattern.matcher(msg); if (m.find()) return m.group(1); }
+        { Matcher m = postgresUniqueViolationPattern.matcher(msg); if (m.find()) return m.group(1); }
+        { Matcher m = postgresGermanUniqueViolationPattern.matcher(msg); if (m.find()) return m.group(1); }
         return null;
     }
     
     public static boolean isForeignKeyConstraintViolation(String msg) {
+        if (msg == null) return false;
         if (msg.contains("foreign key constraint")) return true; // MySQL, PostgreSQL 
         if (msg.contains("verletzt Fremdschl")) return true;     // PostgreSQL German
         return false;
     }
+
+    /** Separate method, so that the PostgreSQL driver classes are only loaded if the exception came from that driver */
+    protected static @CheckForNull String getPostgresConstraintNameOrNull(@Nonnull SQLException e) {
+        if ( ! (e instanceof org.postgresql.util.PSQLException)) return null;
+        org.postgresql.util.ServerErrorMessage msg = ((org.postgresql.util.PSQLException) e).getServerErrorMessage();
+        if (msg == null) return null;
+        return msg.getConstraint();
+    }
+
+    /**
+     * SQL Server uses error 547 for both foreign key and CHECK constraint violations.
+     * @return the name of the violated constraint, if the exception is SQL Server error 547, otherwise null
+     */
+    protected static @CheckForNull String getSqlServerError547ConstraintNameOrNull(@Nonnull Throwable exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if ( ! (t instanceof SQLException)) continue;
+            SQLException e = (SQLException) t;
+            if ( ! e.getClass().getName().startsWith("com.microsoft.sqlserver.") || e.getErrorCode() != 547) continue;
+            if (e.getMessage() == null) return null;
+            Matcher m = sqlServerConstraintNamePattern.matcher(e.getMessage());
+            return m.find() ? m.group(1) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Classifies an exception by the SQLSTATE and vendor error codes of the {@link SQLException} that caused it,
+     * which doesn't depend on the language of the database server's messages.
+     * Falls back to parsing the message, in case the driver doesn't supply the codes.
+     *    <p>
+     * SQL Server reports foreign key and CHECK constraint violations with the same error code, 547.
+     * This method can only tell them apart from an English message; the methods of a DbTransaction which throw
+     * {@link ForeignKeyConstraintViolation} instead look the constraint up in the SQL Server catalog.
+     *
+     * @return null if the exception does not represent a unique or foreign key constraint violation
+     */
+    public static @CheckForNull ParsedConstraintViolation parseConstraintViolationOrNull(@Nonnull Throwable exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if ( ! (t instanceof SQLException)) continue;
+            SQLException e = (SQLException) t;
+            String state = e.getSQLState() == null ? "" : e.getSQLState();
+            int vendorCode = e.getErrorCode();
+
+            boolean isPostgres = e.getClass().getName().startsWith("org.postgresql.");
+            boolean isSqlServer = e.getClass().getName().startsWith("com.microsoft.sqlserver.");
+
+            ConstraintViolationType type = null;
+            if (state.equals("23505")) type = ConstraintViolationType.unique;     // PostgreSQL, SQL standard
+            else if (state.equals("23503")) type = ConstraintViolationType.foreignKey;  // PostgreSQL, SQL standard
+            else if ( ! isPostgres && ! isSqlServer && (vendorCode == 1062 || vendorCode == 1586)) type = ConstraintViolationType.unique; // MySQL
+            else if ( ! isPostgres && ! isSqlServer && (vendorCode == 1451 || vendorCode == 1452)) type = ConstraintViolationType.foreignKey; // MySQL
+            else if (isSqlServer && (vendorCode == 2601 || vendorCode == 2627)) type = ConstraintViolationType.unique;
+            else if (isSqlServer && vendorCode == 547 && e.getMessage() != null 
+                    && isForeignKeyConstraintViolation(e.getMessage().toLowerCase()))
+                type = ConstraintViolationType.foreignKey;  // 547 is also used for CHECK constraints
+
+            if (type != null) {
+                String name = isPostgres ? getPostgresConstraintNameOrNull(e) : null;
+                if (name == null && type == ConstraintViolationType.unique) name = parseUniqueConstraintViolationOrNull(e.getMessage());
+                if (name == null && type == ConstraintViolationType.unique && e.getMessage() != null) {
+                    Matcher m = sqlServerUniqueViolationPattern.matcher(e.getMessage());
+                    if (m.find()) name = m.group(1);
+                }
+                return new ParsedConstraintViolation(type, name);
+            }
+        }
+
+        String uniqueConstraintNameOrNull = parseUniqueConstraintViolationOrNull(exception.getMessage());
+        if (uniqueConstraintNameOrNull != null) return new ParsedConstraintViolation(ConstraintViolationType.unique, uniqueConstraintNameOrNull);
+        if (isForeignKeyConstraintViolation(exception.getMessage())) return new ParsedConstraintViolation(ConstraintViolationType.foreignKey, null);
+        return null;
+    }
     
     /**
      * If "exception" represents a violation exception it is thrown and the connection is rolled back to "initialState",
@@ -564,20 +682,22 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
     protected void rollbackToSavepointAndThrowConstraintViolation(Savepoint initialState, RuntimeException exception) 
     throws UniqueConstraintViolation, ForeignKeyConstraintViolation {
         try {
-            String uniqueConstraintViolationOrNull = parseUniqueConstraintViolationOrNull(exception.getMessage());
-            boolean isForeignKeyConstraintViolation = isForeignKeyConstraintViolation(exception.getMessage());
-            
-            if (uniqueConstraintViolationOrNull!=null || isForeignKeyConstraintViolation) {
-                if (initialState != null) {
-                    connection.rollback(initialState);
-                    connection.releaseSavepoint(initialState);
-                }
-                if (uniqueConstraintViolationOrNull!=null) throw new UniqueConstraintViolation(uniqueConstraintViolationOrNull, exception);
-                else if (isForeignKeyConstraintViolation) throw new ForeignKeyConstraintViolation(exception);
-                else throw new RuntimeException();
+            ParsedConstraintViolation violation = parseConstraintViolationOrNull(exception);
+            if (violation == null && product == DbServerProduct.sqlserver) {
+                String name = getSqlServerError547ConstraintNameOrNull(exception);
+                if (name != null && query("SELECT 1 AS x FROM sys.foreign_keys WHERE name = ?", name).iterator().hasNext())
+                    violation = new ParsedConstraintViolation(ConstraintViolationType.foreignKey, name);
             }
-            else {
-                throw exception;
+            if (violation == null) throw exception;
+
+            if (initialState != null) {
+                connection.rollback(initialState);
+                connection.releaseSavepoint(initialState);
+            }
+            switch (violation.type) {
+                case unique: throw new UniqueConstraintViolation(violation.constraintName, exception);
+                case foreignKey: throw new ForeignKeyConstraintViolation(exception);
+                default: throw new RuntimeException("Unreachable");
             }
         }
         catch (SQLException e) { throw new RuntimeException(e); }
@@ -647,6 +767,11 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
     public void addRollbackListener(RollbackListener listener) {
         rollbackListeners.add(listener);
     }
+
+    /** The listener is called after the transaction has successfully committed */
+    public void addCommitListener(CommitListener listener) {
+        commitListeners.add(listener);
+    }
     
     public DSLContext jooq() {
         SQLDialect d;
@@ -684,8 +809,12 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             public Iterator<DbQueryResultRow> iterator() {
                 try (Timer ignored = new Timer("SQL: " + getSqlForLog(sql, args))) {
                     PreparedStatement ps = insertParamsToPreparedStatement(sql, args);
-                    ResultSet rs = ps.executeQuery();
-                    return new DbQueryResultRowIterator(rs);
+                    executingStatementOrNull = ps;
+                    try {
+                        ResultSet rs = ps.executeQuery();
+                        return new DbQueryResultRowIterator(rs);
+                    }
+                    finally { executingStatementOrNull = null; }
                 }
                 catch (SQLException e) { throw new SqlException(getSqlForLog(sql, args), e); }
             }
@@ -698,10 +827,29 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
     }
     
     public void execute(String sql, Object... args) throws SqlException {
-        try { insertParamsToPreparedStatement(sql, args).executeUpdate(); } // returns int = row count processed; we ignore
+        try {
+            PreparedStatement ps = insertParamsToPreparedStatement(sql, args);
+            executingStatementOrNull = ps;
+            try { ps.executeUpdate(); } // returns int = row count processed; we ignore
+            finally { executingStatementOrNull = null; }
+        }
         catch (SQLException e) { throw new SqlException("database error ("+ getSqlForLog(sql, args)+")", e); }
     }
 
+    /**
+     * Asks the database to stop executing the statement which is currently executing in another thread, if any.
+     * That thread then receives an exception. This may be called from any thread, for example:
+     * <pre>
+     *     pool.getCancellationToken().addCancellationListener(tx::cancelExecutingStatement);
+     * </pre>
+     */
+    public void cancelExecutingStatement() {
+        PreparedStatement ps = executingStatementOrNull;
+        if (ps == null) return;
+        try { ps.cancel(); }
+        catch (SQLException e) { Logger.getLogger(getClass()).warn("Could not cancel executing statement", e); }
+    }
+
     /**
      * Sets a savepoint as is necessary on PostgreSQL, runs the code,
      * then rolls back to the savepoint on RuntimeException or discards the savepoint on success.
@@ -813,7 +961,45 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         try { insertOrThrowUniqueConstraintViolation(table, cols); }
         catch (UniqueConstraintViolation ignored) { } // ignore
     }
-    
+
+    /** @return true if a row exists with the values of the columns; false if it doesn't, or if any value is null */
+    protected boolean existsRowWithValues(String table, Map<String, ?> cols, String... columns) {
+        StringBuilder sql = new StringBuilder("SELECT 1 AS x FROM ").append(table).append(" WHERE ");
+        List<Object> params = new ArrayList<>();
+        for (String c : columns) {
+            Object value = cols.get(c);
+            if (value == null) return false;
+            if ( ! params.isEmpty()) sql.append(" AND ");
+            sql.append(getSchemaQuote()).append(c).append(getSchemaQuote()).append(" = ").append(getQuestionMarkForValue(value));
+            params.add(value);
+        }
+        return query(sql, params).iterator().hasNext();
+    }
+
+    /**
+     * As {@link #insertIgnoringUniqueConstraintViolations(String, Map)}, but the INSERT is not attempted if the cache
+     * knows that a row with the values of uniqueKeyColumns already exists.
+     *    <p>
+     * The row is recorded in the cache only once this transaction has committed, so that other transactions sharing the
+     * cache do not skip their INSERT of a row which may yet be rolled back.
+     * It is recorded if the INSERT succeeds, or if it causes a unique constraint violation and a row with the values of
+     * uniqueKeyColumns exists (as the violation may have been of a different unique constraint).
+     */
+    public void insertIgnoringUniqueConstraintViolations(
+        ExistingRowCache cache, String table, Map<String, ?> cols, String... uniqueKeyColumns
+    ) {
+        if (cache.isKnownToExist(table, cols, uniqueKeyColumns)) return;
+        Map<String, Object> key = new HashMap<>();
+        for (String c : uniqueKeyColumns) key.put(c, cols.get(c));
+        try {
+            insertOrThrowUniqueConstraintViolation(table, cols);
+        }
+        catch (UniqueConstraintViolation e) {
+            if ( ! existsRowWithValues(table, key, uniqueKeyColumns)) return;
+        }
+        addCommitListener(() -> cache.markExisting(table, key, uniqueKeyColumns));
+    }
+
     public long insertAndFetchNewId(String table, Map<String, ?> cols) {
         insert(table, cols);
         return fetchNewPkValue();
@@ -919,6 +1105,7 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             closeConnection();
         }
         catch (SQLException e) { throw new SqlException("Can't commit", e); }
+        for (CommitListener l : commitListeners) l.transactionHasCommitted();
     }
     
     public void rollbackIfConnectionStillOpen() {
@@ -966,4 +1153,61 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         }
         catch (IOException e) { throw new RuntimeException(e); }
     }
+
+    /**
+     * Writes e.g. "(a, b) &gt; (?, ?)", i.e. the condition that rows come after (or before) the key values in the
+     * ordering "ORDER BY a, b", for keyset ("seek") pagination.
+     * On databases which cannot use an index for row value comparisons, the equivalent "a &gt; ? OR (a = ? AND b &gt; ?)"
+     * is written instead.
+     */
+    public void appendKeysetCondition(
+        Appendable sql, List<Object> sqlParams, List<String> keyColumns, List<?> keyValues, boolean after
+    ) {
+        try {
+            if (keyColumns.size() != keyValues.size()) throw new IllegalArgumentException("Key has " + keyColumns.size() +
+                " columns but " + keyValues.size() + " values");
+            String op = after ? " > " : " < ";
+            switch (product) {
+                case postgres:
+                case sqlite:
+                    sql.append("(");
+                    for (int i = 0; i < keyColumns.size(); i++) {
+                        if (i > 0) sql.append(", ");
+                        sql.append(keyColumns.get(i));
+                    }
+                    sql.append(")").append(op).append("(");
+                    for (int i = 0; i < keyValues.size(); i++) {
+                        if (i > 0) sql.append(", ");
+                        sql.append(getQuestionMarkForValue(keyValues.get(i)));
+                        sqlParams.add(keyValues.get(i));
+                    }
+                    sql.append(")");
+                    break;
+                default:
+                    sql.append("(");
+                    for (int i = 0; i < keyColumns.size(); i++) {
+                        if (i > 0) sql.append(" OR ");
+                        sql.append("(");
+                        for (int j = 0; j < i; j++) {
+                            sql.append(keyColumns.get(j)).append(" = ").append(getQuestionMarkForValue(keyValues.get(j))).append(" AND ");
+                            sqlParams.add(keyValues.get(j));
+                        }
+                        sql.append(keyColumns.get(i)).append(op).append(getQuestionMarkForValue(keyValues.get(i)));
+                        sqlParams.add(keyValues.get(i));
+                        sql.append(")");
+                    }
+                    sql.append(")");
+            }
+        }
+        catch (IOException e) { throw new RuntimeException(e); }
+    }
+
+    /** To be placed after the ORDER BY clause */
+    public String getLimitClause(int rowCount) {
+        switch (product) {
+            case sqlserver: return " OFFSET 0 ROWS FETCH NEXT " + rowCount + " ROWS ONLY ";
+            case postgres: case mysql: case sqlite: return " LIMIT " + rowCount + " ";
+            default: throw new RuntimeException("LIMIT is not supported for: " + product);
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package com.databasesandlife.util.jdbc;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Remembers, in this process, which rows are known to already exist in the database.
+ *    <p>
+ * The "just-in-time" insert pattern (see {@link DbTransaction#insertIgnoringUniqueConstraintViolations(String, Map)})
+ * attempts an INSERT and ignores the unique constraint violation if the row already exists.
+ * If the row almost always exists, each call still costs a round-trip, a constraint violation, and (on PostgreSQL)
+ * a rollback to a savepoint. Passing an object of this class to the INSERT means the INSERT is skipped
+ * if a previous INSERT for the same values was committed, or failed with a unique constraint violation because a row
+ * with those values exists. Rows are only recorded once the transaction which inserted or found them has committed.
+ *    <p>
+ * Entries are stored per table and unique key (list of columns). Each such key holds at most a fixed number of
+ * entries, the least-recently-used ones are discarded. Whole numbers are compared by value, so that for example
+ * an Integer 5 and a Long 5 are the same key.
+ *    <p>
+ * Only use this for tables where rows, once created, are not deleted (or where their unique key columns are not
+ * updated), for example lookup tables of day/count or mutex names. Otherwise call {@link #forget} or {@link #clear}
+ * when rows are deleted.
+ *    <p>
+ * Objects of this class are thread-safe, and are intended to be stored e.g. in a static variable and shared between
+ * transactions.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ExistingRowCache {
+
+    protected final int maxEntriesPerUniqueKey;
+    protected final Map<String, LinkedHashMap<List<Object>, Boolean>> existingRows = new HashMap<>();
+
+    public ExistingRowCache(int maxEntriesPerUniqueKey) {
+        this.maxEntriesPerUniqueKey = maxEntriesPerUniqueKey;
+    }
+
+    public ExistingRowCache() {
+        this(10_000);
+    }
+
+    protected @Nonnull String getCacheKey(@Nonnull String table, @Nonnull String... uniqueKeyColumns) {
+        return table + "(" + String.join(",", uniqueKeyColumns) + ")";
+    }
+
+    /** Whole numbers of any type are converted to Long, other BigDecimals have trailing zeros removed */
+    protected static Object normalizeValue(Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) return ((BigInteger) value).longValue();
+        if (value instanceof BigDecimal) {
+            BigDecimal stripped = ((BigDecimal) value).stripTrailingZeros();
+            if (stripped.scale() <= 0 && stripped.precision() - stripped.scale() < 19) return stripped.longValueExact();
+            return stripped;
+        }
+        return value;
+    }
+
+    protected @Nonnull List<Object> getUniqueKeyValues(@Nonnull Map<String, ?> cols, @Nonnull String... uniqueKeyColumns) {
+        List<Object> result = new ArrayList<>(uniqueKeyColumns.length);
+        for (String c : uniqueKeyColumns) {
+            if ( ! cols.containsKey(c)) throw new IllegalArgumentException("Unique key column '" + c + "' not in " + cols.keySet());
+            result.add(normalizeValue(cols.get(c)));
+        }
+        return result;
+    }
+
+    protected @Nonnull LinkedHashMap<List<Object>, Boolean> getRowsForUniqueKey(@Nonnull String cacheKey) {
+        return existingRows.computeIfAbsent(cacheKey, k -> new LinkedHashMap<List<Object>, Boolean>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<List<Object>, Boolean> eldest) {
+                return size() > maxEntriesPerUniqueKey;
+            }
+        });
+    }
+
+    /** @param cols must contain at least all of the uniqueKeyColumns */
+    public synchronized boolean isKnownToExist(@Nonnull String table, @Nonnull Map<String, ?> cols, @Nonnull String... uniqueKeyColumns) {
+        LinkedHashMap<List<Object>, Boolean> rows = existingRows.get(getCacheKey(table, uniqueKeyColumns));
+        if (rows == null) return false;
+        return rows.get(getUniqueKeyValues(cols, uniqueKeyColumns)) != null;
+    }
+
+    /** @param cols must contain at least all of the uniqueKeyColumns */
+    public synchronized void markExisting(@Nonnull String table, @Nonnull Map<String, ?> cols, @Nonnull String... uniqueKeyColumns) {
+        getRowsForUniqueKey(getCacheKey(table, uniqueKeyColumns)).put(getUniqueKeyValues(cols, uniqueKeyColumns), Boolean.TRUE);
+    }
+
+    /** @param cols must contain at least all of the uniqueKeyColumns */
+    public synchronized void forget(@Nonnull String table, @Nonnull Map<String, ?> cols, @Nonnull String... uniqueKeyColumns) {
+        LinkedHashMap<List<Object>, Boolean> rows = existingRows.get(getCacheKey(table, uniqueKeyColumns));
+        if (rows != null) rows.remove(getUniqueKeyValues(cols, uniqueKeyColumns));
+    }
+
+    public synchronized void clear() {
+        existingRows.clear();
+    }
+}
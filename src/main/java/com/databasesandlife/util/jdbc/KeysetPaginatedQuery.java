@@ -0,0 +1,299 @@
+package com.databasesandlife.util.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+
+/**
+ * Fetches pages of results using "keyset" (also known as "seek") pagination rather than LIMIT/OFFSET.
+ *    <p>
+ * With LIMIT/OFFSET, the database has to read and discard all rows before the requested page, so deep pages are slow,
+ * and the caller typically also needs a COUNT(*) to know how many pages there are.
+ * With keyset pagination, the key of the last row on the current page is remembered in a {@link PageCursor},
+ * and the next page is fetched with e.g. <code>WHERE (name, id) &gt; (?, ?) ORDER BY name, id LIMIT 20</code>,
+ * which can be read directly from an index on (name, id).
+ *    <p>
+ * The key columns must together be unique (e.g. end with the primary key), are always sorted ascending,
+ * and must not be NULL. Their values are read with {@link DbQueryResultRow#getObject(String)}, so they should be
+ * numbers, strings, dates, times or timestamps. Timestamps are kept to the nanosecond, so that rows with timestamps
+ * differing by less than a millisecond are not skipped.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   KeysetPaginatedQuery&lt;Product&gt; q = new KeysetPaginatedQuery&lt;&gt;(
+ *       "SELECT * FROM product", "category_id = ?", singletonList(categoryId),
+ *       asList("name", "product_id"), 20, row -&gt; new Product(row));
+ *   Page&lt;Product&gt; page = q.fetchPage(tx, PageCursor.parse(cursorParameterOrNull));
+ *   // display page.rows, and links to page.prevOrNull and page.nextOrNull
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class KeysetPaginatedQuery<T> {
+
+    @SuppressWarnings("serial")
+    public static class InvalidPageCursorException extends Exception {
+        public InvalidPageCursorException(String msg) { super(msg); }
+        public InvalidPageCursorException(String msg, Throwable t) { super(msg, t); }
+    }
+
+    /**
+     * Identifies a page, by the key of the row before it (or after it, when paging backwards).
+     * Can be converted to an opaque string with {@link #toString()}, e.g. for use in URLs,
+     * and converted back with {@link #parse(String)}.
+     */
+    @SuppressWarnings("serial")
+    public static class PageCursor implements Serializable {
+        protected final @Nonnull List<Object> keyValues;
+        protected final boolean forwards;
+
+        protected PageCursor(@Nonnull List<Object> keyValues, boolean forwards) {
+            this.keyValues = keyValues;
+            this.forwards = forwards;
+        }
+
+        @Override public String toString() {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeBoolean(forwards);
+                out.writeInt(keyValues.size());
+                for (Object v : keyValues) {
+                    if (v instanceof Integer) { out.writeByte('I'); out.writeInt((Integer) v); }
+                    else if (v instanceof Long) { out.writeByte('L'); out.writeLong((Long) v); }
+                    else if (v instanceof BigDecimal) { out.writeByte('D'); out.writeUTF(v.toString()); }
+                    else if (v instanceof String) { out.writeByte('S'); out.writeUTF((String) v); }
+                    else if (v instanceof LocalDate) { out.writeByte('d'); out.writeUTF(v.toString()); }
+                    else if (v instanceof LocalDateTime) { out.writeByte('T'); out.writeUTF(v.toString()); }
+                    else if (v instanceof LocalTime) { out.writeByte('t'); out.writeUTF(v.toString()); }
+                    else throw new IllegalStateException("Key value type " + v.getClass() + " not supported");
+                }
+                out.flush();
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+            }
+            catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        /** @return null if the cursorOrNull is null, i.e. the first page */
+        public static @CheckForNull PageCursor parse(@CheckForNull String cursorOrNull) throws InvalidPageCursorException {
+            if (cursorOrNull == null) return null;
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursorOrNull)));
+                boolean forwards = in.readBoolean();
+                int count = in.readInt();
+                if (count <= 0 || count > 100) throw new InvalidPageCursorException("Page cursor has " + count + " key values");
+                List<Object> keyValues = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte type = in.readByte();
+                    switch (type) {
+                        case 'I': keyValues.add(in.readInt()); break;
+                        case 'L': keyValues.add(in.readLong()); break;
+                        case 'D': keyValues.add(new BigDecimal(in.readUTF())); break;
+                        case 'S': keyValues.add(in.readUTF()); break;
+                        case 'd': keyValues.add(LocalDate.parse(in.readUTF())); break;
+                        case 'T': keyValues.add(LocalDateTime.parse(in.readUTF())); break;
+                        case 't': keyValues.add(LocalTime.parse(in.readUTF())); break;
+                        default: throw new InvalidPageCursorException("Page cursor has unknown type '" + type + "'");
+                    }
+                }
+                if (in.read() != -1) throw new InvalidPageCursorException("Page cursor has extra data at end");
+                return new PageCursor(keyValues, forwards);
+            }
+            catch (IllegalArgumentException | IOException | DateTimeParseException e) {
+                throw new InvalidPageCursorException("Page cursor '" + cursorOrNull + "' is invalid", e);
+            }
+        }
+    }
+
+    public static class Page<T> {
+        public final @Nonnull List<T> rows;
+        public final @CheckForNull PageCursor prevOrNull, nextOrNull;
+
+        public Page(@Nonnull List<T> rows, @CheckForNull PageCursor prevOrNull, @CheckForNull PageCursor nextOrNull) {
+            this.rows = rows;
+            this.prevOrNull = prevOrNull;
+            this.nextOrNull = nextOrNull;
+        }
+    }
+
+    /**
+     * JDBC drivers return dates and times as java.sql types, which are converted to the java.time types
+     * that {@link DbTransaction} binds in the same (local) time zone as they were read, including nanoseconds.
+     */
+    protected static @Nonnull Object getKeyValue(@Nonnull Object value) {
+        if (value instanceof java.sql.Timestamp) return ((java.sql.Timestamp) value).toLocalDateTime();
+        if (value instanceof java.sql.Date) return ((java.sql.Date) value).toLocalDate();
+        if (value instanceof java.sql.Time) return ((java.sql.Time) value).toLocalTime();
+        return value;
+    }
+
+    protected static class RowAndKey<T> {
+        T row;
+        List<Object> key;
+    }
+
+    protected static final Pattern postgresExplainRowsPattern = Pattern.compile(" rows=(\\d+) ");
+
+    protected final @Nonnull String selectFrom;
+    protected final @CheckForNull String whereOrNull;
+    protected final @Nonnull List<?> whereParams;
+    protected final @Nonnull List<String> keyColumns;
+    /** For example Integer.class for an INT column; null means the types of values in a cursor are not checked */
+    protected final @CheckForNull List<Class<?>> keyTypesOrNull;
+    protected final int rowsPerPage;
+    protected final @Nonnull Function<DbQueryResultRow, T> rowMapper;
+
+    /**
+     * @param selectFrom  for example "SELECT * FROM product", must not contain WHERE, ORDER BY or LIMIT
+     * @param whereOrNull for example "category_id = ?", or null for all rows
+     * @param keyColumns  the columns to sort by, which together must be unique, for example "name", "product_id"
+     * @param keyTypesOrNull the type of value in a cursor for each key column, for example String.class, Integer.class,
+     *                    as read by {@link DbQueryResultRow#getObject(String)} with java.sql dates and times converted to java.time;
+     *                    if supplied, a cursor with a value of a different type is rejected before it is sent to the database
+     * @param rowMapper   converts the database row to an object; the row is only valid during the call
+     */
+    public KeysetPaginatedQuery(
+        @Nonnull String selectFrom, @CheckForNull String whereOrNull, @Nonnull List<?> whereParams,
+        @Nonnull List<String> keyColumns, @CheckForNull List<Class<?>> keyTypesOrNull,
+        int rowsPerPage, @Nonnull Function<DbQueryResultRow, T> rowMapper
+    ) {
+        if (keyColumns.isEmpty()) throw new IllegalArgumentException("At least one key column is required");
+        if (keyTypesOrNull != null && keyTypesOrNull.size() != keyColumns.size()) 
+            throw new IllegalArgumentException("There must be one key type for each key column");
+        this.selectFrom = selectFrom;
+        this.whereOrNull = whereOrNull;
+        this.whereParams = whereParams;
+        this.keyColumns = keyColumns;
+        this.keyTypesOrNull = keyTypesOrNull;
+        this.rowsPerPage = rowsPerPage;
+        this.rowMapper = rowMapper;
+    }
+
+    public KeysetPaginatedQuery(
+        @Nonnull String selectFrom, @CheckForNull String whereOrNull, @Nonnull List<?> whereParams,
+        @Nonnull List<String> keyColumns, int rowsPerPage, @Nonnull Function<DbQueryResultRow, T> rowMapper
+    ) {
+        this(selectFrom, whereOrNull, whereParams, keyColumns, null, rowsPerPage, rowMapper);
+    }
+
+    protected void appendWhere(@Nonnull StringBuilder sql, @Nonnull List<Object> params) {
+        sql.append(" WHERE ");
+        if (whereOrNull != null) {
+            sql.append("(").append(whereOrNull).append(")");
+            params.addAll(whereParams);
+        } else {
+            sql.append("1=1");
+        }
+    }
+
+    protected void appendOrderBy(@Nonnull StringBuilder sql, boolean forwards) {
+        sql.append(" ORDER BY ");
+        for (int i = 0; i < keyColumns.size(); i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(keyColumns.get(i)).append(forwards ? " ASC" : " DESC");
+        }
+    }
+
+    /** 
+     * A cursor comes from the client, so may have been created by a different query or altered;
+     * it must have a value for each key column, and if the key types are known, values of those types.
+     */
+    protected void checkCursor(@Nonnull PageCursor cursor) throws InvalidPageCursorException {
+        if (cursor.keyValues.size() != keyColumns.size()) throw new InvalidPageCursorException(
+            "Page cursor has " + cursor.keyValues.size() + " key values but there are " + keyColumns.size() + " key columns");
+        if (keyTypesOrNull != null) for (int i = 0; i < keyColumns.size(); i++) {
+            Object value = cursor.keyValues.get(i);
+            if ( ! keyTypesOrNull.get(i).isInstance(value)) throw new InvalidPageCursorException("Page cursor has " 
+                + value.getClass().getSimpleName() + " value for key column '" + keyColumns.get(i) + "'");
+        }
+    }
+
+    /** @param cursorOrNull null means the first page */
+    public @Nonnull Page<T> fetchPage(@Nonnull DbTransaction tx, @CheckForNull PageCursor cursorOrNull)
+    throws InvalidPageCursorException {
+        if (cursorOrNull != null) checkCursor(cursorOrNull);
+        boolean forwards = cursorOrNull == null || cursorOrNull.forwards;
+
+        StringBuilder sql = new StringBuilder(selectFrom);
+        List<Object> params = new ArrayList<>();
+        appendWhere(sql, params);
+        if (cursorOrNull != null) {
+            sql.append(" AND ");
+            tx.appendKeysetCondition(sql, params, keyColumns, cursorOrNull.keyValues, forwards);
+        }
+        appendOrderBy(sql, forwards);
+        sql.append(tx.getLimitClause(rowsPerPage + 1)); // one extra row tells us if there is another page
+
+        List<RowAndKey<T>> result = new ArrayList<>(rowsPerPage);
+        boolean morePagesInThisDirection = false;
+        for (Iterator<DbQueryResultRow> i = tx.query(sql, params).iterator(); i.hasNext(); ) {
+            DbQueryResultRow row = i.next();
+            if (result.size() == rowsPerPage) { morePagesInThisDirection = true; break; }
+            RowAndKey<T> r = new RowAndKey<>();
+            r.row = rowMapper.apply(row);
+            r.key = new ArrayList<>(keyColumns.size());
+            for (String c : keyColumns) r.key.add(getKeyValue(row.getObject(c)));
+            result.add(r);
+        }
+        if ( ! forwards) Collections.reverse(result);
+
+        boolean hasPrev = forwards ? cursorOrNull != null : morePagesInThisDirection;
+        boolean hasNext = forwards ? morePagesInThisDirection : true;
+
+        List<T> rows = new ArrayList<>(result.size());
+        for (RowAndKey<T> r : result) rows.add(r.row);
+        PageCursor prev = hasPrev && ! result.isEmpty() ? new PageCursor(result.get(0).key, false) : null;
+        PageCursor next = hasNext && ! result.isEmpty() ? new PageCursor(result.get(result.size() - 1).key, true) : null;
+        return new Page<>(rows, prev, next);
+    }
+
+    /**
+     * Returns the number of rows, as estimated by the database's query planner.
+     * This is much faster than a COUNT(*) on large tables but may be inaccurate; use it for display such as "about 12,000 results".
+     * On databases where no estimate is available, an exact COUNT(*) is performed.
+     */
+    public long fetchApproximateRowCount(@Nonnull DbTransaction tx) {
+        StringBuilder sql = new StringBuilder(selectFrom);
+        List<Object> params = new ArrayList<>();
+        appendWhere(sql, params);
+
+        switch (tx.product) {
+            case postgres:
+                // First line is like "Seq Scan on product  (cost=0.00..35.50 rows=2550 width=4)"
+                String planLine = tx.query("EXPLAIN " + sql, params.toArray()).iterator().next().getString("QUERY PLAN");
+                Matcher m = postgresExplainRowsPattern.matcher(planLine);
+                if ( ! m.find()) throw new RuntimeException("Cannot parse PostgreSQL EXPLAIN output: " + planLine);
+                return Long.parseLong(m.group(1));
+
+            case mysql:
+                Long rows = tx.query("EXPLAIN " + sql, params.toArray()).iterator().next().getLong("rows");
+                return rows == null ? 0 : rows;
+
+            default:
+                return tx.query("SELECT COUNT(*) AS c FROM (" + sql + ") count_rows", params.toArray())
+                    .iterator().next().getLong("c");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.databasesandlife.util.jooq;
+
+import org.jooq.*;
+import org.jooq.conf.ParamType;
+import org.jooq.impl.DSL;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+
+/**
+ * Convert from a DATETIME/TIMESTAMP to a Java {@link LocalDateTime}, passing the {@link LocalDateTime} object
+ * directly to and from the JDBC driver with setObject/getObject.
+ *
+ * <p>This does the same job as {@link LocalDateTimeViaStringBinding}, but no string is formatted or parsed per value,
+ * and the driver does no timezone conversion.
+ * Requires a JDBC 4.2 driver, for example PostgreSQL 42.x or MySQL Connector/J 8.x;
+ * with older drivers use {@link LocalDateTimeViaStringBinding}.</p>
+ */
+@SuppressWarnings("unchecked")
+public class LocalDateTimeViaObjectBinding<T>
+implements Binding<T, LocalDateTime> {
+
+    @Override
+    public Converter<T, LocalDateTime> converter() {
+        return new Converter<T, LocalDateTime>() {
+            @Override public Class<T> fromType() { return (Class<T>) Object.class; }
+            @Override public Class<LocalDateTime> toType() { return LocalDateTime.class; }
+
+            @Override
+            public LocalDateTime from(Object x) {
+                if (x == null) return null;
+                if (x instanceof LocalDateTime) return (LocalDateTime) x;
+                if (x instanceof Timestamp) return ((Timestamp) x).toLocalDateTime();
+                throw new IllegalArgumentException("Cannot convert " + x.getClass() + " to LocalDateTime");
+            }
+
+            @Override
+            public T to(LocalDateTime m) {
+                return (T) m;
+            }
+        };
+    }
+
+    @Override
+    public void sql(BindingSQLContext<LocalDateTime> ctx) throws SQLException {
+        if (ctx.render().paramType() == ParamType.INLINED)
+            ctx.render().visit(DSL.inline(ctx.value()));
+        else
+            ctx.render().sql("?");
+    }
+
+    @Override
+    public void register(BindingRegisterContext<LocalDateTime> ctx) throws SQLException {
+        ctx.statement().registerOutParameter(ctx.index(), Types.TIMESTAMP);
+    }
+
+    @Override
+    public void set(BindingSetStatementContext<LocalDateTime> ctx) throws SQLException {
+        if (ctx.value() == null) ctx.statement().setNull(ctx.index(), Types.TIMESTAMP);
+        else ctx.statement().setObject(ctx.index(), ctx.value());
+    }
+
+    @Override
+    public void get(BindingGetResultSetContext<LocalDateTime> ctx) throws SQLException {
+        ctx.value(ctx.resultSet().getObject(ctx.index(), LocalDateTime.class));
+    }
+
+    @Override
+    public void get(BindingGetStatementContext<LocalDateTime> ctx) throws SQLException {
+        ctx.value(ctx.statement().getObject(ctx.index(), LocalDateTime.class));
+    }
+
+    @Override
+    public void set(BindingSetSQLOutputContext<LocalDateTime> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public void get(BindingGetSQLInputContext<LocalDateTime> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
@@ -24,6 +24,8 @@ import java.util.Objects;
 public class LocalDateTimeViaStringBinding<T>
 implements Binding<T, LocalDateTime> {
 
+    protected static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
     @Override
     public Converter<T, LocalDateTime> converter() {
         return new Converter<T, LocalDateTime>() {
@@ -33,13 +35,13 @@ implements Binding<T, LocalDateTime> {
             @Override
             public LocalDateTime from(Object x) {
                 if (x == null) return null;
-                return LocalDateTime.parse("" + x, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+                return LocalDateTime.parse("" + x, formatter);
             }
 
             @Override
             public T to(LocalDateTime m) {
                 if (m == null) return null;
-                return (T) m.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+                return (T) m.format(formatter);
             }
         };
     }
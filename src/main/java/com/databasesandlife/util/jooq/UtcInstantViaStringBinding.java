@@ -26,6 +26,8 @@ import java.util.Objects;
 public class UtcInstantViaStringBinding<T>
 implements Binding<T, Instant> {
 
+    protected static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
     @Override
     public Converter<T, Instant> converter() {
         return new Converter<T, Instant>() {
@@ -35,13 +37,13 @@ implements Binding<T, Instant> {
             @Override
             public Instant from(Object x) {
                 if (x == null) return null;
-                return LocalDateTime.parse("" + x, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")).atOffset(ZoneOffset.UTC).toInstant();
+                return LocalDateTime.parse("" + x, formatter).atOffset(ZoneOffset.UTC).toInstant();
             }
 
             @Override
             public T to(Instant m) {
                 if (m == null) return null;
-                return (T) m.atOffset(ZoneOffset.UTC).toLocalDateTime().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+                return (T) m.atOffset(ZoneOffset.UTC).toLocalDateTime().format(formatter);
             }
         };
     }
@@ -0,0 +1,98 @@
+package com.databasesandlife.util.jooq;
+
+import org.jooq.*;
+import org.jooq.conf.ParamType;
+import org.jooq.impl.DSL;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Convert from a DATETIME/TIMESTAMP (representing a UTC time) to a Java {@link Instant}, using {@link Timestamp}
+ * objects with a UTC {@link Calendar}.
+ *
+ * <p>This does the same job as {@link UtcInstantViaStringBinding}, but the value is transferred to and from the
+ * JDBC driver in its native form, rather than being formatted and parsed as a string for every value.</p>
+ *
+ * <p>The JDBC driver must honor the Calendar passed to setTimestamp and getTimestamp.
+ * The PostgreSQL driver does; the MySQL driver does only with <code>useLegacyDatetimeCode=false</code>,
+ * otherwise use {@link UtcInstantViaStringBinding}.</p>
+ */
+@SuppressWarnings("unchecked")
+public class UtcInstantViaTimestampBinding<T>
+implements Binding<T, Instant> {
+
+    protected static Calendar newUtcCalendar() {
+        return Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public Converter<T, Instant> converter() {
+        return new Converter<T, Instant>() {
+            @Override public Class<T> fromType() { return (Class<T>) Object.class; }
+            @Override public Class<Instant> toType() { return Instant.class; }
+
+            @Override
+            public Instant from(Object x) {
+                if (x == null) return null;
+                if (x instanceof Timestamp) return ((Timestamp) x).toInstant();
+                if (x instanceof LocalDateTime) return ((LocalDateTime) x).atOffset(ZoneOffset.UTC).toInstant();
+                throw new IllegalArgumentException("Cannot convert " + x.getClass() + " to Instant");
+            }
+
+            @Override
+            public T to(Instant m) {
+                if (m == null) return null;
+                return (T) Timestamp.from(m);
+            }
+        };
+    }
+
+    @Override
+    public void sql(BindingSQLContext<Instant> ctx) throws SQLException {
+        if (ctx.render().paramType() == ParamType.INLINED) {
+            LocalDateTime value = ctx.value() == null ? null : ctx.value().atOffset(ZoneOffset.UTC).toLocalDateTime();
+            ctx.render().visit(DSL.inline(value));
+        }
+        else
+            ctx.render().sql("?");
+    }
+
+    @Override
+    public void register(BindingRegisterContext<Instant> ctx) throws SQLException {
+        ctx.statement().registerOutParameter(ctx.index(), Types.TIMESTAMP);
+    }
+
+    @Override
+    public void set(BindingSetStatementContext<Instant> ctx) throws SQLException {
+        if (ctx.value() == null) ctx.statement().setNull(ctx.index(), Types.TIMESTAMP);
+        else ctx.statement().setTimestamp(ctx.index(), Timestamp.from(ctx.value()), newUtcCalendar());
+    }
+
+    @Override
+    public void get(BindingGetResultSetContext<Instant> ctx) throws SQLException {
+        ctx.convert(converter()).value((T) ctx.resultSet().getTimestamp(ctx.index(), newUtcCalendar()));
+    }
+
+    @Override
+    public void get(BindingGetStatementContext<Instant> ctx) throws SQLException {
+        ctx.convert(converter()).value((T) ctx.statement().getTimestamp(ctx.index(), newUtcCalendar()));
+    }
+
+    @Override
+    public void set(BindingSetSQLOutputContext<Instant> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public void get(BindingGetSQLInputContext<Instant> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
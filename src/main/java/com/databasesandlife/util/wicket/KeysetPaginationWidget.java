@@ -0,0 +1,49 @@
+package com.databasesandlife.util.wicket;
+
+import java.io.Serializable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.wicket.markup.html.link.Link;
+import org.apache.wicket.markup.html.panel.Panel;
+
+import com.databasesandlife.util.jdbc.KeysetPaginatedQuery;
+import com.databasesandlife.util.jdbc.KeysetPaginatedQuery.PageCursor;
+
+/**
+ * Pagination widget compatible with twitter bootstrap, for pages fetched with {@link KeysetPaginatedQuery}.
+ * <p>
+ * Unlike {@link PaginationWidget}, there are no numbered pages, only "previous" and "next" links,
+ * as keyset pagination does not know the total number of results, nor the position of the current page within them.
+ * </p>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+@SuppressWarnings("serial")
+public class KeysetPaginationWidget extends Panel {
+
+    public interface KeysetPaginationWidgetCallback extends Serializable {
+        /** Use {@link PageCursor#toString()} to put the cursor in a page parameter */
+        public Link<?> newLinkToPage(String wicketId, @Nonnull PageCursor cursor);
+    }
+
+    public KeysetPaginationWidget(
+        String wicketId, @CheckForNull PageCursor prevOrNull, @CheckForNull PageCursor nextOrNull,
+        final KeysetPaginationWidgetCallback c
+    ) {
+        super(wicketId);
+        setVisible(prevOrNull != null || nextOrNull != null);
+
+        if (prevOrNull != null) add(c.newLinkToPage("pagination.prev", prevOrNull));
+        else add(new Link<Void>("pagination.prev") { @Override public void onClick() { } }.setVisible(false));
+
+        if (nextOrNull != null) add(c.newLinkToPage("pagination.next", nextOrNull));
+        else add(new Link<Void>("pagination.next") { @Override public void onClick() { } }.setVisible(false));
+    }
+
+    public KeysetPaginationWidget(String wicketId, @Nonnull KeysetPaginatedQuery.Page<?> page, final KeysetPaginationWidgetCallback c) {
+        this(wicketId, page.prevOrNull, page.nextOrNull, c);
+    }
+}
@@ -0,0 +1,79 @@
+package com.databasesandlife.util;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.time.LocalDate;
+
+import junit.framework.TestCase;
+
+import com.databasesandlife.util.CsvParser.CsvRow;
+import com.databasesandlife.util.CsvParser.CsvRowIterator;
+import com.databasesandlife.util.CsvParser.MalformedCsvException;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class CsvColumnarTableTest extends TestCase {
+
+    enum Color { red, green }
+
+    public void testProcessCsvRow() throws MalformedCsvException {
+        CsvColumnarTable table = new CsvColumnarTable();
+        CsvColumnarTable.IntColumn qty = table.addIntColumn("qty");
+        CsvColumnarTable.LongColumn id = table.addLongColumn("id");
+        CsvColumnarTable.DoubleColumn price = table.addDoubleColumn("price");
+        CsvColumnarTable.DateColumn day = table.addDateColumn("day");
+        CsvColumnarTable.EnumColumn<Color> color = table.addEnumColumn("color", Color.class);
+        CsvColumnarTable.DictionaryStringColumn country = table.addDictionaryStringColumn("country");
+
+        StringBuilder csv = new StringBuilder("id,ignored,qty,price,day,color,country\n");
+        for (int i = 0; i < 2000; i++)
+            csv.append(10_000_000_000L + i).append(",x,").append(i).append(",").append(i % 2 == 0 ? "1.5" : "")
+                .append(",2024-02-").append(String.format("%02d", i % 28 + 1)).append(",").append(Color.values()[i % 2])
+                .append(",").append(i % 3 == 0 ? "CH" : "AT").append("\n");
+        new CsvParser().parseAndCallRowHandler(table, new BufferedReader(new StringReader(csv.toString())));
+        table.trimToSize();
+
+        assertEquals(2000, table.getRowCount());
+        assertEquals(1999, qty.getInt(1999));
+        assertEquals(10_000_001_999L, id.getLong(1999));
+        assertFalse(price.isNull(1998));
+        assertEquals(1.5, price.getDouble(1998));
+        assertTrue(price.isNull(1999));
+        assertEquals(LocalDate.of(2024, 2, 4), day.getLocalDateOrNull(3));
+        assertEquals(Color.green, color.getOrNull(3));
+        assertEquals("CH", country.getOrNull(3));
+        assertEquals("AT", country.getOrNull(4));
+        assertEquals(2, country.getValueForCode().size());
+
+        try {
+            CsvColumnarTable t = new CsvColumnarTable();
+            t.addEnumColumn("color", Color.class);
+            new CsvParser().parseAndCallRowHandler(t, new BufferedReader(new StringReader("color\nred\nblue\n")));
+            fail();
+        }
+        catch (MalformedCsvException e) { assertTrue(e.getMessage(), e.getMessage().contains("Line 3") && e.getMessage().contains("blue")); }
+    }
+
+    public void testProcessCsvRow_invalidRowSkipped() throws MalformedCsvException {
+        CsvColumnarTable table = new CsvColumnarTable();
+        CsvColumnarTable.IntColumn qty = table.addIntColumn("qty");
+        CsvColumnarTable.DateColumn day = table.addDateColumn("day");
+
+        // The first row fails after qty has been marked as null; the next row reuses its index
+        try (CsvRowIterator rows = new CsvParser().parseToIterator(new BufferedReader(new StringReader(
+                "qty,day\n,2023-02-29\n5,2024-02-29\n")))) {
+            while (rows.hasNext()) {
+                CsvRow row = rows.next();
+                try { table.processCsvRow(row); }
+                catch (MalformedCsvException e) { assertEquals(2, row.getLineNumber()); }
+            }
+        }
+
+        assertEquals(1, table.getRowCount());
+        assertFalse(qty.isNull(0));
+        assertEquals(5, qty.getInt(0));
+        assertEquals(LocalDate.of(2024, 2, 29), day.getLocalDateOrNull(0));
+    }
+}
@@ -1,12 +1,25 @@
 package com.databasesandlife.util;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import junit.framework.TestCase;
 
+import com.databasesandlife.util.CsvParser.ColumnRef;
+import com.databasesandlife.util.CsvParser.CsvRow;
+import com.databasesandlife.util.CsvParser.CsvRowIterator;
 import com.databasesandlife.util.CsvParser.MalformedCsvException;
 
 /**
@@ -29,6 +42,140 @@ public class CsvParserTest extends TestCase {
         catch (MalformedCsvException e) { assertTrue(e.getMessage().contains("Expected")); }
     }
 
+    public void testParse_quotes() throws MalformedCsvException {
+        List<Map<String,String>> x = new CsvParser().parseToListOfMaps(new BufferedReader(new StringReader(
+            "\"A\",B,C\r\n" +
+            "\"a,1\",\"say \"\"hi\"\"\",\"two\nlines\"\r\n" +
+            "x,5\" pipe,\"\"\n" +
+            "\"last\",\"\",")));
+        assertEquals(3, x.size());
+        assertEquals("a,1", x.get(0).get("A"));
+        assertEquals("say \"hi\"", x.get(0).get("B"));
+        assertEquals("two\nlines", x.get(0).get("C"));
+        assertEquals("5\" pipe", x.get(1).get("B"));
+        assertEquals("", x.get(1).get("C"));
+        assertEquals("last", x.get(2).get("A"));
+        assertEquals("", x.get(2).get("C"));
+
+        // Line numbers count physical lines, so the error is reported on line 4, not record 3
+        try { new CsvParser().parseToListOfMaps(new BufferedReader(new StringReader("A,B\n\"a\nb\",c\nd"))); fail(); }
+        catch (MalformedCsvException e) { assertTrue(e.getMessage(), e.getMessage().contains("4")); }
+
+        // Unterminated quote
+        try { new CsvParser().parseToListOfMaps(new BufferedReader(new StringReader("A,B\n\"a,b\n"))); fail(); }
+        catch (MalformedCsvException e) { assertTrue(e.getMessage().contains("not terminated")); }
+    }
+
+    public void testSetFieldSeparator() throws MalformedCsvException {
+        CsvParser parser = new CsvParser();
+        parser.setFieldSeparator("||");
+        List<Map<String,String>> x = parser.parseToListOfMaps(new BufferedReader(new StringReader("A||B\n\"a||b\"||c|d\n")));
+        assertEquals("a||b", x.get(0).get("A"));
+        assertEquals("c|d", x.get(0).get("B"));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testSetFieldSeparatorRegexp() throws MalformedCsvException {
+        CsvParser parser = new CsvParser();
+        parser.setFieldSeparatorRegexp(Pattern.compile("[;|]"));
+        List<Map<String,String>> x = parser.parseToListOfMaps(new BufferedReader(new StringReader("A;B|C\n\"a;\"\"b\"|c;d\n")));
+        assertEquals("a;\"b", x.get(0).get("A"));
+        assertEquals("c", x.get(0).get("B"));
+        assertEquals("d", x.get(0).get("C"));
+    }
+
+    public void testParseAndCallRowHandler() throws MalformedCsvException {
+        ColumnRef name = new ColumnRef("name"), qty = new ColumnRef("qty"), price = new ColumnRef("price");
+        List<String> result = new ArrayList<>();
+        new CsvParser().parseAndCallRowHandler(row -> {
+            assertEquals("name", row.getColumnName(0));
+            assertTrue(row.get(name) instanceof CharSequence);
+            result.add(row.getLineNumber() + ":" + row.get(name) + ":" + row.getInt(qty) + ":" + row.getLong(1) + ":" + row.getDouble(price));
+        }, new BufferedReader(new StringReader(
+            "name,qty,price\n" +
+            "\"a, b\",-12,0.1\n" +
+            "c,+7,1e3\n" +
+            "d,2147483647,-123.456\n")));
+        assertEquals(Arrays.asList("2:a, b:-12:-12:0.1", "3:c:7:7:1000.0", "4:d:2147483647:2147483647:-123.456"), result);
+
+        try {
+            new CsvParser().parseAndCallRowHandler(row -> row.getInt(qty), new BufferedReader(new StringReader("qty\n1\n2147483648\n")));
+            fail();
+        }
+        catch (MalformedCsvException e) { assertTrue(e.getMessage(), e.getMessage().contains("Line 3") && e.getMessage().contains("2147483648")); }
+
+        try {
+            new CsvParser().parseAndCallRowHandler(row -> row.getDouble(price), new BufferedReader(new StringReader("qty\n1\n")));
+            fail();
+        }
+        catch (MalformedCsvException e) { assertTrue(e.getMessage(), e.getMessage().contains("price")); }
+    }
+
+    public void testParseAndCallRowHandlerInParallel() throws Exception {
+        File file = File.createTempFile("CsvParserTest", ".csv");
+        try {
+            StringBuilder csv = new StringBuilder("\uFEFFid,text\r\n");
+            for (int i = 0; i < 1000; i++)
+                csv.append(i).append(",").append(i % 3 == 0 ? "\"quoted, \"\"with\"\"\nline break\"" : "caf\u00e9").append("\r\n");
+            Files.write(file.toPath(), csv.toString().getBytes(StandardCharsets.UTF_8));
+
+            CsvParser parser = new CsvParser();
+            parser.setParallelChunkBytes(100);
+            List<String> expected = new ArrayList<>();
+            parser.parseAndCallRowHandler(row -> expected.add(row.getLineNumber() + ":" + row.getString(0) + ":" + row.getString(1)), file);
+            assertEquals(1000, expected.size());
+
+            List<String> ordered = new ArrayList<>();
+            parser.parseAndCallRowHandlerInParallel(row -> ordered.add(row.getLineNumber() + ":" + row.getString(0) + ":" + row.getString(1)), file, 4, true);
+            assertEquals(expected, ordered);
+
+            List<String> unordered = Collections.synchronizedList(new ArrayList<>());
+            parser.parseAndCallRowHandlerInParallel(row -> unordered.add(row.getLineNumber() + ":" + row.getString(0) + ":" + row.getString(1)), file, 4, false);
+            assertEquals(new HashSet<>(expected), new HashSet<>(unordered));
+
+            // Error messages contain the line number, and in ordered mode, all rows before the error are processed
+            Files.write(file.toPath(), csv.append("x,y,z\r\n").toString().getBytes(StandardCharsets.UTF_8));
+            List<String> beforeError = new ArrayList<>();
+            try { parser.parseAndCallRowHandlerInParallel(row -> beforeError.add(row.getString(0)), file, 4, true); fail(); }
+            catch (MalformedCsvException e) { assertTrue(e.getMessage(), e.getMessage().contains("Line 1336")); }
+            assertEquals(1000, beforeError.size());
+        }
+        finally { file.delete(); }
+    }
+
+    public void testParseToStream() throws MalformedCsvException {
+        ColumnRef qty = new ColumnRef("qty");
+
+        // Reading stops early, so the malformed last line is never read
+        try (Stream<CsvRow> rows = new CsvParser().parseToStream(new BufferedReader(new StringReader("name,qty\na,1\nb,2\nc,3\nmalformed")))) {
+            assertEquals(Arrays.asList("a", "b"), rows.limit(2).map(r -> r.getString(0)).collect(Collectors.toList()));
+        }
+        try (Stream<CsvRow> rows = new CsvParser().parseToStream(new BufferedReader(new StringReader("name,qty\na,1\nmalformed")))) {
+            rows.forEach(r -> { });
+            fail();
+        }
+        catch (RuntimeException e) { assertTrue(e.getCause() instanceof MalformedCsvException); }
+
+        // Rows must be copied if they are kept
+        try (CsvRowIterator i = new CsvParser().parseToIterator(new BufferedReader(new StringReader("name,qty\na,1\nb,2\n")))) {
+            CsvRow first = i.next().copy();
+            assertEquals("b", i.next().getString(0));
+            assertEquals("a", first.getString(0));
+            assertEquals(2, first.getLineNumber());
+            assertFalse(i.hasNext());
+        }
+
+        // Parallel
+        StringBuilder csv = new StringBuilder("name,qty\n");
+        for (int i = 0; i < 100_000; i++) csv.append("x,").append(i).append("\n");
+        try (Stream<CsvRow> rows = new CsvParser().parseToStream(new BufferedReader(new StringReader(csv.toString())))) {
+            assertEquals(100_000L * 99_999 / 2, rows.parallel().mapToLong(r -> {
+                try { return r.getLong(qty); }
+                catch (MalformedCsvException e) { throw new RuntimeException(e); }
+            }).sum());
+        }
+    }
+
     public void testSetMandatoryFields() {
         try {
             CsvParser parser = new CsvParser();
@@ -0,0 +1,70 @@
+package com.databasesandlife.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import com.databasesandlife.util.CsvParser.MalformedCsvException;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class CsvWriterTest extends TestCase {
+
+    public void testWriteField() throws IOException, MalformedCsvException {
+        StringWriter out = new StringWriter();
+        try (CsvWriter csv = new CsvWriter(out, ",")) {
+            csv.writeRow("text", "long", "double", "date");
+            for (String text : new String[] { "plain", "a,b", "say \"hi\"", "two\nlines", "" }) {
+                csv.writeField(text);
+                csv.writeField(Long.MIN_VALUE);
+                csv.writeField(-0.1);
+                csv.writeField(LocalDate.of(2024, 3, 5));
+                csv.endRow();
+            }
+            csv.writeEmptyField();
+            csv.writeField(-123);
+            csv.writeField(12.0);
+            csv.writeField((LocalDate) null);
+            csv.endRow();
+
+            try { csv.writeRow("too few"); fail(); }
+            catch (IllegalStateException e) { }
+        }
+
+        assertTrue(out.toString(), out.toString().startsWith(
+            "text,long,double,date\r\n" +
+            "plain,-9223372036854775808,-0.1,2024-03-05\r\n" +
+            "\"a,b\","));
+        assertTrue(out.toString(), out.toString().contains("\r\n\"say \"\"hi\"\"\","));
+        assertTrue(out.toString(), out.toString().endsWith("\r\n,-123,12,\r\n"));
+
+        List<Map<String, String>> rows = new CsvParser().parseToListOfMaps(new BufferedReader(new StringReader(out.toString())));
+        assertEquals(6, rows.size());
+        assertEquals("say \"hi\"", rows.get(2).get("text"));
+        assertEquals("two\nlines", rows.get(3).get("text"));
+        assertEquals("", rows.get(4).get("text"));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testNew_fieldSeparatorRegexp() throws IOException {
+        CsvParser format = new CsvParser();
+        format.setFieldSeparatorRegexp(Pattern.compile("[,;]"));
+        try { new CsvWriter(format, new ByteArrayOutputStream()); fail(); } // previously wrote with the parser's old separator
+        catch (IllegalArgumentException ignored) { }
+
+        format.setFieldSeparatorRegexp(Pattern.compile(";"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CsvWriter csv = new CsvWriter(format, out)) { csv.writeRow("a", "b"); }
+        assertEquals("a;b\r\n", out.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.databasesandlife.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+
+import com.databasesandlife.util.DecompressingInputStream.CompressionFormat;
+import com.databasesandlife.util.DecompressingInputStream.ReadAheadInputStream;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class DecompressingInputStreamTest extends TestCase {
+
+    public void testReadAheadInputStream_exception() throws Exception {
+        InputStream failing = new InputStream() {
+            int count = 0;
+            @Override public int read() {
+                if (count++ < 100) return 'x';
+                throw new IllegalStateException("foo");
+            }
+        };
+        try (InputStream in = new ReadAheadInputStream(failing, 10, 2)) {
+            IOUtils.toByteArray(in);
+            fail();
+        }
+        catch (IOException e) { assertEquals("foo", e.getCause().getMessage()); }
+    }
+
+    public void testNewForFile() throws Exception {
+        StringBuilder csv = new StringBuilder("\uFEFFid,name\n");
+        for (int i = 0; i < 100_000; i++) csv.append(i).append(",café\n");
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+
+        File gz = File.createTempFile("DecompressingInputStreamTest", ".csv.gz");
+        File zip = File.createTempFile("DecompressingInputStreamTest", ".zip");
+        File xml = File.createTempFile("DecompressingInputStreamTest", ".xml.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) { out.write(bytes); }
+            try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+                out.putNextEntry(new ZipEntry("dir/"));
+                out.putNextEntry(new ZipEntry("dir/data.csv"));
+                out.write(bytes);
+            }
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(xml))) { out.write("<a><b/></a>".getBytes(StandardCharsets.UTF_8)); }
+
+            for (File f : new File[] { gz, zip }) {
+                try (DecompressingInputStream in = DecompressingInputStream.newForFile(f)) {
+                    assertTrue(in.getCompressionFormat() != CompressionFormat.none);
+                    assertEquals(bytes.length, IOUtils.toByteArray(in).length);
+                }
+
+                List<Map<String, String>> rows = new CsvParser().parseToListOfMaps(f);
+                assertEquals(100_000, rows.size());
+                assertEquals("café", rows.get(99_999).get("name"));
+            }
+
+            assertEquals("b", DomParser.from(xml).getFirstChild().getNodeName());
+        }
+        finally {
+            gz.delete();
+            zip.delete();
+            xml.delete();
+        }
+    }
+
+    public void testNewForInputStream() throws IOException {
+        try (DecompressingInputStream in = DecompressingInputStream.newForInputStream(new ByteArrayInputStream("ab".getBytes()))) {
+            assertEquals(CompressionFormat.none, in.getCompressionFormat());
+            assertEquals("ab", IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+
+        try {
+            DecompressingInputStream.newForInputStream(new ByteArrayInputStream(new byte[] { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD, 0 }));
+            fail();
+        }
+        catch (IOException e) { assertTrue(e.getMessage().contains("Zstandard")); }
+    }
+}
@@ -0,0 +1,226 @@
+package com.databasesandlife.util;
+
+import com.databasesandlife.util.Future.FutureComputationTimedOutException;
+import com.databasesandlife.util.Future.FuturePopulationException;
+import com.databasesandlife.util.Future.StreamingIterableFuture;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class FutureTest extends TestCase {
+
+    protected void sleep(double seconds) {
+        try { Thread.sleep((long) (1000 * seconds)); }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+    }
+
+    public void testStreamingIterableFuture() {
+        long start = System.nanoTime();
+        List<Integer> result = new ArrayList<>();
+        try (StreamingIterableFuture<Integer> f = new StreamingIterableFuture<Integer>(2) {
+            @Override protected void populate(Consumer<Integer> output) {
+                for (int i = 0; i < 5; i++) output.accept(i);
+                sleep(1);
+                output.accept(5);
+            }
+        }) {
+            for (Integer i : f) {
+                if (i == 0) assertTrue("First value available before populate finished", System.nanoTime() - start < 500_000_000L);
+                result.add(i);
+            }
+        }
+        assertEquals("[0, 1, 2, 3, 4, 5]", result.toString());
+    }
+
+    public void testStreamingIterableFuture_exception() {
+        List<Integer> result = new ArrayList<>();
+        StreamingIterableFuture<Integer> f = new StreamingIterableFuture<Integer>() {
+            @Override protected void populate(Consumer<Integer> output) {
+                output.accept(1);
+                throw new IllegalStateException("foo");
+            }
+        };
+        try {
+            for (Integer i : f) result.add(i);
+            fail();
+        }
+        catch (FuturePopulationException e) {
+            assertEquals("foo", e.getCause().getMessage());
+        }
+        assertEquals("[1]", result.toString());
+
+        // Errors are also thrown, rather than the output appearing to end normally
+        StreamingIterableFuture<Integer> error = new StreamingIterableFuture<Integer>() {
+            @Override protected void populate(Consumer<Integer> output) { throw new Error("bar"); }
+        };
+        try { for (Integer i : error) result.add(i); fail(); }
+        catch (FuturePopulationException e) { assertEquals("bar", e.getCause().getMessage()); }
+    }
+
+    public void testStreamingIterableFuture_close() throws Exception {
+        AtomicInteger produced = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        StreamingIterableFuture<Integer> f = new StreamingIterableFuture<Integer>(executor, 1) {
+            @Override protected void populate(Consumer<Integer> output) {
+                for (int i = 0; i < 1_000_000; i++) { output.accept(i); produced.incrementAndGet(); }
+            }
+        };
+        try (StreamingIterableFuture<Integer> ignored = f) {
+            for (Integer i : f) if (i == 3) break;
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(produced.get() < 10);
+    }
+
+    public void testStreamingIterableFuture_hasNextAfterClose() {
+        StreamingIterableFuture<Integer> f = new StreamingIterableFuture<Integer>(1) {
+            @Override protected void populate(Consumer<Integer> output) {
+                for (int i = 0; i < 1_000_000; i++) output.accept(i);
+            }
+        };
+        Iterator<Integer> iterator = f.iterator();
+        assertTrue(iterator.hasNext());
+        f.close();
+        assertFalse(iterator.hasNext()); // previously waited forever
+    }
+
+    public void testGet_nestedFuturesOnSmallExecutor() {
+        // Each future waits for another; with one thread, this only completes if get() runs not-yet-started futures itself
+        Executor oneThread = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> inner = new Future<Integer>(oneThread) {
+                @Override protected Integer populate() { return 1; }
+            };
+            Future<Integer> outer = new Future<Integer>(oneThread) {
+                @Override protected Integer populate() { return inner.get() + 1; }
+            };
+            assertEquals(2, (int) outer.get());
+        }
+        finally { ((ExecutorService) oneThread).shutdown(); }
+    }
+
+    public void testMapFlatMapAll() {
+        Future<Integer> a = Future.of(() -> { sleep(0.05); return 2; });
+        Future<String> b = a.map(x -> "x" + x);
+        Future<Integer> c = a.flatMap(x -> Future.of(() -> x * 10));
+        assertEquals("x2", b.get());
+        assertEquals(20, (int) c.get());
+        assertEquals(Arrays.asList(2, 20), Future.all(Arrays.asList(a, c)).get());
+
+        Future<Integer> failing = Future.of(() -> { throw new IllegalStateException("foo"); });
+        try { failing.map(x -> x + 1).get(); fail(); }
+        catch (FuturePopulationException e) { assertEquals("foo", e.getCause().getMessage()); }
+        try { Future.all(Arrays.asList(a, failing)).get(); fail(); }
+        catch (FuturePopulationException e) { assertEquals("foo", e.getCause().getMessage()); }
+
+        assertNotNull(a.getComputeSecondsOrNull());
+        assertTrue(a.getComputeSecondsOrNull() >= 0.04);
+    }
+
+    protected double secondsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public void testGetOrTimeoutAfterSeconds() throws Exception {
+        // Previously the timeout was interpreted as thousands of seconds
+        Future<Integer> slow = Future.of(() -> { sleep(10); return 1; });
+        long start = System.nanoTime();
+        try { slow.getOrTimeoutAfterSeconds(0.2); fail(); }
+        catch (FutureComputationTimedOutException e) { }
+        double waited = secondsSince(start);
+        assertTrue("Waited " + waited, waited >= 0.19 && waited < 1);
+
+        // Previously overflowed an int
+        Future<Integer> fast = Future.of(() -> 3);
+        assertEquals(3, (int) fast.getOrTimeoutAfterSeconds(3000));
+    }
+
+    public void testGetOrTimeoutAfterSeconds_underLoad() throws Exception {
+        // Keep all CPU cores busy, and check timeouts still happen at about the right time
+        AtomicInteger stop = new AtomicInteger();
+        List<Thread> busy = new ArrayList<>();
+        for (int i = 0; i < 2 * Runtime.getRuntime().availableProcessors(); i++) {
+            Thread t = new Thread(() -> { while (stop.get() == 0) Math.sqrt(Math.random()); });
+            t.start();
+            busy.add(t);
+        }
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) futures.add(Future.of(() -> { sleep(10); return 1; }));
+            for (Future<Integer> f : futures) {
+                long start = System.nanoTime();
+                try { f.getOrTimeoutAfterSeconds(0.05, true); fail(); }
+                catch (FutureComputationTimedOutException e) { }
+                double waited = secondsSince(start);
+                assertTrue("Waited " + waited, waited >= 0.049 && waited < 0.5);
+            }
+        }
+        finally {
+            stop.set(1);
+            for (Thread t : busy) t.join();
+        }
+    }
+
+    public void testGet_error() {
+        // Previously get() waited forever
+        Future<Integer> f = new Future<Integer>() {
+            @Override protected Integer populate() { throw new Error("foo"); }
+        };
+        try { f.get(); fail(); }
+        catch (FuturePopulationException e) { assertEquals("foo", e.getCause().getMessage()); }
+        assertNotNull(f.getComputeSecondsOrNull());
+    }
+
+    public void testCancel_beforeStarted() {
+        Future<Integer> f = new Future<Integer>(task -> { }) {
+            @Override protected Integer populate() { return 1; }
+        };
+        f.cancel();
+        assertNull(f.getQueueWaitSecondsOrNull());
+        assertNull(f.getComputeSecondsOrNull());
+    }
+
+    public void testGet_inlineKeepsCallerInterrupt() {
+        Future<Integer> f = new Future<Integer>(task -> { }) {
+            @Override protected Integer populate() { return 1; }
+        };
+        Thread.currentThread().interrupt();
+        assertEquals(1, (int) f.get());
+        assertTrue(Thread.interrupted());
+    }
+
+    public void testCancel() {
+        AtomicInteger interrupted = new AtomicInteger();
+        Future<Integer> f = Future.of(() -> {
+            try { Thread.sleep(10_000); }
+            catch (InterruptedException e) { interrupted.incrementAndGet(); }
+            return 1;
+        });
+        sleep(0.05);
+
+        long start = System.nanoTime();
+        try { f.getOrTimeoutAfterSeconds(0.05, true); fail(); }
+        catch (FutureComputationTimedOutException e) { }
+        try { f.get(); fail(); }
+        catch (FuturePopulationException e) { assertTrue(e.getCause() instanceof CancellationException); }
+        assertTrue(secondsSince(start) < 1);
+
+        sleep(0.05);
+        assertEquals(1, interrupted.get());
+    }
+}
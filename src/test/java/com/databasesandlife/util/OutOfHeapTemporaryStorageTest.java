@@ -8,6 +8,7 @@ import junit.framework.TestCase;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import com.databasesandlife.util.OutOfHeapTemporaryStorage.OutOfHeapBytes;
 import com.databasesandlife.util.OutOfHeapTemporaryStorage.OutOfHeapString;
 import com.databasesandlife.util.OutOfHeapTemporaryStorage.OutOfHeapXml;
 
@@ -32,6 +33,17 @@ public class OutOfHeapTemporaryStorageTest extends TestCase {
         assertEquals("foo\u20E0barjoe", b.toString());
     }
     
+    public void testNewBytesContainer() {
+        OutOfHeapTemporaryStorage str = new OutOfHeapTemporaryStorage();
+        OutOfHeapBytes a = str.newBytesContainer(new byte[] { 1, 2, 3 });
+        OutOfHeapString b = str.newStringContainer("abc");
+        OutOfHeapBytes c = str.newBytesContainer(new byte[0]);
+        assertEquals(3, a.toByteArray().length);
+        assertEquals(3, a.toByteArray()[2]);
+        assertEquals("abc", b.toString());
+        assertEquals(0, c.toByteArray().length);
+    }
+    
     public void testNewXmlContainer() throws Exception {
         DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
         DocumentBuilder docBuilder = dbfac.newDocumentBuilder();
@@ -1,13 +1,33 @@
 package com.databasesandlife.util;
 
+import com.databasesandlife.util.ThreadPool.Metrics;
+import com.databasesandlife.util.ThreadPool.PrioritizedTask;
+import com.databasesandlife.util.ThreadPool.SchedulingStrategy;
+import com.databasesandlife.util.ThreadPool.SharedWorkers;
+import com.databasesandlife.util.ThreadPool.SpillableTask;
 import com.databasesandlife.util.ThreadPool.SynchronizationPoint;
+import com.databasesandlife.util.ThreadPool.TaskHandle;
+import com.databasesandlife.util.ThreadPool.TaskWithEstimatedDuration;
 import junit.framework.TestCase;
 
+import javax.annotation.Nonnull;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 
 /**
@@ -186,4 +206,385 @@ public class ThreadPoolTest extends TestCase {
         for (int i = 0; i < 100; i++) expectedResult.append("c");
         assertEquals(expectedResult.toString(), output.toString());
     }
+
+    public void testAddTaskWithDependencies_alternatingOffPool() {
+        // Alternate between off-pool and pool tasks, so that each pool task is made ready by a thread which is not
+        // a pool worker, while the pool worker is idle waiting to be woken.
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Runnable> previous = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int idx = i;
+            Runnable task;
+            if (i % 2 == 0) pool.addTaskWithDependenciesOffPool(previous, task = () -> order.add(idx));
+            else pool.addTaskWithDependencies(previous, task = () -> order.add(idx));
+            previous = singletonList(task);
+        }
+        pool.execute();
+        assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), order);
+    }
+
+    public void testAddTask_manySmallTasksFromWorkers() {
+        // Each task adds two more, so the tasks are created on the workers' own queues and must be stolen by idle workers
+        class Split implements Runnable {
+            final ThreadPool pool; final AtomicInteger leafCount; final int depth;
+            Split(ThreadPool pool, AtomicInteger leafCount, int depth) { this.pool = pool; this.leafCount = leafCount; this.depth = depth; }
+            @Override public void run() {
+                if (depth == 0) { leafCount.incrementAndGet(); return; }
+                Runnable a = new Split(pool, leafCount, depth - 1), b = new Split(pool, leafCount, depth - 1);
+                pool.addTask(a, b);
+                pool.addTaskWithDependencies(asList(a, b), () -> { });
+            }
+        }
+
+        for (int threadCount = 1; threadCount <= 8; threadCount *= 2) {
+            ThreadPool pool = new ThreadPool();
+            pool.setThreadCount(threadCount);
+            AtomicInteger leafCount = new AtomicInteger();
+            pool.addTask(new Split(pool, leafCount, 14));
+            pool.execute();
+            assertEquals(1 << 14, leafCount.get());
+        }
+    }
+
+    public void testSchedulingStrategy_priority() {
+        StringBuffer output = new StringBuffer();
+        class Write implements PrioritizedTask {
+            final String val; final int priority;
+            Write(String val, int priority) { this.val = val; this.priority = priority; }
+            @Override public int getPriority() { return priority; }
+            @Override public void run() { output.append(val); }
+        }
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(1);
+        pool.setSchedulingStrategy(SchedulingStrategy.priority);
+        pool.addTask(new Write("c", 1), new Write("a", 3), new Write("b", 2));
+        pool.execute();
+        assertEquals("abc", output.toString());
+    }
+
+    public void testSchedulingStrategy_criticalPath() {
+        List<String> startOrder = Collections.synchronizedList(new ArrayList<>());
+        class Sleep implements TaskWithEstimatedDuration {
+            final String name;
+            Sleep(String name) { this.name = name; }
+            @Override public double getEstimatedDurationSeconds() { return 0.05; }
+            @Override public void run() { startOrder.add(name); sleep(0.05); }
+        }
+
+        // Independent tasks are added first; if they're run first, the chain starts late and takes 0.45 seconds in total
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(2);
+        pool.setSchedulingStrategy(SchedulingStrategy.criticalPath);
+        for (int i = 0; i < 6; i++) pool.addTask(new Sleep("independent" + i));
+        Runnable previous = pool.addTask(new Sleep("chain0"));
+        for (int i = 1; i < 6; i++) previous = pool.addTaskWithDependencies(singletonList(previous), new Sleep("chain" + i));
+        pool.execute();
+
+        assertEquals(0.3, pool.getPredictedMakespanSecondsOrNull(), 0.001);
+        assertTrue("Started " + startOrder, startOrder.subList(0, 2).contains("chain0"));
+    }
+
+    public void testSchedulingStrategy_criticalPath_longChain() {
+        // Each task's critical path is the rest of the chain; this must not be recalculated as each task becomes ready
+        ThreadPool pool = new ThreadPool();
+        pool.setSchedulingStrategy(SchedulingStrategy.criticalPath);
+        AtomicInteger next = new AtomicInteger();
+        Runnable previous = null;
+        for (int i = 0; i < 100_000; i++) {
+            int idx = i;
+            Runnable task = () -> assertTrue(next.compareAndSet(idx, idx + 1));
+            previous = previous == null ? pool.addTask(task) : pool.addTaskWithDependencies(singletonList(previous), task);
+        }
+        pool.execute();
+        assertEquals(100_000, next.get());
+        assertEquals(100_000 * 0.001, pool.getPredictedMakespanSecondsOrNull(), 0.001);
+    }
+
+    public void testAddTaskUsingResource() {
+        AtomicInteger concurrentDbTasks = new AtomicInteger(), maxConcurrentDbTasks = new AtomicInteger();
+        AtomicInteger cpuTaskCount = new AtomicInteger();
+        Runnable dbTask = () -> {
+            maxConcurrentDbTasks.accumulateAndGet(concurrentDbTasks.incrementAndGet(), Math::max);
+            sleep(0.01);
+            concurrentDbTasks.decrementAndGet();
+        };
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(4);
+        pool.setResourceLimit("db", 2);
+        for (int i = 0; i < 20; i++) pool.addTaskUsingResource("db", dbTask);
+        for (int i = 0; i < 20; i++) pool.addTaskWithDependenciesOffPoolUsingResource("db", emptyList(), dbTask);
+        for (int i = 0; i < 20; i++) pool.addTask(cpuTaskCount::incrementAndGet);
+        pool.execute();
+
+        assertEquals(2, maxConcurrentDbTasks.get());
+        assertEquals(20, cpuTaskCount.get());
+    }
+
+    public void testSetOffPoolThreadCount() {
+        AtomicInteger concurrentTasks = new AtomicInteger(), maxConcurrentTasks = new AtomicInteger();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        Runnable task = () -> {
+            threads.add(Thread.currentThread());
+            maxConcurrentTasks.accumulateAndGet(concurrentTasks.incrementAndGet(), Math::max);
+            sleep(0.01);
+            concurrentTasks.decrementAndGet();
+        };
+
+        ThreadPool pool = new ThreadPool();
+        pool.setOffPoolThreadCount(3);
+        pool.setOffPoolVirtualThreads(true); // falls back to normal threads on older JVMs
+        for (int i = 0; i < 30; i++) pool.addTaskOffPool(task);
+        pool.execute();
+
+        assertEquals(3, maxConcurrentTasks.get());
+        assertTrue("Used " + threads.size() + " threads", threads.size() < 30);
+    }
+
+    public void testGetTaskCountsByState_queuedOffPool() throws Exception {
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        ThreadPool pool = new ThreadPool();
+        pool.setOffPoolThreadCount(1);
+        pool.addTaskOffPool(() -> {
+            started.countDown();
+            try { release.await(); }
+            catch (InterruptedException e) { throw new RuntimeException(e); }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        pool.addTaskOffPool(() -> { }, () -> { });
+
+        Map<String, Integer> counts = pool.getTaskCountsByState();
+        assertEquals(0, (int) counts.get("blocked")); // previously 2
+        assertEquals(2, (int) counts.get("queuedOffPool"));
+        assertEquals(1, (int) counts.get("executing"));
+
+        release.countDown();
+        pool.execute();
+    }
+
+    public void testSetSharedWorkers_nested() {
+        try (SharedWorkers workers = new SharedWorkers("test", 1)) {
+            AtomicInteger innerTaskCount = new AtomicInteger();
+            ThreadPool outer = new ThreadPool();
+            outer.setSharedWorkers(workers);
+            outer.setTimeoutSeconds(10);
+            for (int i = 0; i < 3; i++) outer.addTask(() -> {
+                // The only worker is running this task, so it must run the inner tasks itself
+                ThreadPool inner = new ThreadPool();
+                inner.setSharedWorkers(workers);
+                for (int j = 0; j < 5; j++) inner.addTask(innerTaskCount::incrementAndGet);
+                inner.execute();
+            });
+            outer.execute();
+            assertEquals(15, innerTaskCount.get());
+        }
+    }
+
+    public void testSetSharedWorkers_close() throws Exception {
+        SharedWorkers workers = new SharedWorkers("test", 1);
+        CountDownLatch started = new CountDownLatch(1);
+        ThreadPool pool = new ThreadPool();
+        pool.setSharedWorkers(workers);
+        Runnable blocking = pool.addTask(() -> { started.countDown(); sleep(10); });
+        pool.addTaskWithDependencies(singletonList(blocking), () -> { });
+        AtomicReference<RuntimeException> exception = new AtomicReference<>();
+        Thread executing = new Thread(() -> {
+            try { pool.execute(); }
+            catch (RuntimeException e) { exception.set(e); }
+        });
+        executing.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        workers.close(); // previously execute() waited forever for the dependent task
+        executing.join(5_000);
+        assertFalse(executing.isAlive());
+        assertTrue(exception.get().getCause() instanceof IllegalStateException);
+
+        ThreadPool afterClose = new ThreadPool();
+        afterClose.setSharedWorkers(workers);
+        afterClose.addTask(() -> { });
+        try { afterClose.execute(); fail(); }
+        catch (IllegalStateException ignored) { }
+    }
+
+    public void testSetOffPoolQueueCapacity() {
+        AtomicInteger startedTasks = new AtomicInteger();
+        ThreadPool pool = new ThreadPool();
+        pool.setOffPoolThreadCount(1);
+        pool.setOffPoolQueueCapacity(2);
+        for (int i = 0; i < 20; i++) pool.addTaskOffPool(() -> { startedTasks.incrementAndGet(); sleep(0.005); });
+
+        // Adding waited for space: at most 2 queued and 1 running
+        assertTrue("Started " + startedTasks.get(), startedTasks.get() >= 17);
+
+        pool.execute();
+        assertEquals(20, startedTasks.get());
+    }
+
+    public void testSetSharedWorkers() {
+        try (SharedWorkers workers = new SharedWorkers("test", 4)) {
+            // Many small pools executed from several threads at once, as e.g. by concurrent web requests
+            ThreadPool callers = new ThreadPool();
+            callers.setThreadCount(8);
+            AtomicInteger taskCount = new AtomicInteger();
+            for (int c = 0; c < 8; c++) callers.addTask(() -> {
+                for (int i = 0; i < 100; i++) {
+                    ThreadPool pool = new ThreadPool();
+                    pool.setSharedWorkers(workers);
+                    Runnable a = pool.addTask(taskCount::incrementAndGet);
+                    pool.addTaskWithDependencies(singletonList(a), taskCount::incrementAndGet, taskCount::incrementAndGet);
+                    pool.execute();
+                }
+            });
+            callers.execute();
+            assertEquals(8 * 100 * 3, taskCount.get());
+
+            // An exception in one pool is thrown by that pool's execute
+            ThreadPool failing = new ThreadPool();
+            failing.setSharedWorkers(workers);
+            failing.addTask(() -> { throw new RuntimeException("foo"); });
+            try { failing.execute(); fail(); }
+            catch (RuntimeException e) { assertEquals("foo", e.getCause().getMessage()); }
+        }
+    }
+
+    public void testAddTaskWithResult() {
+        ThreadPool pool = new ThreadPool();
+        TaskHandle<Integer> a = pool.addTaskWithResult(() -> 2);
+        TaskHandle<Integer> b = pool.addTaskWithResult(() -> 3);
+        TaskHandle<Integer> product = pool.addTaskWithResult(a, b, (x, y) -> x * y);
+        TaskHandle<String> text = pool.addTaskWithResult(product, p -> "product=" + p);
+        List<TaskHandle<Integer>> squares = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) { int n = i; squares.add(pool.addTaskWithResult(() -> n * n)); }
+        TaskHandle<Integer> sum = pool.addTaskWithResults(squares, list -> list.stream().mapToInt(x -> x).sum());
+        product.releaseWhenConsumed();
+        pool.execute();
+
+        assertEquals("product=6", text.get());
+        assertEquals(30, (int) sum.get());
+        assertEquals(2, (int) a.get()); // consumed, but retained
+        try { product.get(); fail(); } // consumed by "text", so released
+        catch (IllegalStateException e) { }
+    }
+
+    public void testExecute_exceptionInterruptsOtherTasks() {
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(2);
+        pool.addTask(() -> sleep(10));
+        pool.addTaskOffPool(() -> sleep(10));
+        pool.addTask(() -> { sleep(0.05); throw new RuntimeException("foo"); });
+
+        long start = System.nanoTime();
+        try { pool.execute(); fail(); }
+        catch (RuntimeException e) { assertEquals("foo", e.getCause().getMessage()); }
+        assertTrue(pool.getCancellationToken().isCancelled());
+        assertTrue((System.nanoTime() - start) / 1e9 < 5);
+    }
+
+    public void testSetTimeoutSeconds() {
+        ThreadPool pool = new ThreadPool();
+        pool.setTimeoutSeconds(0.1);
+        pool.addTask(() -> sleep(10));
+
+        long start = System.nanoTime();
+        try { pool.execute(); fail(); }
+        catch (RuntimeException e) { assertTrue(e.getCause() instanceof TimeoutException); }
+        assertTrue((System.nanoTime() - start) / 1e9 < 5);
+    }
+
+    public void testSetTimeoutSeconds_taskIgnoresInterrupt() {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPool pool = new ThreadPool();
+        pool.setTimeoutSeconds(0.1);
+        pool.addTask(() -> {
+            while (true) {
+                try { release.await(); return; }
+                catch (InterruptedException ignored) { }
+            }
+        });
+
+        try { pool.execute(); fail(); }
+        catch (RuntimeException e) { assertTrue(e.getCause() instanceof TimeoutException); }
+        finally { release.countDown(); }
+    }
+
+    public void testSetMetrics() throws Exception {
+        class Slow implements Runnable {
+            @Override public void run() { sleep(0.05); }
+            @Override public String toString() { return "slow \"task\""; }
+        }
+
+        Metrics metrics = new Metrics();
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(2);
+        pool.setMetrics(metrics);
+        Runnable a = pool.addTask(new Slow());
+        pool.addTaskWithDependencies(singletonList(a), new Slow());
+        pool.execute();
+
+        assertEquals(2, metrics.getTaskTimings().size());
+        Metrics.TaskClassSummary summary = metrics.getSummaryByTaskClass().values().iterator().next();
+        assertEquals(2, summary.count);
+        assertTrue(summary.executingSeconds >= 0.1);
+        assertTrue(summary.blockedSeconds >= 0.05);
+
+        StringWriter trace = new StringWriter();
+        metrics.writeChromeTrace(trace);
+        assertTrue(trace.toString(), trace.toString().contains("\"name\":\"slow \\\"task\\\"\",\"cat\":"));
+    }
+
+    protected static ThreadPool crawlPool;
+    protected static final AtomicInteger crawledCount = new AtomicInteger(), maxCrawlTasksInMemory = new AtomicInteger();
+
+    /** Crawls pages 0..9999, where page n links to pages 10n+1 to 10n+10, and to page 0 */
+    protected static class CrawlPage implements SpillableTask {
+        final int page;
+        CrawlPage(int page) { this.page = page; }
+        @Override public @Nonnull String getDeduplicationKey() { return "page-" + page; }
+        @Override public void run() {
+            crawledCount.incrementAndGet();
+            int tasksInMemory = crawlPool.getTaskCountsByState().values().stream().mapToInt(x -> x).sum();
+            maxCrawlTasksInMemory.accumulateAndGet(tasksInMemory, Math::max);
+            crawlPool.addSpillableTask(new CrawlPage(0));
+            for (int i = 10*page + 1; i <= 10*page + 10 && i < 10000; i++) crawlPool.addSpillableTask(new CrawlPage(i));
+        }
+    }
+
+    public void testAddSpillableTask() {
+        crawlPool = new ThreadPool();
+        crawlPool.setThreadCount(2);
+        crawlPool.setMaxSpillableTasksInMemory(10);
+        crawlPool.setSpillBatchSize(10);
+        crawlPool.addSpillableTask(new CrawlPage(0));
+        crawlPool.execute();
+
+        assertEquals(10000, crawledCount.get());
+        assertTrue("Max in memory " + maxCrawlTasksInMemory.get(), maxCrawlTasksInMemory.get() <= 10 + 10);
+
+        try { new ThreadPool().setMaxSpillableTasksInMemory(0); fail(); }
+        catch (IllegalArgumentException e) { }
+    }
+
+    public void testAddSpillableTask_hashCollision() {
+        ThreadPool pool = new ThreadPool() {
+            @Override protected long hashDeduplicationKey(@Nonnull String key) { return 1; }
+        };
+        AtomicInteger runCount = new AtomicInteger();
+        class Task implements SpillableTask {
+            final String key;
+            Task(String key) { this.key = key; }
+            @Override public @Nonnull String getDeduplicationKey() { return key; }
+            @Override public void run() { runCount.incrementAndGet(); }
+        }
+        assertTrue(pool.addSpillableTask(new Task("a")));
+        assertTrue(pool.addSpillableTask(new Task("b"))); // previously a duplicate, as the hash is the same
+        assertTrue(pool.addSpillableTask(new Task("ab")));
+        assertFalse(pool.addSpillableTask(new Task("a")));
+        assertFalse(pool.addSpillableTask(new Task("b")));
+        pool.execute();
+        assertEquals(3, runCount.get());
+    }
 }
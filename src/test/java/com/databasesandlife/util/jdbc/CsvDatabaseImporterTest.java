@@ -0,0 +1,104 @@
+package com.databasesandlife.util.jdbc;
+
+import com.databasesandlife.util.CsvParser;
+import com.databasesandlife.util.CsvParser.MalformedCsvException;
+import com.databasesandlife.util.CsvWriter;
+import com.databasesandlife.util.jdbc.CsvDatabaseImporter.Statistics;
+import com.databasesandlife.util.jdbc.DbTransaction.DbTransactionFactory;
+import com.databasesandlife.util.jdbc.testutil.DatabaseConnection;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static java.util.Arrays.asList;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class CsvDatabaseImporterTest extends TestCase {
+
+    protected long fetchLong(DbTransactionFactory txFactory, String sql) {
+        DbTransaction tx = txFactory.newDbTransaction();
+        try { return tx.query(sql).iterator().next().getLong("x"); }
+        finally { tx.rollback(); }
+    }
+
+    protected CsvDatabaseImporter newImporter(DbTransactionFactory txFactory, List<Long> progress) {
+        CsvDatabaseImporter importer = new CsvDatabaseImporter(new CsvParser(), txFactory, "csv_import");
+        importer.addColumn("id", "id", CsvDatabaseImporter.intValue);
+        importer.addColumn("name");
+        importer.addColumn("price", "price", CsvDatabaseImporter.doubleValue);
+        importer.addColumn("created", "created", CsvDatabaseImporter.localDateValue);
+        importer.setRowsPerBatch(100);
+        importer.setRowsPerCommit(1000);
+        importer.setProgressListener((tx, rowCount) -> progress.add(rowCount));
+        return importer;
+    }
+
+    public void testWriteCopyValue() throws Exception {
+        StringWriter out = new StringWriter();
+        try (CsvWriter csv = new CsvWriter(out, ",")) {
+            for (Object value : new Object[] { "\\.", (short) 3, 1.5f, LocalDateTime.of(2020, 1, 2, 3, 4, 5),
+                    new Date(0), UUID.fromString("00000000-0000-0000-0000-000000000001"), new byte[] { 1, (byte) 0xAB } })
+                assertTrue(CsvDatabaseImporter.writeCopyValue(csv, value));
+            assertFalse(CsvDatabaseImporter.writeCopyValue(csv, new String[] { "a" }));
+        }
+        assertEquals("\"\\.\",3,1.5,2020-01-02T03:04:05,1970-01-01T00:00,00000000-0000-0000-0000-000000000001,\\x01ab",
+            out.toString());
+    }
+
+    public void testImportReader() throws Exception {
+        StringBuilder csv = new StringBuilder("id,ignored,name,price,created\n");
+        for (int i = 0; i < 2500; i++)
+            csv.append(i).append(",x,").append(i % 10 == 0 ? "" : "\"name, " + i + "\"").append(",")
+                .append(i / 4.0).append(",2020-01-").append(String.format("%02d", i % 28 + 1)).append("\n");
+
+        for (String url : new String[] { DatabaseConnection.mysql, DatabaseConnection.postgresql }) {
+            DbTransactionFactory txFactory = () -> new DbTransaction(url);
+            for (boolean useCopy : new boolean[] { false, true }) {
+                if (useCopy && url.equals(DatabaseConnection.mysql)) continue;
+
+                DbTransaction setup = txFactory.newDbTransaction();
+                setup.execute("DROP TABLE IF EXISTS csv_import");
+                setup.execute("CREATE TABLE csv_import (id INT NOT NULL, name VARCHAR(20), price DOUBLE PRECISION, created DATE)");
+                setup.commit();
+
+                // Import commits every 1000 rows
+                List<Long> progress = new ArrayList<>();
+                CsvDatabaseImporter importer = newImporter(txFactory, progress);
+                importer.setUseCopy(useCopy);
+                Statistics stats = importer.importReader(new BufferedReader(new StringReader(csv.toString())));
+                assertEquals(2500, stats.rowCount);
+                assertEquals(asList(1000L, 2000L, 2500L), progress);
+                assertEquals(2500, fetchLong(txFactory, "SELECT COUNT(*) AS x FROM csv_import"));
+                assertEquals(250, fetchLong(txFactory, "SELECT COUNT(*) AS x FROM csv_import WHERE name IS NULL"));
+                assertEquals(1, fetchLong(txFactory, "SELECT COUNT(*) AS x FROM csv_import " +
+                    "WHERE id = 7 AND name = 'name, 7' AND price = 1.75 AND created = '2020-01-08'"));
+
+                // Resuming skips the rows already imported
+                progress.clear();
+                CsvDatabaseImporter resumed = newImporter(txFactory, progress);
+                resumed.setSkipRowCount(2400);
+                assertEquals(100, resumed.importReader(new BufferedReader(new StringReader(csv.toString()))).rowCount);
+                assertEquals(asList(2500L), progress);
+                assertEquals(2600, fetchLong(txFactory, "SELECT COUNT(*) AS x FROM csv_import"));
+
+                // Malformed CSV
+                try {
+                    newImporter(txFactory, new ArrayList<>()).importReader(new BufferedReader(new StringReader(
+                        csv.toString() + "not-a-number,x,name,1,2020-01-01\n")));
+                    fail();
+                }
+                catch (MalformedCsvException e) { assertTrue(e.getMessage(), e.getMessage().contains("2502")); }
+            }
+        }
+    }
+}
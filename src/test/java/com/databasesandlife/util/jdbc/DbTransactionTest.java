@@ -1,11 +1,15 @@
 package com.databasesandlife.util.jdbc;
 
 import com.databasesandlife.util.*;
+import com.databasesandlife.util.jdbc.DbTransaction.ConstraintViolationType;
 import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
 import com.databasesandlife.util.jdbc.DbTransaction.DbServerProduct;
+import com.databasesandlife.util.jdbc.DbTransaction.ParsedConstraintViolation;
+import com.databasesandlife.util.jdbc.DbTransaction.SqlException;
 import com.databasesandlife.util.jdbc.testutil.DatabaseConnection;
 import junit.framework.TestCase;
 
+import java.sql.SQLException;
 import java.util.*;
 
 /**
@@ -123,6 +127,59 @@ public class DbTransactionTest extends TestCase {
         }
     }
     
+    public void testParseConstraintViolationOrNull() {
+        ParsedConstraintViolation v;
+
+        // SQLSTATE, message in a language we don't parse, wrapped as DbTransaction does
+        v = DbTransaction.parseConstraintViolationOrNull(new SqlException("sql", new SQLException(
+            "doppelter Schlüsselwert verletzt", "23505")));
+        assertNotNull(v);
+        assertEquals(ConstraintViolationType.unique, v.type);
+
+        v = DbTransaction.parseConstraintViolationOrNull(new SQLException("whatever", "23503"));
+        assertNotNull(v);
+        assertEquals(ConstraintViolationType.foreignKey, v.type);
+
+        // MySQL vendor code
+        v = DbTransaction.parseConstraintViolationOrNull(new SQLException(
+            "Duplicate entry 'x' for key 'my_key'", "23000", 1062));
+        assertNotNull(v);
+        assertEquals(ConstraintViolationType.unique, v.type);
+        assertEquals("my_key", v.constraintName);
+
+        // Fallback to message
+        v = DbTransaction.parseConstraintViolationOrNull(new RuntimeException("ERROR: duplicate key value violates unique constraint \"foo\""));
+        assertNotNull(v);
+        assertEquals("foo", v.constraintName);
+
+        // Other errors
+        assertNull(DbTransaction.parseConstraintViolationOrNull(new SqlException(new SQLException("syntax error", "42601"))));
+
+        // No message
+        v = DbTransaction.parseConstraintViolationOrNull(new SQLException(null, "23505"));
+        assertNotNull(v);
+        assertEquals(ConstraintViolationType.unique, v.type);
+        assertNull(v.constraintName);
+        assertNull(DbTransaction.parseConstraintViolationOrNull(new SQLException(null, "42601", 547)));
+        assertNull(DbTransaction.parseConstraintViolationOrNull(new RuntimeException((String) null)));
+    }
+
+    /** Times the exception path, which is taken once per violation e.g. when inserting rows which may already exist */
+    public void testParseConstraintViolationOrNull_timing() {
+        RuntimeException byCode = new SqlException("sql", new SQLException("doppelter Schlüsselwert verletzt", "23505"));
+        RuntimeException byMessage = new RuntimeException("ERROR: duplicate key value violates unique constraint \"foo\"");
+        int iterations = 100_000;
+        for (int warmUp = 0; warmUp < 2; warmUp++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertNotNull(DbTransaction.parseConstraintViolationOrNull(byCode));
+                assertNotNull(DbTransaction.parseConstraintViolationOrNull(byMessage));
+            }
+            double nanosPerCall = (System.nanoTime() - start) / (2.0 * iterations);
+            assertTrue("Took " + nanosPerCall + " ns per exception", nanosPerCall < 50_000);
+        }
+    }
+
     public void testGetSchemaQuote() {
         for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
             try {
@@ -0,0 +1,55 @@
+package com.databasesandlife.util.jdbc;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ExistingRowCacheTest extends TestCase {
+
+    protected Map<String, Object> row(String day, int count) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("day", day);
+        result.put("count", count);
+        return result;
+    }
+
+    public void testMarkExisting() {
+        ExistingRowCache cache = new ExistingRowCache(2);
+        assertFalse(cache.isKnownToExist("t", row("mon", 1), "day"));
+
+        cache.markExisting("t", row("mon", 1), "day");
+        assertTrue(cache.isKnownToExist("t", row("mon", 2), "day"));  // only unique key columns are relevant
+        assertFalse(cache.isKnownToExist("t", row("tue", 1), "day"));
+        assertFalse(cache.isKnownToExist("other", row("mon", 1), "day"));
+        assertFalse(cache.isKnownToExist("t", row("mon", 1), "day", "count"));
+
+        cache.forget("t", row("mon", 1), "day");
+        assertFalse(cache.isKnownToExist("t", row("mon", 1), "day"));
+    }
+
+    public void testMarkExisting_numbers() {
+        ExistingRowCache cache = new ExistingRowCache(2);
+        cache.markExisting("t", row("mon", 5), "count");
+        assertTrue(cache.isKnownToExist("t", Collections.singletonMap("count", 5L), "count"));
+        assertTrue(cache.isKnownToExist("t", Collections.singletonMap("count", new BigDecimal("5.00")), "count"));
+        assertFalse(cache.isKnownToExist("t", Collections.singletonMap("count", 6L), "count"));
+    }
+
+    public void testMaxEntries() {
+        ExistingRowCache cache = new ExistingRowCache(2);
+        cache.markExisting("t", row("mon", 1), "day");
+        cache.markExisting("t", row("tue", 1), "day");
+        assertTrue(cache.isKnownToExist("t", row("mon", 1), "day")); // "mon" is now most recently used
+        cache.markExisting("t", row("wed", 1), "day");
+        assertTrue(cache.isKnownToExist("t", row("mon", 1), "day"));
+        assertFalse(cache.isKnownToExist("t", row("tue", 1), "day"));
+        assertTrue(cache.isKnownToExist("t", row("wed", 1), "day"));
+    }
+}
@@ -0,0 +1,102 @@
+package com.databasesandlife.util.jdbc;
+
+import com.databasesandlife.util.jdbc.KeysetPaginatedQuery.InvalidPageCursorException;
+import com.databasesandlife.util.jdbc.KeysetPaginatedQuery.Page;
+import com.databasesandlife.util.jdbc.KeysetPaginatedQuery.PageCursor;
+import com.databasesandlife.util.jdbc.testutil.DatabaseConnection;
+import junit.framework.TestCase;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class KeysetPaginatedQueryTest extends TestCase {
+
+    public void testPageCursor() throws InvalidPageCursorException {
+        PageCursor cursor = new PageCursor(asList("a b/c", 12, 34L, new BigDecimal("5.6")), false);
+        PageCursor parsed = PageCursor.parse(cursor.toString());
+        assertNotNull(parsed);
+        assertEquals(cursor.keyValues, parsed.keyValues);
+        assertFalse(parsed.forwards);
+
+        assertNull(PageCursor.parse(null));
+
+        PageCursor dates = new PageCursor(asList(LocalDate.of(2024, 2, 29), LocalDateTime.of(2024, 2, 29, 12, 0, 0, 123456789),
+            LocalTime.of(23, 59), KeysetPaginatedQuery.getKeyValue(java.sql.Timestamp.valueOf("2024-01-02 03:04:05.000006"))), true);
+        PageCursor parsedDates = PageCursor.parse(dates.toString());
+        assertNotNull(parsedDates);
+        assertEquals(dates.keyValues, parsedDates.keyValues);
+        assertEquals(LocalDateTime.of(2024, 1, 2, 3, 4, 5, 6000), parsedDates.keyValues.get(3));
+
+        try { PageCursor.parse("not!base64"); fail(); }
+        catch (InvalidPageCursorException ignored) { }
+        try { PageCursor.parse(cursor.toString().substring(0, 5)); fail(); }
+        catch (InvalidPageCursorException ignored) { }
+    }
+
+    public void testCheckCursor() throws InvalidPageCursorException {
+        KeysetPaginatedQuery<Integer> q = new KeysetPaginatedQuery<>("SELECT * FROM keyset", null, emptyList(),
+            asList("name", "id"), asList(String.class, Integer.class), 3, row -> row.getInt("id"));
+        q.checkCursor(new PageCursor(asList("a", 1), true));
+        try { q.checkCursor(new PageCursor(asList("a"), true)); fail(); }
+        catch (InvalidPageCursorException ignored) { }
+        try { q.checkCursor(new PageCursor(asList("a", "b"), true)); fail(); }
+        catch (InvalidPageCursorException ignored) { }
+    }
+
+    public void testFetchPage() throws InvalidPageCursorException {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                tx.execute("DROP TABLE IF EXISTS keyset");
+                tx.execute("CREATE TABLE keyset (name VARCHAR(10) NOT NULL, id INT NOT NULL, category INT NOT NULL)");
+                for (int id = 0; id < 10; id++) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("name", id < 5 ? "a" : "b");
+                    row.put("id", id);
+                    row.put("category", id == 9 ? 2 : 1);
+                    tx.insert("keyset", row);
+                }
+
+                KeysetPaginatedQuery<Integer> q = new KeysetPaginatedQuery<>("SELECT * FROM keyset",
+                    "category = ?", singletonList(1), asList("name", "id"), 4, row -> row.getInt("id"));
+
+                Page<Integer> first = q.fetchPage(tx, null);
+                assertEquals(asList(0, 1, 2, 3), first.rows);
+                assertNull(first.prevOrNull);
+
+                Page<Integer> second = q.fetchPage(tx, first.nextOrNull);
+                assertEquals(asList(4, 5, 6, 7), second.rows);
+                assertNotNull(second.prevOrNull);
+
+                Page<Integer> third = q.fetchPage(tx, second.nextOrNull);
+                assertEquals(singletonList(8), third.rows);
+                assertNull(third.nextOrNull);
+
+                Page<Integer> backToSecond = q.fetchPage(tx, third.prevOrNull);
+                assertEquals(asList(4, 5, 6, 7), backToSecond.rows);
+
+                Page<Integer> backToFirst = q.fetchPage(tx, backToSecond.prevOrNull);
+                assertEquals(asList(0, 1, 2, 3), backToFirst.rows);
+                assertNull(backToFirst.prevOrNull);
+
+                KeysetPaginatedQuery<Integer> empty = new KeysetPaginatedQuery<>("SELECT * FROM keyset",
+                    "category = ?", singletonList(3), singletonList("id"), 4, row -> row.getInt("id"));
+                assertEquals(emptyList(), empty.fetchPage(tx, null).rows);
+
+                assertTrue(q.fetchApproximateRowCount(tx) >= 0);
+            }
+            finally { tx.rollback(); }
+        }
+    }
+}